@@ -0,0 +1,89 @@
+package org.mskcc.smile.cpt_gateway.benchmarks;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Proxy;
+import org.mskcc.cmo.messaging.Gateway;
+import org.mskcc.smile.cpt_gateway.service.CPTService;
+import org.mskcc.smile.cpt_gateway.service.impl.MessageHandlingServiceImpl;
+import org.mskcc.smile.cpt_gateway.service.impl.MessageHandlingServiceImpl.ExecutionMode;
+import org.mskcc.smile.cpt_gateway.service.util.CPTRecordQueue.OverflowPolicy;
+import org.springframework.util.ReflectionUtils;
+
+/**
+ * Wiring for running the gateway services outside of a Spring context.
+ */
+public final class BenchmarkSupport {
+
+    private BenchmarkSupport() {}
+
+    /**
+     * Sets an injected (@Autowired or @Value) field on a service.
+     */
+    public static void setField(Object target, String fieldName, Object value) {
+        Field field = ReflectionUtils.findField(target.getClass(), fieldName);
+        if (field == null) {
+            throw new IllegalArgumentException("No field " + fieldName + " on " + target.getClass());
+        }
+        ReflectionUtils.makeAccessible(field);
+        ReflectionUtils.setField(field, target, value);
+    }
+
+    /**
+     * Returns a message handling service wired to the given CPT service, with
+     * the queue settings of application.properties.EXAMPLE.
+     */
+    public static MessageHandlingServiceImpl newMessageHandlingService(CPTService cptService) {
+        MessageHandlingServiceImpl messageHandlingService = new MessageHandlingServiceImpl();
+        setField(messageHandlingService, "cptService", cptService);
+        String[] queueCapacities = {"PROMOTED_REQUEST_QUEUE_CAPACITY", "NEW_REQUEST_QUEUE_CAPACITY",
+                                    "UPDATE_REQUEST_QUEUE_CAPACITY", "UPDATE_SAMPLE_QUEUE_CAPACITY",
+                                    "REQUEST_STATUS_QUEUE_CAPACITY"};
+        for (String queueCapacity : queueCapacities) {
+            setField(messageHandlingService, queueCapacity, 1000);
+        }
+        setField(messageHandlingService, "QUEUE_OVERFLOW_POLICY", OverflowPolicy.BLOCK);
+        setField(messageHandlingService, "QUEUE_HIGH_WATERMARK", 0.9);
+        setField(messageHandlingService, "QUEUE_LOW_WATERMARK", 0.5);
+        setField(messageHandlingService, "LANES_PER_DESTINATION", 32);
+        setField(messageHandlingService, "PROMOTED_REQUEST_WEIGHT", 8);
+        setField(messageHandlingService, "NEW_REQUEST_WEIGHT", 8);
+        setField(messageHandlingService, "UPDATE_REQUEST_WEIGHT", 4);
+        setField(messageHandlingService, "UPDATE_SAMPLE_WEIGHT", 4);
+        setField(messageHandlingService, "REQUEST_STATUS_WEIGHT", 1);
+        setField(messageHandlingService, "EXECUTION_MODE", ExecutionMode.PLATFORM);
+        setField(messageHandlingService, "VIRTUAL_THREAD_MAX_IN_FLIGHT", 100);
+        return messageHandlingService;
+    }
+
+    /**
+     * Returns a gateway that accepts subscriptions and publishes nowhere.
+     */
+    public static Gateway noopGateway() {
+        return (Gateway) Proxy.newProxyInstance(Gateway.class.getClassLoader(),
+            new Class<?>[] {Gateway.class}, (proxy, method, args) -> {
+                switch (method.getName()) {
+                    case "toString":
+                        return "NoopGateway";
+                    case "hashCode":
+                        return System.identityHashCode(proxy);
+                    case "equals":
+                        return proxy == args[0];
+                    default:
+                        return defaultValue(method.getReturnType());
+                }
+            });
+    }
+
+    static Object defaultValue(Class<?> type) {
+        if (type == boolean.class) {
+            return Boolean.FALSE;
+        }
+        if (type == int.class) {
+            return 0;
+        }
+        if (type == long.class) {
+            return 0L;
+        }
+        return null;
+    }
+}
@@ -0,0 +1,116 @@
+package org.mskcc.smile.cpt_gateway.benchmarks;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.mskcc.smile.cpt_gateway.model.CPTRecord;
+import org.mskcc.smile.cpt_gateway.service.CPTService;
+import org.mskcc.smile.cpt_gateway.service.impl.MessageHandlingServiceImpl;
+import org.mskcc.smile.cpt_gateway.service.impl.MessageHandlingServiceImpl.ExecutionMode;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the PLATFORM and VIRTUAL execution modes of
+ * MessageHandlingServiceImpl with a CPT service that blocks for a simulated
+ * round trip, at the same concurrency. Besides throughput, the live thread
+ * count and used heap are printed after every iteration. VIRTUAL needs a java
+ * 21 runtime.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ExecutionModeBenchmark {
+
+    private static final int BATCH_SIZE = 1000;
+    private static final int NUM_REQUESTS = 1000;
+
+    @Param({"PLATFORM", "VIRTUAL"})
+    public String executionMode;
+
+    // handler threads in PLATFORM mode, permits per destination in VIRTUAL mode
+    @Param({"16", "256"})
+    public int concurrency;
+
+    @Param({"20"})
+    public int roundTripMillis;
+
+    private MessageHandlingServiceImpl messageHandlingService;
+    private BlockingCPTService cptService;
+    private byte[][] records;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        records = new byte[NUM_REQUESTS][];
+        for (int i = 0; i < NUM_REQUESTS; i++) {
+            records[i] = RecordFixtures.requestRecord(1024, "12345_" + i);
+        }
+        cptService = new BlockingCPTService(roundTripMillis);
+        messageHandlingService = BenchmarkSupport.newMessageHandlingService(cptService);
+        BenchmarkSupport.setField(messageHandlingService, "EXECUTION_MODE",
+                                  ExecutionMode.valueOf(executionMode));
+        BenchmarkSupport.setField(messageHandlingService, "NUM_PROMOTED_REQUEST_HANDLERS", concurrency);
+        BenchmarkSupport.setField(messageHandlingService, "VIRTUAL_THREAD_MAX_IN_FLIGHT", concurrency);
+        // a lane is served by one worker at a time, so lanes cap the PLATFORM concurrency
+        BenchmarkSupport.setField(messageHandlingService, "LANES_PER_DESTINATION", concurrency);
+        messageHandlingService.initialize(BenchmarkSupport.noopGateway());
+    }
+
+    @TearDown(Level.Iteration)
+    public void printFootprint() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        System.out.println("live threads: " + threads.getThreadCount() + ", peak threads: "
+                           + threads.getPeakThreadCount() + ", heap used: "
+                           + (memory.getHeapMemoryUsage().getUsed() >> 20) + "MB");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        messageHandlingService.shutdown();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public void promotedRequestPosts() throws Exception {
+        long target = cptService.pushed.get() + BATCH_SIZE;
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            messageHandlingService.promotedRequestHandler(records[i % NUM_REQUESTS]);
+        }
+        while (cptService.pushed.get() < target) {
+            Thread.sleep(1);
+        }
+    }
+
+    static class BlockingCPTService implements CPTService {
+        final AtomicLong pushed = new AtomicLong();
+        final long roundTripMillis;
+
+        BlockingCPTService(long roundTripMillis) {
+            this.roundTripMillis = roundTripMillis;
+        }
+
+        @Override
+        public void pushRecord(CPTRecord record) throws Exception {
+            Thread.sleep(roundTripMillis);
+            pushed.incrementAndGet();
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package org.mskcc.smile.cpt_gateway.benchmarks;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import org.mskcc.smile.cpt_gateway.service.impl.CPTFileServiceImpl;
+import org.mskcc.smile.cpt_gateway.service.util.CPTFailureLogAppender.FsyncPolicy;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * CPTFileServiceImpl.saveCPTPostFailure with several handler threads failing
+ * at once, as happens during a CPT outage. Rows from concurrent threads are
+ * group committed, with BATCH every group is forced to disk.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(8)
+@State(Scope.Benchmark)
+public class FailureFileBenchmark {
+
+    @Param({"NONE", "BATCH"})
+    public String fsyncPolicy;
+
+    private CPTFileServiceImpl cptFileService;
+    private File failureFile;
+    private String postBody;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        failureFile = File.createTempFile("cpt_post_failures", ".tsv");
+        cptFileService = new CPTFileServiceImpl();
+        BenchmarkSupport.setField(cptFileService, "filePath", failureFile.getAbsolutePath());
+        BenchmarkSupport.setField(cptFileService, "FAILURE_LOG_FSYNC", FsyncPolicy.valueOf(fsyncPolicy));
+        BenchmarkSupport.setField(cptFileService, "FAILURE_LOG_FSYNC_INTERVAL_MS", 1000L);
+        // no rotation, the benchmark measures appends only
+        BenchmarkSupport.setField(cptFileService, "FAILURE_LOG_MAX_SIZE", 0L);
+        BenchmarkSupport.setField(cptFileService, "FAILURE_LOG_ROTATE_INTERVAL_MS", 0L);
+        postBody = new String(RecordFixtures.requestRecord(1024), StandardCharsets.UTF_8);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        cptFileService.closeFailureLog();
+        failureFile.delete();
+        new File(failureFile.getAbsolutePath() + ".idx").delete();
+    }
+
+    @Benchmark
+    public void saveCPTPostFailure() throws Exception {
+        cptFileService.saveCPTPostFailure("500 INTERNAL_SERVER_ERROR", postBody);
+    }
+}
@@ -0,0 +1,70 @@
+package org.mskcc.smile.cpt_gateway.benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.mskcc.smile.cpt_gateway.benchmarks.PostBodyBenchmark.BlackholeOutputStream;
+import org.mskcc.smile.cpt_gateway.service.util.CPTPostBody;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Request post bodies gzipped while streaming, as with cpt.gzip_destinations
+ * set, next to the same body written uncompressed. The compressed size is
+ * printed at setup, to weigh the cpu time against the bytes saved on the
+ * wire.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class GzipPostBodyBenchmark {
+
+    @Param({"100KB", "5MB"})
+    public String recordSize;
+
+    @Param({"1", "6"})
+    public int gzipLevel;
+
+    private byte[] requestRecord;
+
+    @Setup
+    public void setup() throws Exception {
+        requestRecord = RecordFixtures.requestRecord(RecordFixtures.parseSize(recordSize));
+        CPTPostBody postBody = CPTPostBody.forRequest(RecordFixtures.IGO_REQUEST_ID, requestRecord);
+        long uncompressed = postBody.contentLength();
+        long compressed = postBody.setGzipLevel(gzipLevel).toGzipByteArray().length;
+        System.out.println("\nbody: " + uncompressed + " bytes, gzipped: " + compressed + " bytes ("
+                           + (100 * compressed / uncompressed) + "%)");
+    }
+
+    @Benchmark
+    public void uncompressed(Blackhole blackhole) throws IOException {
+        CPTPostBody.forRequest(RecordFixtures.IGO_REQUEST_ID, requestRecord)
+            .writeTo(new BlackholeOutputStream(blackhole));
+    }
+
+    @Benchmark
+    public void gzipStreamed(Blackhole blackhole) throws IOException {
+        CPTPostBody.forRequest(RecordFixtures.IGO_REQUEST_ID, requestRecord).setGzipLevel(gzipLevel)
+            .writeGzipTo(new BlackholeOutputStream(blackhole));
+    }
+
+    @Benchmark
+    public byte[] gzipByteArray() throws IOException {
+        // what the async client engine sends
+        return CPTPostBody.forRequest(RecordFixtures.IGO_REQUEST_ID, requestRecord).setGzipLevel(gzipLevel)
+            .toGzipByteArray();
+    }
+}
@@ -0,0 +1,65 @@
+package org.mskcc.smile.cpt_gateway.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import org.mskcc.smile.cpt_gateway.service.util.CPTRecordIdExtractor;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Entity id lookup as done by CPTServiceImpl.getEntityId for each destination.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class IdExtractionBenchmark {
+
+    @Param({"1KB", "100KB", "5MB"})
+    public String recordSize;
+
+    private byte[] requestRecord;
+    private byte[] sampleRecord;
+    private byte[] statusRecord;
+
+    @Setup
+    public void setup() throws Exception {
+        requestRecord = RecordFixtures.requestRecord(RecordFixtures.parseSize(recordSize));
+        sampleRecord = RecordFixtures.sampleRecord(RecordFixtures.parseSize(recordSize));
+        statusRecord = RecordFixtures.statusRecord();
+    }
+
+    @Benchmark
+    public String requestId() {
+        return CPTRecordIdExtractor.extract(requestRecord, CPTRecordIdExtractor.IGO_REQUEST_ID);
+    }
+
+    @Benchmark
+    public String sampleId() {
+        return CPTRecordIdExtractor.extract(sampleRecord, CPTRecordIdExtractor.IGO_SAMPLE_ID);
+    }
+
+    @Benchmark
+    public String[] statusIds() {
+        return CPTRecordIdExtractor.extract(statusRecord, CPTRecordIdExtractor.IGO_REQUEST_TRACKER_ID,
+                                            CPTRecordIdExtractor.IGO_REQUEST_ID);
+    }
+
+    /**
+     * Worst case, the field is not at the top level so the whole record is scanned.
+     */
+    @Benchmark
+    public String missingField() {
+        return CPTRecordIdExtractor.extract(requestRecord, CPTRecordIdExtractor.IGO_SAMPLE_ID);
+    }
+}
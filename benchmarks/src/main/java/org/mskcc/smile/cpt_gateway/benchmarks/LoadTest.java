@@ -0,0 +1,441 @@
+package org.mskcc.smile.cpt_gateway.benchmarks;
+
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Queue;
+import java.util.SplittableRandom;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.locks.LockSupport;
+import org.mskcc.smile.cpt_gateway.model.CPTRecord;
+import org.mskcc.smile.cpt_gateway.service.CPTFileService;
+import org.mskcc.smile.cpt_gateway.service.impl.CPTAsyncServiceImpl;
+import org.mskcc.smile.cpt_gateway.service.impl.CPTFileServiceImpl;
+import org.mskcc.smile.cpt_gateway.service.impl.CPTMetricsEndpoint;
+import org.mskcc.smile.cpt_gateway.service.impl.CPTServiceImpl;
+import org.mskcc.smile.cpt_gateway.service.impl.CPTServiceImpl.CPTRecordDest;
+import org.mskcc.smile.cpt_gateway.service.impl.MessageHandlingServiceImpl;
+import org.mskcc.smile.cpt_gateway.service.util.CPTLatencyHistogram;
+
+/**
+ * End to end load test of the gateway: synthetic SMILE records are published
+ * at a fixed rate through an in-process gateway into the real message
+ * handling service, which posts them to a local mock CPT server. Reports
+ * sustained throughput, publish to post latency, heap usage and failure file
+ * volume. Any gateway property can be set as --key=value, e.g.
+ * --num.update_sample_handler_threads=8, or read from --properties=&lt;file&gt;.
+ *
+ * <p>Latency is matched per entity and destination in publish order, so it
+ * is only exact with messaging.update_coalesce_debounce_ms and
+ * cpt.dedupe_enabled left off, as they drop records on purpose.
+ */
+public final class LoadTest {
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    private enum Kind {
+        PROMOTED_REQUEST("cmo.promoted_request_topic", "cpt.promoted_request_record_url",
+                         CPTRecordDest.PROMOTED_REQUEST_RECORD_DEST),
+        NEW_REQUEST("cmo.new_request_topic", "cpt.new_request_record_url",
+                    CPTRecordDest.NEW_REQUEST_RECORD_DEST),
+        UPDATE_REQUEST("cmo.update_request_topic", "cpt.update_request_record_url",
+                       CPTRecordDest.UPDATE_REQUEST_RECORD_DEST),
+        UPDATE_SAMPLE("cmo.update_sample_topic", "cpt.update_sample_record_url",
+                      CPTRecordDest.UPDATE_SAMPLE_RECORD_DEST),
+        REQUEST_STATUS("igo.request_status_topic", "cpt.sample_status_record_url",
+                       CPTRecordDest.SAMPLE_STATUS_RECORD_DEST);
+
+        private final String topicProperty;
+        private final String urlProperty;
+        private final CPTRecordDest recordDest;
+
+        Kind(String topicProperty, String urlProperty, CPTRecordDest recordDest) {
+            this.topicProperty = topicProperty;
+            this.urlProperty = urlProperty;
+            this.recordDest = recordDest;
+        }
+
+        private String getPath() {
+            return "/records/" + name().toLowerCase();
+        }
+
+        private static Kind forRecordDest(CPTRecordDest recordDest) {
+            for (Kind kind : values()) {
+                if (kind.recordDest == recordDest) {
+                    return kind;
+                }
+            }
+            throw new IllegalArgumentException("No record kind for " + recordDest);
+        }
+    }
+
+    // publish times of records not yet posted or failed, per destination path and posted id
+    private final Map<String, Queue<Long>> pendingPublishNanos = new ConcurrentHashMap<>();
+    private final CPTLatencyHistogram latency = new CPTLatencyHistogram();
+    private final LongAdder published = new LongAdder();
+    private final LongAdder posted = new LongAdder();
+    private final LongAdder postedInWindow = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final AtomicLong peakHeapUsed = new AtomicLong();
+    private volatile long measureStartNanos = Long.MAX_VALUE;
+    private volatile long measureEndNanos = Long.MAX_VALUE;
+
+    public static void main(String[] args) throws Exception {
+        new LoadTest().run(new LoadTestProperties(defaults(), args));
+        System.exit(0);
+    }
+
+    private static Properties defaults() throws IOException {
+        Properties defaults = new Properties();
+        for (Kind kind : Kind.values()) {
+            defaults.setProperty(kind.topicProperty, "loadtest." + kind.name().toLowerCase());
+            defaults.setProperty("num." + kind.name().toLowerCase() + "_handler_threads", "4");
+        }
+        defaults.setProperty("cpt.authorization_token", "loadtest");
+        defaults.setProperty("cpt.post_timeouts", "30000");
+        defaults.setProperty("cpt.client_engine", "blocking");
+        Path failureFile = Files.createTempDirectory("cpt-loadtest").resolve("post_failures.txt");
+        defaults.setProperty("cpt.cmo_project_request_post_failures_filepath", failureFile.toString());
+        defaults.setProperty("loadtest.rate", "200");
+        defaults.setProperty("loadtest.warmup_s", "10");
+        defaults.setProperty("loadtest.duration_s", "60");
+        defaults.setProperty("loadtest.drain_s", "60");
+        defaults.setProperty("loadtest.entities", "1000");
+        defaults.setProperty("loadtest.sizes", "1KB:80,100KB:18,5MB:2");
+        defaults.setProperty("loadtest.mix",
+                             "new_request:20,update_request:20,update_sample:50,request_status:10");
+        defaults.setProperty("loadtest.fixture_memory_mb", "256");
+        defaults.setProperty("loadtest.seed", "1");
+        defaults.setProperty("loadtest.latency_ms", "50");
+        defaults.setProperty("loadtest.latency_jitter_ms", "50");
+        defaults.setProperty("loadtest.error_rate", "0");
+        defaults.setProperty("loadtest.rate_limit", "0");
+        defaults.setProperty("loadtest.server_threads", "64");
+        return defaults;
+    }
+
+    private void run(LoadTestProperties properties) throws Exception {
+        MockCPTServer server = new MockCPTServer(properties.getInt("loadtest.server_threads"),
+                properties.getLong("loadtest.latency_ms"), properties.getLong("loadtest.latency_jitter_ms"),
+                properties.getDouble("loadtest.error_rate"), properties.getInt("loadtest.rate_limit"));
+        server.setRecordListener(this::onPosted);
+        server.start();
+        properties.putIfAbsent("cpt.session_token_url", server.getBaseUrl() + "/sessions");
+        for (Kind kind : Kind.values()) {
+            properties.putIfAbsent(kind.urlProperty, server.getBaseUrl() + kind.getPath());
+        }
+
+        CPTFileServiceImpl fileService = new CPTFileServiceImpl();
+        properties.inject(fileService);
+        boolean async = "async".equals(properties.get("cpt.client_engine"));
+        CPTServiceImpl cptService = async ? new CPTAsyncServiceImpl() : new CPTServiceImpl();
+        properties.inject(cptService);
+        cptService.initializeHttpClient();
+        if (async) {
+            ((CPTAsyncServiceImpl) cptService).initializeAsyncClient();
+        }
+        CPTMetricsEndpoint metricsEndpoint = new CPTMetricsEndpoint();
+        properties.inject(metricsEndpoint);
+        metricsEndpoint.start();
+        MessageHandlingServiceImpl messageHandlingService = new MessageHandlingServiceImpl();
+        properties.inject(messageHandlingService);
+        BenchmarkSupport.setField(messageHandlingService, "cptService", cptService);
+        BenchmarkSupport.setField(messageHandlingService, "cptFileService",
+                                  new CountingFileService(fileService));
+        SyntheticGateway gateway = new SyntheticGateway();
+        messageHandlingService.initialize(gateway.getGateway());
+
+        System.out.println("Generating fixtures");
+        Publisher publisher = new Publisher(properties, gateway);
+        System.out.println("Mock CPT server at " + server.getBaseUrl() + ", failure file "
+                           + properties.get("cpt.cmo_project_request_post_failures_filepath"));
+
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        long gcCountBefore = getGcCount();
+        long gcMillisBefore = getGcMillis();
+        ScheduledExecutorService monitor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "loadtest-monitor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        monitor.scheduleAtFixedRate(() -> peakHeapUsed.accumulateAndGet(memory.getHeapMemoryUsage().getUsed(),
+                                                                         Math::max), 0, 1, TimeUnit.SECONDS);
+        long startNanos = System.nanoTime();
+        monitor.scheduleAtFixedRate(() -> System.out.printf(
+                "%5ds published %d, posted %d, failed %d, heap used %d MB%n",
+                TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - startNanos), published.sum(), posted.sum(),
+                failed.sum(), memory.getHeapMemoryUsage().getUsed() >> 20), 5, 5, TimeUnit.SECONDS);
+
+        long warmupNanos = TimeUnit.SECONDS.toNanos(properties.getLong("loadtest.warmup_s"));
+        long durationNanos = TimeUnit.SECONDS.toNanos(properties.getLong("loadtest.duration_s"));
+        measureStartNanos = startNanos + warmupNanos;
+        measureEndNanos = measureStartNanos + durationNanos;
+        long publishedInWindow = publisher.publish(startNanos, measureStartNanos, measureEndNanos);
+
+        long drainDeadline = System.nanoTime()
+            + TimeUnit.SECONDS.toNanos(properties.getLong("loadtest.drain_s"));
+        while (posted.sum() + failed.sum() < published.sum() && System.nanoTime() < drainDeadline) {
+            TimeUnit.MILLISECONDS.sleep(100);
+        }
+        long unfinished = published.sum() - posted.sum() - failed.sum();
+        messageHandlingService.shutdown();
+        if (async) {
+            ((CPTAsyncServiceImpl) cptService).shutdownAsyncClient();
+        }
+        cptService.shutdownHttpClient();
+        fileService.closeFailureLog();
+        metricsEndpoint.stop();
+        monitor.shutdownNow();
+        server.stop();
+
+        double seconds = durationNanos / 1e9;
+        System.out.println();
+        System.out.printf("Published %d records, %.1f/s over the measured %.0f s%n", publishedInWindow,
+                          publishedInWindow / seconds, seconds);
+        System.out.printf("Posted %.1f/s over the measured %.0f s, %d records not finished after draining%n",
+                          postedInWindow.sum() / seconds, seconds, unfinished);
+        long[] snapshot = latency.snapshot();
+        StringBuilder quantiles = new StringBuilder("Publish to post latency:");
+        for (double quantile : QUANTILES) {
+            long micros = CPTLatencyHistogram.getQuantileMicros(snapshot, quantile);
+            quantiles.append(String.format(" p%s %.1f ms", quantile * 100, micros / 1000.0));
+        }
+        System.out.println(quantiles);
+        System.out.printf("Mock CPT server: %d accepted, %d failed, %d throttled, %d MB received, "
+                          + "%d sessions%n",
+                          server.getAccepted(), server.getFailed(), server.getThrottled(),
+                          server.getBytesReceived() >> 20, server.getTokensIssued());
+        System.out.printf("Heap: peak used %d MB of %d MB max, %d collections taking %d ms%n",
+                          peakHeapUsed.get() >> 20, memory.getHeapMemoryUsage().getMax() >> 20,
+                          getGcCount() - gcCountBefore, getGcMillis() - gcMillisBefore);
+        long failureFileBytes =
+            getFailureFileBytes(properties.get("cpt.cmo_project_request_post_failures_filepath"));
+        System.out.printf("Failure file: %d records, %d bytes on disk%n", failed.sum(), failureFileBytes);
+    }
+
+    private void onPosted(String path, byte[] body) {
+        long now = System.nanoTime();
+        posted.increment();
+        if (now >= measureStartNanos && now < measureEndNanos) {
+            postedInWindow.increment();
+        }
+        recordLatency(path + "/" + getPostedId(body), now);
+    }
+
+    private void recordLatency(String key, long now) {
+        Queue<Long> pending = pendingPublishNanos.get(key);
+        Long publishNanos = (pending == null) ? null : pending.poll();
+        if (publishNanos != null && publishNanos >= measureStartNanos && publishNanos < measureEndNanos) {
+            latency.recordNanos(now - publishNanos);
+        }
+    }
+
+    /**
+     * Id of a post body, the first field value of {"fieldData":{"projectBatchNumber": "..."
+     * or {"fieldData":{"igoSampleId": "...
+     */
+    private static String getPostedId(byte[] body) {
+        String head = new String(body, 0, Math.min(body.length, 256), StandardCharsets.UTF_8);
+        int start = head.indexOf("\": \"") + 4;
+        return head.substring(start, head.indexOf('"', start));
+    }
+
+    private static long getGcCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, collector.getCollectionCount());
+        }
+        return count;
+    }
+
+    private static long getGcMillis() {
+        long millis = 0;
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            millis += Math.max(0, collector.getCollectionTime());
+        }
+        return millis;
+    }
+
+    /**
+     * Size of the failure file with its rotated files and indexes.
+     */
+    private static long getFailureFileBytes(String filePath) throws IOException {
+        Path failureFile = Paths.get(filePath).toAbsolutePath();
+        long bytes = 0;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(failureFile.getParent(),
+                failureFile.getFileName() + "*")) {
+            for (Path file : files) {
+                bytes += Files.size(file);
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Publishes fixtures chosen by the mix and size weights at a fixed rate.
+     * Fixtures are generated up front, at most fixture_memory_mb of them,
+     * each for one of the first loadtest.entities entity ids.
+     */
+    private final class Publisher {
+        private final SyntheticGateway gateway;
+        private final SplittableRandom random;
+        private final long intervalNanos;
+        private final String[] topics = new String[Kind.values().length];
+        private final int[] kindWeights = new int[Kind.values().length];
+        private final int[] sizes;
+        private final int[] sizeWeights;
+        // kind, size, entity
+        private final byte[][][][] fixtures = new byte[Kind.values().length][][][];
+        private final String[][][] fixtureIds = new String[Kind.values().length][][];
+
+        private Publisher(LoadTestProperties properties, SyntheticGateway gateway) throws Exception {
+            this.gateway = gateway;
+            this.random = new SplittableRandom(properties.getLong("loadtest.seed"));
+            this.intervalNanos = (long) (1e9 / properties.getDouble("loadtest.rate"));
+            for (String entry : properties.get("loadtest.mix").split(",")) {
+                String[] kindAndWeight = entry.trim().split(":");
+                kindWeights[Kind.valueOf(kindAndWeight[0].toUpperCase()).ordinal()] =
+                    Integer.parseInt(kindAndWeight[1]);
+            }
+            String[] sizeEntries = properties.get("loadtest.sizes").split(",");
+            sizes = new int[sizeEntries.length];
+            sizeWeights = new int[sizeEntries.length];
+            for (int i = 0; i < sizeEntries.length; i++) {
+                String[] sizeAndWeight = sizeEntries[i].trim().split(":");
+                sizes[i] = RecordFixtures.parseSize(sizeAndWeight[0]);
+                sizeWeights[i] = Integer.parseInt(sizeAndWeight[1]);
+            }
+            long budget = properties.getLong("loadtest.fixture_memory_mb") << 20;
+            int entities = properties.getInt("loadtest.entities");
+            long pools = 0;
+            for (Kind kind : Kind.values()) {
+                pools += (kindWeights[kind.ordinal()] > 0) ? sizes.length : 0;
+            }
+            for (Kind kind : Kind.values()) {
+                topics[kind.ordinal()] = properties.get(kind.topicProperty);
+                fixtures[kind.ordinal()] = new byte[sizes.length][][];
+                fixtureIds[kind.ordinal()] = new String[sizes.length][];
+                for (int i = 0; i < sizes.length; i++) {
+                    int count = (kindWeights[kind.ordinal()] == 0 || sizeWeights[i] == 0) ? 0
+                        : (int) Math.max(1, Math.min(entities, budget / pools / sizes[i]));
+                    fixtures[kind.ordinal()][i] = new byte[count][];
+                    fixtureIds[kind.ordinal()][i] = new String[count];
+                    for (int entity = 0; entity < count; entity++) {
+                        String id = "LT" + entity + ((kind == Kind.UPDATE_SAMPLE) ? "_1" : "");
+                        fixtureIds[kind.ordinal()][i][entity] = id;
+                        fixtures[kind.ordinal()][i][entity] = newFixture(kind, sizes[i], id);
+                    }
+                }
+            }
+        }
+
+        private byte[] newFixture(Kind kind, int size, String id) throws Exception {
+            switch (kind) {
+                case UPDATE_SAMPLE:
+                    return RecordFixtures.sampleRecord(size, id);
+                case REQUEST_STATUS:
+                    // posted under the igo request id, ordered by the request tracker id
+                    return RecordFixtures.statusRecord(id, id);
+                default:
+                    return RecordFixtures.requestRecord(size, id);
+            }
+        }
+
+        /**
+         * Publishes until endNanos and returns the number of records
+         * published from measureStartNanos on.
+         */
+        private long publish(long startNanos, long measureStartNanos, long endNanos) {
+            long publishedInWindow = 0;
+            for (long i = 0; ; i++) {
+                long dueNanos = startNanos + i * intervalNanos;
+                if (dueNanos >= endNanos) {
+                    return publishedInWindow;
+                }
+                long now = System.nanoTime();
+                if (dueNanos > now) {
+                    LockSupport.parkNanos(dueNanos - now);
+                }
+                Kind kind = Kind.values()[pick(kindWeights)];
+                int size = (kind == Kind.REQUEST_STATUS) ? 0 : pick(sizeWeights);
+                byte[][] pool = fixtures[kind.ordinal()][size];
+                int entity = random.nextInt(pool.length);
+                long publishNanos = System.nanoTime();
+                String key = kind.getPath() + "/" + fixtureIds[kind.ordinal()][size][entity];
+                pendingPublishNanos.computeIfAbsent(key, k -> new ConcurrentLinkedQueue<>())
+                    .add(publishNanos);
+                published.increment();
+                if (publishNanos >= measureStartNanos) {
+                    publishedInWindow++;
+                }
+                gateway.deliver(topics[kind.ordinal()], pool[entity]);
+            }
+        }
+
+        private int pick(int[] weights) {
+            int total = 0;
+            for (int weight : weights) {
+                total += weight;
+            }
+            int value = random.nextInt(total);
+            for (int i = 0; i < weights.length; i++) {
+                value -= weights[i];
+                if (value < 0) {
+                    return i;
+                }
+            }
+            throw new IllegalStateException("No weights");
+        }
+    }
+
+    /**
+     * Counts records saved to the failure file and drops their publish time,
+     * so the next record of their entity is not matched with it.
+     */
+    private final class CountingFileService implements CPTFileService {
+        private final CPTFileService delegate;
+
+        private CountingFileService(CPTFileService delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public void saveCPTPostFailure(String reason, String postContent) throws IOException {
+            delegate.saveCPTPostFailure(reason, postContent);
+            failed.increment();
+        }
+
+        @Override
+        public void saveCPTPostFailure(String reason, CPTRecord record) throws IOException {
+            delegate.saveCPTPostFailure(reason, record);
+            failed.increment();
+            if (record.getEntityId() != null) {
+                Kind kind = Kind.forRecordDest(record.getRecordDest());
+                String key = kind.getPath() + "/" + record.getEntityId();
+                Queue<Long> pending = pendingPublishNanos.get(key);
+                if (pending != null) {
+                    pending.poll();
+                }
+            }
+        }
+
+        @Override
+        public List<String> findCPTPostFailures(String entityId) throws IOException {
+            return delegate.findCPTPostFailures(entityId);
+        }
+    }
+}
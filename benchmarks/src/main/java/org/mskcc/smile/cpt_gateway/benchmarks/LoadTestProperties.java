@@ -0,0 +1,89 @@
+package org.mskcc.smile.cpt_gateway.benchmarks;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Properties;
+import org.springframework.beans.SimpleTypeConverter;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.util.ReflectionUtils;
+
+/**
+ * Properties of a load test run: harness defaults, overridden by an optional
+ * --properties=&lt;file&gt;, overridden by --key=value arguments. Gateway
+ * services are configured from them through their @Value fields, so every
+ * property of application.properties can be tuned from the command line.
+ */
+final class LoadTestProperties {
+    private final Properties properties = new Properties();
+    private final SimpleTypeConverter converter = new SimpleTypeConverter();
+
+    LoadTestProperties(Properties defaults, String[] args) throws IOException {
+        properties.putAll(defaults);
+        for (String arg : args) {
+            if (arg.startsWith("--properties=")) {
+                String file = arg.substring("--properties=".length());
+                try (InputStream in = Files.newInputStream(Paths.get(file))) {
+                    properties.load(in);
+                }
+            }
+        }
+        for (String arg : args) {
+            int separator = arg.indexOf('=');
+            if (!arg.startsWith("--") || separator < 0) {
+                throw new IllegalArgumentException("Expected --key=value, got: " + arg);
+            }
+            properties.setProperty(arg.substring(2, separator), arg.substring(separator + 1));
+        }
+    }
+
+    /**
+     * Sets a default known only once the run has started, e.g. the url of
+     * the mock CPT server.
+     */
+    void putIfAbsent(String key, String value) {
+        properties.putIfAbsent(key, value);
+    }
+
+    String get(String key) {
+        String value = properties.getProperty(key);
+        if (value == null) {
+            throw new IllegalArgumentException("Missing property " + key);
+        }
+        return value.trim();
+    }
+
+    int getInt(String key) {
+        return Integer.parseInt(get(key));
+    }
+
+    long getLong(String key) {
+        return Long.parseLong(get(key));
+    }
+
+    double getDouble(String key) {
+        return Double.parseDouble(get(key));
+    }
+
+    /**
+     * Sets the @Value fields of a service, as Spring would.
+     */
+    void inject(Object target) {
+        ReflectionUtils.doWithFields(target.getClass(), field -> {
+            String expression = field.getAnnotation(Value.class).value();
+            // ${key} or ${key:default}
+            String placeholder = expression.substring(2, expression.length() - 1);
+            int separator = placeholder.indexOf(':');
+            String key = (separator < 0) ? placeholder : placeholder.substring(0, separator);
+            String defaultValue = (separator < 0) ? null : placeholder.substring(separator + 1);
+            String value = properties.getProperty(key, defaultValue);
+            if (value == null) {
+                throw new IllegalArgumentException("Missing property " + key + " for " + target.getClass());
+            }
+            ReflectionUtils.makeAccessible(field);
+            Object converted = converter.convertIfNecessary(value.trim(), field.getType());
+            ReflectionUtils.setField(field, target, converted);
+        }, field -> field.isAnnotationPresent(Value.class));
+    }
+}
@@ -0,0 +1,222 @@
+package org.mskcc.smile.cpt_gateway.benchmarks;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Local stand-in for the FileMaker data api CPT posts go to. Hands out
+ * session tokens at /sessions and accepts records at /records/&lt;name&gt;
+ * after a configurable latency, failing a share of them with a 500 and
+ * answering 429 to posts beyond a rate limit.
+ */
+class MockCPTServer {
+    private static final byte[] TOKEN_RESPONSE_PREFIX = "{\"response\":{\"token\":\"".getBytes(
+            StandardCharsets.UTF_8);
+    private static final byte[] TOKEN_RESPONSE_SUFFIX =
+        "\"},\"messages\":[{\"code\":\"0\",\"message\":\"OK\"}]}".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] RECORD_RESPONSE = ("{\"response\":{\"recordId\":\"1\",\"modId\":\"0\"},"
+            + "\"messages\":[{\"code\":\"0\",\"message\":\"OK\"}]}").getBytes(StandardCharsets.UTF_8);
+    private static final byte[] ERROR_RESPONSE =
+        "{\"messages\":[{\"code\":\"500\",\"message\":\"Mock error\"}]}".getBytes(StandardCharsets.UTF_8);
+
+    interface RecordListener {
+        /**
+         * Called for every accepted record, before the response is sent.
+         */
+        void onRecord(String path, byte[] body);
+    }
+
+    private final long latencyMillis;
+    private final long latencyJitterMillis;
+    private final double errorRate;
+    private final int rateLimit;
+    private final ExecutorService executor;
+    private final AtomicInteger tokens = new AtomicInteger();
+    private final LongAdder accepted = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder throttled = new LongAdder();
+    private final LongAdder bytesReceived = new LongAdder();
+    private HttpServer server;
+    private RecordListener recordListener = (path, body) -> { };
+    private long windowStart;
+    private int windowPosts;
+
+    /**
+     * A rateLimit of 0 accepts any number of posts per second.
+     */
+    MockCPTServer(int threads, long latencyMillis, long latencyJitterMillis, double errorRate,
+                  int rateLimit) {
+        this.latencyMillis = latencyMillis;
+        this.latencyJitterMillis = latencyJitterMillis;
+        this.errorRate = errorRate;
+        this.rateLimit = rateLimit;
+        this.windowStart = System.nanoTime();
+        AtomicInteger threadCount = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "mock-cpt-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    void setRecordListener(RecordListener recordListener) {
+        this.recordListener = recordListener;
+    }
+
+    void start() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 1024);
+        server.createContext("/sessions", this::handleSession);
+        server.createContext("/records/", this::handleRecord);
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    String getBaseUrl() {
+        return "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    long getAccepted() {
+        return accepted.sum();
+    }
+
+    long getFailed() {
+        return failed.sum();
+    }
+
+    long getThrottled() {
+        return throttled.sum();
+    }
+
+    long getBytesReceived() {
+        return bytesReceived.sum();
+    }
+
+    int getTokensIssued() {
+        return tokens.get();
+    }
+
+    private void handleSession(HttpExchange exchange) throws IOException {
+        try {
+            readBody(exchange);
+            if ("DELETE".equals(exchange.getRequestMethod())) {
+                send(exchange, 200, RECORD_RESPONSE);
+                return;
+            }
+            byte[] token = ("mock-token-" + tokens.incrementAndGet()).getBytes(StandardCharsets.UTF_8);
+            ByteArrayOutputStream response = new ByteArrayOutputStream();
+            response.write(TOKEN_RESPONSE_PREFIX);
+            response.write(token);
+            response.write(TOKEN_RESPONSE_SUFFIX);
+            send(exchange, 200, response.toByteArray());
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void handleRecord(HttpExchange exchange) throws IOException {
+        try {
+            byte[] body = readBody(exchange);
+            if (!tryAcquire()) {
+                throttled.increment();
+                send(exchange, 429, ERROR_RESPONSE);
+                return;
+            }
+            long latency = latencyMillis + ((latencyJitterMillis > 0)
+                ? ThreadLocalRandom.current().nextLong(latencyJitterMillis + 1) : 0);
+            if (latency > 0) {
+                TimeUnit.MILLISECONDS.sleep(latency);
+            }
+            if (errorRate > 0 && ThreadLocalRandom.current().nextDouble() < errorRate) {
+                failed.increment();
+                send(exchange, 500, ERROR_RESPONSE);
+                return;
+            }
+            accepted.increment();
+            recordListener.onRecord(exchange.getRequestURI().getPath(), body);
+            send(exchange, 200, RECORD_RESPONSE);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private synchronized boolean tryAcquire() {
+        if (rateLimit <= 0) {
+            return true;
+        }
+        long now = System.nanoTime();
+        if (now - windowStart >= TimeUnit.SECONDS.toNanos(1)) {
+            windowStart = now;
+            windowPosts = 0;
+        }
+        return ++windowPosts <= rateLimit;
+    }
+
+    private byte[] readBody(HttpExchange exchange) throws IOException {
+        CountingInputStream counted = new CountingInputStream(exchange.getRequestBody());
+        InputStream in = "gzip".equalsIgnoreCase(exchange.getRequestHeaders().getFirst("Content-Encoding"))
+            ? new GZIPInputStream(counted, 8192) : counted;
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) > 0) {
+            body.write(buffer, 0, read);
+        }
+        bytesReceived.add(counted.count);
+        return body.toByteArray();
+    }
+
+    private static void send(HttpExchange exchange, int status, byte[] body) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    private static class CountingInputStream extends InputStream {
+        private final InputStream in;
+        private long count;
+
+        CountingInputStream(InputStream in) {
+            this.in = in;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = in.read();
+            if (b >= 0) {
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = in.read(b, off, len);
+            if (read > 0) {
+                count += read;
+            }
+            return read;
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package org.mskcc.smile.cpt_gateway.benchmarks;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+import org.mskcc.smile.cpt_gateway.service.util.CPTPostBody;
+import org.mskcc.smile.cpt_gateway.service.util.CPTRecordIdExtractor;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Post body building as done by CPTServiceImpl.getRequestPostBody and
+ * getSamplePostBody, written into a sink the way the request entity is.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PostBodyBenchmark {
+
+    @Param({"1KB", "100KB", "5MB"})
+    public String recordSize;
+
+    private byte[] requestRecord;
+    private byte[] sampleRecord;
+
+    @Setup
+    public void setup() throws Exception {
+        requestRecord = RecordFixtures.requestRecord(RecordFixtures.parseSize(recordSize));
+        sampleRecord = RecordFixtures.sampleRecord(RecordFixtures.parseSize(recordSize));
+    }
+
+    @Benchmark
+    public void requestPostBody(Blackhole blackhole) throws IOException {
+        String igoRequestId =
+            CPTRecordIdExtractor.extract(requestRecord, CPTRecordIdExtractor.IGO_REQUEST_ID);
+        CPTPostBody.forRequest(igoRequestId, requestRecord).writeTo(new BlackholeOutputStream(blackhole));
+    }
+
+    @Benchmark
+    public void samplePostBody(Blackhole blackhole) throws IOException {
+        String igoSampleId =
+            CPTRecordIdExtractor.extract(sampleRecord, CPTRecordIdExtractor.IGO_SAMPLE_ID);
+        CPTPostBody.forSample(igoSampleId, sampleRecord).writeTo(new BlackholeOutputStream(blackhole));
+    }
+
+    @Benchmark
+    public long requestContentLength() {
+        return CPTPostBody.forRequest(RecordFixtures.IGO_REQUEST_ID, requestRecord).contentLength();
+    }
+
+    static class BlackholeOutputStream extends OutputStream {
+        private final Blackhole blackhole;
+
+        BlackholeOutputStream(Blackhole blackhole) {
+            this.blackhole = blackhole;
+        }
+
+        @Override
+        public void write(int b) {
+            blackhole.consume(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            blackhole.consume(b);
+            blackhole.consume(len);
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package org.mskcc.smile.cpt_gateway.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.mskcc.smile.cpt_gateway.model.CPTRecord;
+import org.mskcc.smile.cpt_gateway.service.CPTService;
+import org.mskcc.smile.cpt_gateway.service.impl.MessageHandlingServiceImpl;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput of records handed from the subscriber side of
+ * MessageHandlingServiceImpl to its CPTHandler threads, with a CPT service
+ * that returns immediately so only the handoff is measured.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class QueueHandoffBenchmark {
+
+    private static final int BATCH_SIZE = 1000;
+    // distinct requests so the records spread over the handler lanes
+    private static final int NUM_REQUESTS = 64;
+
+    @Param({"1", "4"})
+    public int handlerThreads;
+
+    private MessageHandlingServiceImpl messageHandlingService;
+    private CountingCPTService cptService;
+    private byte[][] records;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        records = new byte[NUM_REQUESTS][];
+        for (int i = 0; i < NUM_REQUESTS; i++) {
+            records[i] = RecordFixtures.requestRecord(1024, "12345_" + i);
+        }
+        cptService = new CountingCPTService();
+        messageHandlingService = BenchmarkSupport.newMessageHandlingService(cptService);
+        BenchmarkSupport.setField(messageHandlingService, "NUM_PROMOTED_REQUEST_HANDLERS", handlerThreads);
+        messageHandlingService.initialize(BenchmarkSupport.noopGateway());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        messageHandlingService.shutdown();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public void promotedRequestHandoff() throws Exception {
+        long target = cptService.pushed.get() + BATCH_SIZE;
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            messageHandlingService.promotedRequestHandler(records[i % NUM_REQUESTS]);
+        }
+        while (cptService.pushed.get() < target) {
+            Thread.yield();
+        }
+    }
+
+    static class CountingCPTService implements CPTService {
+        final AtomicLong pushed = new AtomicLong();
+
+        @Override
+        public void pushRecord(CPTRecord record) {
+            pushed.incrementAndGet();
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package org.mskcc.smile.cpt_gateway.benchmarks;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Synthetic SMILE records shaped like the ones published on the cmo topics,
+ * encoded the same way they arrive over NATS (a JSON string literal holding
+ * the record JSON).
+ */
+public final class RecordFixtures {
+
+    public static final String IGO_REQUEST_ID = "12345_B";
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private RecordFixtures() {}
+
+    /**
+     * Parses fixture sizes such as 1KB, 100KB or 5MB.
+     */
+    public static int parseSize(String size) {
+        String value = size.trim().toUpperCase();
+        if (value.endsWith("MB")) {
+            return Integer.parseInt(value.substring(0, value.length() - 2)) * 1024 * 1024;
+        }
+        if (value.endsWith("KB")) {
+            return Integer.parseInt(value.substring(0, value.length() - 2)) * 1024;
+        }
+        return Integer.parseInt(value);
+    }
+
+    /**
+     * Returns a request record with as many samples as needed to reach the given size.
+     */
+    public static byte[] requestRecord(int targetBytes) throws Exception {
+        return requestRecord(targetBytes, IGO_REQUEST_ID);
+    }
+
+    public static byte[] requestRecord(int targetBytes, String igoRequestId) throws Exception {
+        Map<String, Object> request = new LinkedHashMap<>();
+        request.put("smileRequestId", "7bb3b1a6-3c36-4b67-9d3f-0c2c57b62b8a");
+        request.put("igoRequestId", igoRequestId);
+        request.put("genePanel", "IMPACT505");
+        request.put("projectManagerName", "Doe, Jane");
+        request.put("piEmail", "pi@mskcc.org");
+        request.put("labHeadName", "Smith, John");
+        request.put("labHeadEmail", "labhead@mskcc.org");
+        request.put("investigatorName", "Roe, Richard");
+        request.put("investigatorEmail", "investigator@mskcc.org");
+        request.put("dataAnalystName", "");
+        request.put("otherContactEmails", "contact@mskcc.org");
+        request.put("dataAccessEmails", "");
+        request.put("qcAccessEmails", "qc@mskcc.org");
+        request.put("strand", "Reverse");
+        request.put("libraryType", "HybridCapture");
+        request.put("isCmoRequest", Boolean.TRUE);
+        request.put("bicAnalysis", Boolean.FALSE);
+        request.put("pooledNormals", new ArrayList<>());
+        List<Map<String, Object>> samples = new ArrayList<>();
+        request.put("samples", samples);
+        byte[] record = encode(request);
+        int sampleNumber = 1;
+        while (record.length < targetBytes) {
+            // grow in proportion to the remaining size to keep fixture setup quick
+            int perSample = sampleRecordMap(sampleNumber).toString().length() + 1;
+            int toAdd = Math.max(1, (targetBytes - record.length) / (perSample * 2));
+            for (int i = 0; i < toAdd; i++) {
+                samples.add(sampleRecordMap(sampleNumber++));
+            }
+            record = encode(request);
+        }
+        return record;
+    }
+
+    /**
+     * Returns a sample record padded with qc reports to reach the given size.
+     */
+    public static byte[] sampleRecord(int targetBytes) throws Exception {
+        return sampleRecord(targetBytes, IGO_REQUEST_ID + "_1");
+    }
+
+    public static byte[] sampleRecord(int targetBytes, String igoSampleId) throws Exception {
+        Map<String, Object> sample = sampleRecordMap(1);
+        sample.put("sampleName", igoSampleId);
+        List<Map<String, Object>> qcReports = new ArrayList<>();
+        sample.put("qcReports", qcReports);
+        byte[] record = encode(sample);
+        while (record.length < targetBytes) {
+            // grow in proportion to the remaining size to keep fixture setup quick
+            int toAdd = Math.max(1, (targetBytes - record.length) / 300);
+            for (int i = 0; i < toAdd; i++) {
+                Map<String, Object> qcReport = new LinkedHashMap<>();
+                qcReport.put("qcReportType", "LIBRARY");
+                qcReport.put("comments", "Library yield below threshold, \"rework\" requested");
+                qcReport.put("investigatorDecision", "Continue processing");
+                qcReports.add(qcReport);
+            }
+            record = encode(sample);
+        }
+        return record;
+    }
+
+    public static byte[] statusRecord() throws Exception {
+        return statusRecord(IGO_REQUEST_ID, IGO_REQUEST_ID);
+    }
+
+    /**
+     * Status records are keyed by the request tracker id, requestId.
+     */
+    public static byte[] statusRecord(String requestId, String igoRequestId) throws Exception {
+        Map<String, Object> status = new LinkedHashMap<>();
+        status.put("requestId", requestId);
+        status.put("igoRequestId", igoRequestId);
+        status.put("status", "Completed");
+        status.put("samples", new ArrayList<>());
+        return encode(status);
+    }
+
+    private static Map<String, Object> sampleRecordMap(int sampleNumber) {
+        String igoId = IGO_REQUEST_ID + "_" + sampleNumber;
+        Map<String, Object> sample = new LinkedHashMap<>();
+        sample.put("smileSampleId", "c2a2b7b8-5a55-4f6c-a0c8-" + String.format("%012d", sampleNumber));
+        sample.put("igoRequestId", IGO_REQUEST_ID);
+        sample.put("requestId", IGO_REQUEST_ID);
+        sample.put("sampleName", igoId);
+        sample.put("primaryId", igoId);
+        sample.put("cmoPatientId", "C-" + Integer.toHexString(100000 + sampleNumber).toUpperCase());
+        sample.put("cmoSampleName", "C-" + sampleNumber + "-X001-d01");
+        sample.put("investigatorSampleId", "P-" + sampleNumber + "-T01");
+        sample.put("species", "Human");
+        sample.put("sex", "Female");
+        sample.put("tumorOrNormal", (sampleNumber % 2 == 0) ? "Normal" : "Tumor");
+        sample.put("sampleType", "Primary");
+        sample.put("preservation", "FFPE");
+        sample.put("sampleClass", "Biopsy");
+        sample.put("sampleOrigin", "Block");
+        sample.put("tissueLocation", "Lung");
+        sample.put("baitSet", "IMPACT505_BAITS");
+        sample.put("genePanel", "IMPACT505");
+        sample.put("oncotreeCode", "LUAD");
+        sample.put("collectionYear", "2021");
+        Map<String, Object> libraries = new LinkedHashMap<>();
+        libraries.put("barcodeId", "DUAL_IDT_LIB_" + sampleNumber);
+        libraries.put("captureName", "Pool-" + IGO_REQUEST_ID + "-Tube" + (sampleNumber % 8));
+        libraries.put("libraryVolume", 35.0);
+        libraries.put("libraryConcentrationNgul", 12.5);
+        sample.put("libraries", libraries);
+        return sample;
+    }
+
+    private static byte[] encode(Object record) throws Exception {
+        // smile publishes the record json as a string, which the gateway serializes again
+        return MAPPER.writeValueAsBytes(MAPPER.writeValueAsString(record));
+    }
+}
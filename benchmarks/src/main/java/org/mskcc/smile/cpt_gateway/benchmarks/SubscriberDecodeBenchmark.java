@@ -0,0 +1,61 @@
+package org.mskcc.smile.cpt_gateway.benchmarks;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import org.mskcc.smile.cpt_gateway.service.util.CPTPostBody;
+import org.mskcc.smile.cpt_gateway.service.util.CPTRecordIdExtractor;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Per message work between MessageHandlingServiceImpl receiving a NATS message
+ * and the request entity being written. The string based variant is the
+ * decode, escape and concatenate path the subscribers used before they started
+ * passing the raw payload through, kept here as the baseline.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SubscriberDecodeBenchmark {
+
+    @Param({"1KB", "100KB", "5MB"})
+    public String recordSize;
+
+    private final ObjectMapper mapper = new ObjectMapper();
+    private byte[] messageData;
+
+    @Setup
+    public void setup() throws Exception {
+        messageData = RecordFixtures.requestRecord(RecordFixtures.parseSize(recordSize));
+    }
+
+    @Benchmark
+    public void stringDecodeBaseline(Blackhole blackhole) throws Exception {
+        String request = mapper.readValue(new String(messageData, StandardCharsets.UTF_8), String.class);
+        String escapedRequest = request.replace("\"", "\\\"");
+        String postBody = "{\"fieldData\":{\"projectBatchNumber\": \""
+            + RecordFixtures.IGO_REQUEST_ID + "\",\"requestJSON\": " + escapedRequest + "}}";
+        blackhole.consume(postBody.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Benchmark
+    public void rawPayload(Blackhole blackhole) throws Exception {
+        String igoRequestId = CPTRecordIdExtractor.extract(messageData, CPTRecordIdExtractor.IGO_REQUEST_ID);
+        CPTPostBody.forRequest(igoRequestId, messageData)
+            .writeTo(new PostBodyBenchmark.BlackholeOutputStream(blackhole));
+    }
+}
@@ -0,0 +1,71 @@
+package org.mskcc.smile.cpt_gateway.benchmarks;
+
+import io.nats.client.Message;
+import java.lang.reflect.Proxy;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import org.mskcc.cmo.messaging.Gateway;
+import org.mskcc.cmo.messaging.MessageConsumer;
+
+/**
+ * In-process stand-in for the NATS gateway. Keeps the consumers the message
+ * handling service subscribes and hands published messages straight to
+ * them on the publishing thread, as a NATS dispatcher thread would.
+ */
+final class SyntheticGateway {
+    private final Map<String, MessageConsumer> consumers = new ConcurrentHashMap<>();
+    private final Gateway gateway;
+
+    SyntheticGateway() {
+        this.gateway = (Gateway) Proxy.newProxyInstance(Gateway.class.getClassLoader(),
+            new Class<?>[] {Gateway.class}, (proxy, method, args) -> {
+                switch (method.getName()) {
+                    case "subscribe":
+                        consumers.put((String) args[0], (MessageConsumer) args[args.length - 1]);
+                        return null;
+                    case "isConnected":
+                        return Boolean.TRUE;
+                    case "toString":
+                        return "SyntheticGateway";
+                    case "hashCode":
+                        return System.identityHashCode(proxy);
+                    case "equals":
+                        return proxy == args[0];
+                    default:
+                        return BenchmarkSupport.defaultValue(method.getReturnType());
+                }
+            });
+    }
+
+    Gateway getGateway() {
+        return gateway;
+    }
+
+    void deliver(String topic, byte[] data) {
+        MessageConsumer consumer = consumers.get(topic);
+        if (consumer == null) {
+            throw new IllegalStateException("Nothing subscribed to " + topic);
+        }
+        consumer.onMessage(newMessage(topic, data), data);
+    }
+
+    private static Message newMessage(String topic, byte[] data) {
+        return (Message) Proxy.newProxyInstance(Message.class.getClassLoader(),
+            new Class<?>[] {Message.class}, (proxy, method, args) -> {
+                switch (method.getName()) {
+                    case "getData":
+                        return data;
+                    case "getSubject":
+                        return topic;
+                    case "toString":
+                        return "SyntheticMessage[" + topic + "]";
+                    case "hashCode":
+                        return System.identityHashCode(proxy);
+                    case "equals":
+                        return proxy == args[0];
+                    default:
+                        return BenchmarkSupport.defaultValue(method.getReturnType());
+                }
+            });
+    }
+}
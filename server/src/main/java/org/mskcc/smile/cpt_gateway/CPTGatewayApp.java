@@ -4,11 +4,14 @@ import java.util.concurrent.CountDownLatch;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.mskcc.cmo.messaging.Gateway;
+import org.mskcc.smile.cpt_gateway.service.CPTFailureReplayService;
 import org.mskcc.smile.cpt_gateway.service.MessageHandlingService;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.CommandLineRunner;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.context.ConfigurableApplicationContext;
 
 @SpringBootApplication(scanBasePackages = {"org.mskcc.cmo.messaging", "org.mskcc.smile.cpt_gateway.*"})
 public class CPTGatewayApp implements CommandLineRunner {
@@ -18,12 +21,26 @@ public class CPTGatewayApp implements CommandLineRunner {
 
     @Autowired
     private MessageHandlingService messageHandlingService;
+
+    @Autowired
+    private CPTFailureReplayService cptFailureReplayService;
+
+    @Autowired
+    private ConfigurableApplicationContext applicationContext;
+
+    // when set (--cpt.replay_file=<path>) the gateway replays the file and exits
+    @Value("${cpt.replay_file:}")
+    private String CPT_REPLAY_FILE;
     
     private Thread shutdownHook;
     final CountDownLatch cptGatewayClose = new CountDownLatch(1);
 
     @Override
     public void run(String... args) throws Exception {
+        if (!CPT_REPLAY_FILE.isEmpty()) {
+            replayFailures();
+            return;
+        }
         LOG.info("Starting up SMILE CPT Gateway...");
         try {
             installShutdownHook();
@@ -38,6 +55,18 @@ public class CPTGatewayApp implements CommandLineRunner {
         }
     }
 
+    private void replayFailures() {
+        int exitCode = 0;
+        try {
+            cptFailureReplayService.replay(CPT_REPLAY_FILE);
+        } catch (Exception e) {
+            LOG.error("Replay of " + CPT_REPLAY_FILE + " failed: ", e);
+            exitCode = 1;
+        }
+        int replayExitCode = exitCode;
+        System.exit(SpringApplication.exit(applicationContext, () -> replayExitCode));
+    }
+
     private void installShutdownHook() {
         shutdownHook =
             new Thread() {
@@ -0,0 +1,213 @@
+package org.mskcc.smile.cpt_gateway.model;
+
+import java.util.Arrays;
+import java.util.function.LongConsumer;
+import org.mskcc.smile.cpt_gateway.service.impl.CPTServiceImpl.CPTRecordDest;
+import org.mskcc.smile.cpt_gateway.service.util.CPTConcurrencyLimiter;
+import org.mskcc.smile.cpt_gateway.service.util.CPTPayloadCompressor;
+import org.mskcc.smile.cpt_gateway.service.util.CPTRecordTracer;
+import org.mskcc.smile.cpt_gateway.service.util.CPTRecordTracer.Stage;
+
+/**
+ * A record received for a CPT destination and waiting to be pushed.
+ */
+public class CPTRecord {
+
+    private final CPTRecordDest recordDest;
+    private byte[] data;
+    // length of the data while it is held compressed, otherwise -1
+    private int compressedFrom = -1;
+    private String entityId;
+    private volatile int attempts;
+    private volatile long enqueuedNanos;
+    private volatile Runnable onCommit;
+    private volatile LongConsumer onRedeliver;
+    private long sequence;
+    private volatile long generation;
+    private volatile CPTConcurrencyLimiter.Permit postPermit;
+    private final long[] trace = CPTRecordTracer.newTrace();
+
+    public CPTRecord(CPTRecordDest recordDest, byte[] data) {
+        this.recordDest = recordDest;
+        this.data = data;
+    }
+
+    public CPTRecordDest getRecordDest() {
+        return recordDest;
+    }
+
+    /**
+     * The data, decompressed first if it was compressed by {@link #compress}.
+     */
+    public synchronized byte[] getData() {
+        if (compressedFrom >= 0) {
+            data = CPTPayloadCompressor.decompress(data, compressedFrom);
+            compressedFrom = -1;
+        }
+        return data;
+    }
+
+    /**
+     * Holds the data compressed if it is at least minBytes long and shrinks
+     * enough. Returns whether it is held compressed now.
+     */
+    public synchronized boolean compress(int minBytes) {
+        if (compressedFrom < 0 && data.length >= minBytes) {
+            byte[] compressed = CPTPayloadCompressor.compress(data);
+            if (compressed != null) {
+                compressedFrom = data.length;
+                data = compressed;
+            }
+        }
+        return compressedFrom >= 0;
+    }
+
+    /**
+     * Bytes of data held, compressed or not.
+     */
+    public synchronized int getHeldSize() {
+        return data.length;
+    }
+
+    /**
+     * Entity id (igo request id, sample name or request tracker id) if it has
+     * already been extracted from the data, otherwise null.
+     */
+    public String getEntityId() {
+        return entityId;
+    }
+
+    public void setEntityId(String entityId) {
+        this.entityId = entityId;
+    }
+
+    /**
+     * Number of failed posts of this record so far.
+     */
+    public int getAttempts() {
+        return attempts;
+    }
+
+    public int incrementAttempts() {
+        return ++attempts;
+    }
+
+    public void setAttempts(int attempts) {
+        this.attempts = attempts;
+    }
+
+    /**
+     * Stream sequence of a record pulled from JetStream, otherwise 0.
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    public void setSequence(long sequence) {
+        this.sequence = sequence;
+    }
+
+    /**
+     * Stamp the message handler gave the record when it first let it through,
+     * higher for newer records, otherwise 0.
+     */
+    public long getGeneration() {
+        return generation;
+    }
+
+    public void setGeneration(long generation) {
+        this.generation = generation;
+    }
+
+    /**
+     * System.nanoTime() of when the record was last put on its queue.
+     */
+    public long getEnqueuedNanos() {
+        return enqueuedNanos;
+    }
+
+    public void setEnqueuedNanos(long enqueuedNanos) {
+        this.enqueuedNanos = enqueuedNanos;
+        mark(Stage.ENQUEUED, enqueuedNanos);
+    }
+
+    /**
+     * System.nanoTime() stamps by {@link Stage}, null unless tracing was
+     * enabled when the record was created.
+     */
+    public long[] getTrace() {
+        return trace;
+    }
+
+    public void mark(Stage stage) {
+        if (trace != null) {
+            mark(stage, System.nanoTime());
+        }
+    }
+
+    public void mark(Stage stage, long nanos) {
+        if (trace != null) {
+            if (stage == Stage.DEQUEUED) {
+                // a retry starts over, stamps of the previous attempt's post are out of date
+                Arrays.fill(trace, Stage.DEQUEUED.ordinal() + 1, trace.length, 0);
+            }
+            trace[stage.ordinal()] = nanos;
+        }
+    }
+
+    /**
+     * Hands the record a permit of its destination's concurrency limiter,
+     * taken without waiting before it was taken off its queue.
+     */
+    public void setPostPermit(CPTConcurrencyLimiter.Permit postPermit) {
+        this.postPermit = postPermit;
+    }
+
+    /**
+     * The permit set by {@link #setPostPermit}, at most once, otherwise null.
+     */
+    public CPTConcurrencyLimiter.Permit takePostPermit() {
+        CPTConcurrencyLimiter.Permit permit = postPermit;
+        postPermit = null;
+        return permit;
+    }
+
+    /**
+     * Sets the action run once this record has been handled and no longer
+     * needs to be kept for redelivery.
+     */
+    public void setOnCommit(Runnable onCommit) {
+        this.onCommit = onCommit;
+    }
+
+    public void commit() {
+        Runnable action = onCommit;
+        onCommit = null;
+        onRedeliver = null;
+        if (action != null) {
+            action.run();
+        }
+    }
+
+    /**
+     * Sets the action that hands the record back to its source, to be
+     * delivered again after the given delay in milliseconds. Records with
+     * one are retried by their source instead of the local delay queue.
+     */
+    public void setOnRedeliver(LongConsumer onRedeliver) {
+        this.onRedeliver = onRedeliver;
+    }
+
+    public boolean isRedeliverable() {
+        return onRedeliver != null;
+    }
+
+    public void redeliver(long delayMillis) {
+        LongConsumer action = onRedeliver;
+        onCommit = null;
+        onRedeliver = null;
+        if (action != null) {
+            action.accept(delayMillis);
+        }
+    }
+}
@@ -0,0 +1,10 @@
+package org.mskcc.smile.cpt_gateway.service;
+
+public interface CPTFailureReplayService {
+
+    /**
+     * Re-posts the records saved to a post failure file, resuming from its
+     * checkpoint if an earlier replay was interrupted.
+     */
+    void replay(String failureFilePath) throws Exception;
+}
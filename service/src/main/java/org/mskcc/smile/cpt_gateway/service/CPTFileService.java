@@ -1,8 +1,22 @@
 package org.mskcc.smile.cpt_gateway.service;
 
 import java.io.IOException;
+import java.util.List;
+import org.mskcc.smile.cpt_gateway.model.CPTRecord;
 
 public interface CPTFileService {
     
     void saveCPTPostFailure(String reason, String postContent) throws IOException;
+
+    /**
+     * Saves a record that could not be posted along with its destination and
+     * entity id, so it can be replayed later.
+     */
+    void saveCPTPostFailure(String reason, CPTRecord record) throws IOException;
+
+    /**
+     * Saved failure rows for an entity id, found through the failure file
+     * indexes instead of scanning the files.
+     */
+    List<String> findCPTPostFailures(String entityId) throws IOException;
 }
@@ -1,8 +1,40 @@
 package org.mskcc.smile.cpt_gateway.service;
 
+import java.util.concurrent.CompletableFuture;
+import org.mskcc.smile.cpt_gateway.model.CPTRecord;
 import org.mskcc.smile.cpt_gateway.service.impl.CPTServiceImpl.CPTRecordDest;
+import org.mskcc.smile.cpt_gateway.service.util.CPTConcurrencyLimiter;
 
 public interface CPTService {
 
-    void pushRecord(String record, CPTRecordDest recordDest) throws Exception;
+    /**
+     * Posts the record, throwing a CPTPostException if CPT did not accept it.
+     * Saving or retrying failed records is up to the caller.
+     */
+    void pushRecord(CPTRecord record) throws Exception;
+
+    /**
+     * Limit on the posts in flight to a destination, or null if there is
+     * none. A post waits for one of its permits unless the record already
+     * holds one, see {@link CPTRecord#setPostPermit}.
+     */
+    default CPTConcurrencyLimiter getLimiter(CPTRecordDest recordDest) {
+        return null;
+    }
+
+    /**
+     * Pushes the record without holding the calling thread for the round trip
+     * where the client engine supports it. The future completes once the
+     * record has been posted, and completes exceptionally if it could not be.
+     */
+    default CompletableFuture<Void> pushRecordAsync(CPTRecord record) {
+        CompletableFuture<Void> result = new CompletableFuture<>();
+        try {
+            pushRecord(record);
+            result.complete(null);
+        } catch (Exception e) {
+            result.completeExceptionally(e);
+        }
+        return result;
+    }
 }
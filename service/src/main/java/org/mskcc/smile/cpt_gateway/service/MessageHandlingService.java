@@ -6,15 +6,15 @@ public interface MessageHandlingService {
 
     void initialize(Gateway gateway) throws Exception;
 
-    void promotedRequestHandler(String promotedRequest) throws Exception;
+    void promotedRequestHandler(byte[] promotedRequest) throws Exception;
 
-    void newRequestHandler(String newRequest) throws Exception;
+    void newRequestHandler(byte[] newRequest) throws Exception;
     
-    void updateRequestHandler(String updateRequest) throws Exception;
+    void updateRequestHandler(byte[] updateRequest) throws Exception;
 
-    void updateSampleHandler(String updateSample) throws Exception;
+    void updateSampleHandler(byte[] updateSample) throws Exception;
 
-    void requestStatusHandler(String requestStatus) throws Exception;
+    void requestStatusHandler(byte[] requestStatus) throws Exception;
 
     void shutdown() throws Exception;
 }
@@ -0,0 +1,289 @@
+package org.mskcc.smile.cpt_gateway.service.impl;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.config.Registry;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.ssl.NoopHostnameVerifier;
+import org.apache.http.entity.ContentType;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.apache.http.nio.conn.NoopIOSessionStrategy;
+import org.apache.http.nio.conn.SchemeIOSessionStrategy;
+import org.apache.http.nio.conn.ssl.SSLIOSessionStrategy;
+import org.apache.http.nio.entity.NByteArrayEntity;
+import org.apache.http.util.EntityUtils;
+import org.mskcc.smile.cpt_gateway.model.CPTRecord;
+import org.mskcc.smile.cpt_gateway.service.util.CPTConcurrencyLimiter;
+import org.mskcc.smile.cpt_gateway.service.util.CPTMetrics;
+import org.mskcc.smile.cpt_gateway.service.util.CPTMetrics.PostOutcome;
+import org.mskcc.smile.cpt_gateway.service.util.CPTPostBody;
+import org.mskcc.smile.cpt_gateway.service.util.CPTPostException;
+import org.mskcc.smile.cpt_gateway.service.util.CPTRecordTracer.Stage;
+import org.mskcc.smile.cpt_gateway.service.util.CPTSessionPool.CPTSession;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+/**
+ * CPT client engine that posts records over a non-blocking http client.
+ *
+ * <p>Handler threads only build the post body and hand it to the client, so a
+ * few threads keep up to cpt.async_max_in_flight posts per destination in
+ * flight, fewer while the adaptive limit of the destination is below
+ * that. Records for the same entity are still posted one after the other:
+ * a post waits for the previous post of its entity to complete before it is
+ * sent. Responses are handled on a small completion pool, never on the client's
+ * i/o threads, since the caller saves or retries failures and a session
+ * refresh is a blocking call.
+ */
+@Component
+@ConditionalOnProperty(name = "cpt.client_engine", havingValue = "async")
+public class CPTAsyncServiceImpl extends CPTServiceImpl {
+    private static final Log LOG = LogFactory.getLog(CPTAsyncServiceImpl.class);
+
+    @Value("${cpt.async_max_in_flight:100}")
+    private int CPT_ASYNC_MAX_IN_FLIGHT;
+
+    @Value("${cpt.async_io_threads:2}")
+    private int CPT_ASYNC_IO_THREADS;
+
+    @Value("${cpt.async_completion_threads:2}")
+    private int CPT_ASYNC_COMPLETION_THREADS;
+
+    private CloseableHttpAsyncClient asyncClient;
+    private PoolingNHttpClientConnectionManager asyncConnectionManager;
+    private ScheduledExecutorService completionExecutor;
+    private final Map<String, CompletableFuture<Void>> lastPostByEntity = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    public void initializeAsyncClient() throws Exception {
+        Registry<SchemeIOSessionStrategy> sessionStrategies =
+            RegistryBuilder.<SchemeIOSessionStrategy>create()
+            .register("http", NoopIOSessionStrategy.INSTANCE)
+            .register("https", new SSLIOSessionStrategy(sslContext, NoopHostnameVerifier.INSTANCE))
+            .build();
+        IOReactorConfig ioReactorConfig = IOReactorConfig.custom()
+            .setIoThreadCount(CPT_ASYNC_IO_THREADS)
+            .setConnectTimeout(CPT_POST_TIMEOUTS)
+            .setSoTimeout(CPT_POST_TIMEOUTS)
+            .build();
+        asyncConnectionManager = new PoolingNHttpClientConnectionManager(
+                new DefaultConnectingIOReactor(ioReactorConfig), sessionStrategies);
+        asyncConnectionManager.setMaxTotal(CPT_MAX_CONNECTIONS_TOTAL);
+        asyncConnectionManager.setDefaultMaxPerRoute(CPT_MAX_CONNECTIONS_PER_ROUTE);
+        asyncClient = HttpAsyncClients.custom()
+            .setConnectionManager(asyncConnectionManager)
+            .setDefaultRequestConfig(getRequestConfig())
+            .setKeepAliveStrategy(this::getKeepAliveDuration)
+            .disableConnectionState()
+            .build();
+        asyncClient.start();
+        AtomicInteger threadCount = new AtomicInteger();
+        completionExecutor = Executors.newScheduledThreadPool(CPT_ASYNC_COMPLETION_THREADS, runnable -> {
+            Thread thread = new Thread(runnable, "cpt-async-completion-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        // the async client has no idle eviction thread of its own
+        completionExecutor.scheduleWithFixedDelay(() -> {
+            asyncConnectionManager.closeExpiredConnections();
+            asyncConnectionManager.closeIdleConnections(CPT_IDLE_CONNECTION_TIMEOUT, TimeUnit.MILLISECONDS);
+        }, CPT_IDLE_CONNECTION_TIMEOUT, CPT_IDLE_CONNECTION_TIMEOUT, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    protected int getMaxInFlight() {
+        return CPT_ASYNC_MAX_IN_FLIGHT;
+    }
+
+    @PreDestroy
+    public void shutdownAsyncClient() throws Exception {
+        if (asyncClient != null) {
+            asyncClient.close();
+        }
+        if (completionExecutor != null) {
+            completionExecutor.shutdown();
+            completionExecutor.awaitTermination(CPT_POST_TIMEOUTS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @Override
+    public void pushRecord(CPTRecord record) throws Exception {
+        try {
+            pushRecordAsync(record).join();
+        } catch (CompletionException e) {
+            throw (e.getCause() instanceof Exception) ? (Exception) e.getCause() : e;
+        }
+    }
+
+    /**
+     * Sends the record, waiting only while its destination already has as many
+     * posts in flight as its concurrency limiter allows, unless the record
+     * was handed a permit already.
+     */
+    @Override
+    public CompletableFuture<Void> pushRecordAsync(CPTRecord record) {
+        CompletableFuture<Void> result = new CompletableFuture<>();
+        CPTRecordDest recordDest = record.getRecordDest();
+        String url = getRecordUrl(recordDest);
+        String entityId;
+        byte[] postBody;
+        boolean gzip;
+        try {
+            entityId = getEntityId(record);
+            CPTPostBody body = getPostBody(record);
+            if (url.isEmpty()) {
+                result.complete(null);
+                return result;
+            }
+            // the async client sends byte arrays, so a gzipped body is compressed up front
+            gzip = body.isGzip();
+            postBody = gzip ? body.toGzipByteArray() : body.toByteArray();
+        } catch (Exception e) {
+            CPTMetrics.countPost(recordDest, PostOutcome.PARSE_FAILURE);
+            result.completeExceptionally(e);
+            return result;
+        }
+        // permits come back as posts complete or time out, so this wait is bounded
+        CPTConcurrencyLimiter.Permit permit = acquirePermit(record);
+        result.whenComplete((ignored, e) -> permit.release());
+
+        String entityKey = recordDest + "/" + entityId;
+        CompletableFuture<Void> previous = lastPostByEntity.put(entityKey, result);
+        result.whenComplete((ignored, e) -> lastPostByEntity.remove(entityKey, result));
+        if (previous == null) {
+            post(sessionPool.acquire(), null, record, entityId, postBody, gzip, url, permit, result);
+        } else {
+            // keep per-entity order, sent once the previous post is done whatever its outcome
+            previous.whenCompleteAsync((ignored, e) -> post(sessionPool.acquire(), null, record, entityId,
+                                                            postBody, gzip, url, permit, result),
+                                       completionExecutor);
+        }
+        return result;
+    }
+
+    /**
+     * Posts the body with the session's token, or with staleToken's
+     * replacement when retrying a post the server rejected.
+     */
+    private void post(CPTSession session, String staleToken, CPTRecord record, String entityId,
+                      byte[] postBody, boolean gzip, String url, CPTConcurrencyLimiter.Permit permit,
+                      CompletableFuture<Void> result) {
+        CPTRecordDest recordDest = record.getRecordDest();
+        String token;
+        long tokenStart = System.nanoTime();
+        try {
+            if (staleToken != null) {
+                session.invalidate(staleToken);
+            }
+            token = session.getToken();
+        } catch (Exception e) {
+            CPTMetrics.countPost(recordDest, PostOutcome.EXCEPTION);
+            completionExecutor.execute(() -> fail(String.valueOf(e.getMessage()), isOverload(e), e, result));
+            return;
+        } finally {
+            long tokenEnd = System.nanoTime();
+            record.mark(Stage.TOKEN_ACQUIRED, tokenEnd);
+            CPTMetrics.recordTokenNanos(recordDest, tokenEnd - tokenStart);
+        }
+        HttpPost post = new HttpPost(url);
+        post.setHeader(HttpHeaders.AUTHORIZATION, "Bearer " + token);
+        NByteArrayEntity entity = new NByteArrayEntity(postBody, ContentType.APPLICATION_JSON);
+        if (gzip) {
+            entity.setContentEncoding("gzip");
+        }
+        post.setEntity(entity);
+        // latency is measured from here, not from acquire, so waiting behind the entity's
+        // previous post does not read as a slow destination
+        permit.restartClock();
+        long postStart = System.nanoTime();
+        record.mark(Stage.POST_SENT, postStart);
+        asyncClient.execute(post, new FutureCallback<HttpResponse>() {
+            @Override
+            public void completed(HttpResponse response) {
+                long postEnd = System.nanoTime();
+                record.mark(Stage.RESPONSE_RECEIVED, postEnd);
+                CPTMetrics.recordPostNanos(recordDest, postEnd - postStart);
+                completionExecutor.execute(() -> onResponse(session, token, staleToken != null,
+                        record, entityId, postBody, gzip, url, response, permit, result));
+            }
+
+            @Override
+            public void failed(Exception e) {
+                // connect and socket timeouts end up here
+                long postEnd = System.nanoTime();
+                record.mark(Stage.RESPONSE_RECEIVED, postEnd);
+                CPTMetrics.recordPostNanos(recordDest, postEnd - postStart);
+                CPTMetrics.countPost(recordDest, PostOutcome.EXCEPTION);
+                permit.overload(e.getClass().getSimpleName());
+                completionExecutor.execute(() -> fail(String.valueOf(e.getMessage()), true, e, result));
+            }
+
+            @Override
+            public void cancelled() {
+                CPTMetrics.countPost(recordDest, PostOutcome.EXCEPTION);
+                completionExecutor.execute(() -> fail("Post cancelled", true, null, result));
+            }
+        });
+    }
+
+    private void onResponse(CPTSession session, String token, boolean retried, CPTRecord record,
+                            String entityId, byte[] postBody, boolean gzip, String url, HttpResponse response,
+                            CPTConcurrencyLimiter.Permit permit, CompletableFuture<Void> result) {
+        CPTRecordDest recordDest = record.getRecordDest();
+        int statusCode = response.getStatusLine().getStatusCode();
+        EntityUtils.consumeQuietly(response.getEntity());
+        if (statusCode == 401 && !retried) {
+            // session was closed on the server side, re-authenticate once and retry
+            if (LOG.isInfoEnabled()) {
+                LOG.info("CPT session token rejected, refreshing session for: " + url);
+            }
+            post(session, token, record, entityId, postBody, gzip, url, permit, result);
+            return;
+        }
+        if (statusCode < 200 || statusCode >= 300) {
+            CPTMetrics.countPost(recordDest, PostOutcome.NON_2XX);
+            if (isOverload(statusCode)) {
+                permit.overload("http " + statusCode);
+            }
+            if (LOG.isInfoEnabled()) {
+                LOG.info("Unsuccessful postToCPT (Entity ID, CPT URL): " + entityId + ", " + url);
+            }
+            fail(statusCode + " " + response.getStatusLine().getReasonPhrase(), isOverload(statusCode), null,
+                 result);
+            return;
+        }
+        if (LOG.isInfoEnabled()) {
+            LOG.info("Successful postToCPT (Entity ID, CPT URL): " + entityId + ", " + url);
+        }
+        CPTMetrics.countPost(recordDest, PostOutcome.SUCCESS);
+        permit.success();
+        result.complete(null);
+    }
+
+    /**
+     * Completes the post as failed. Always called on the completion pool, so
+     * the caller's failure handling never runs on an i/o thread.
+     */
+    private void fail(String reason, boolean retryable, Throwable cause, CompletableFuture<Void> result) {
+        result.completeExceptionally(new CPTPostException(reason, retryable, cause));
+    }
+}
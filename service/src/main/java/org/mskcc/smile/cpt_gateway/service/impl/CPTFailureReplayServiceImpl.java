@@ -0,0 +1,268 @@
+package org.mskcc.smile.cpt_gateway.service.impl;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPInputStream;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.mskcc.smile.cpt_gateway.model.CPTRecord;
+import org.mskcc.smile.cpt_gateway.service.CPTFailureReplayService;
+import org.mskcc.smile.cpt_gateway.service.CPTFileService;
+import org.mskcc.smile.cpt_gateway.service.CPTService;
+import org.mskcc.smile.cpt_gateway.service.impl.CPTServiceImpl.CPTRecordDest;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Replays a post failure file written by CPTFileServiceImpl, or one of its
+ * rotated and gzipped predecessors.
+ *
+ * <p>The file is read twice, streaming, so its size does not matter. The first
+ * pass remembers the last row of each destination and entity id, the second
+ * posts only those rows: records carry the whole request or sample, so older
+ * rows for the same entity are out of date. Rows are posted at up to
+ * cpt.replay_rate per second on cpt.replay_concurrency threads. The number of
+ * the last row below which every row has been handled is written to
+ * failureFile.checkpoint every second, together with a checksum of the first
+ * row, and a later replay starts after it. The live failure file is rotated
+ * and started afresh at the same path, so a checkpoint whose first row does
+ * not match the file, or that lies past its end, is ignored.
+ * Rows written before failure records had destination and entity columns
+ * cannot be replayed and are counted as skipped. Rows that fail again are
+ * appended to the failure file, so they are picked up by the next replay.
+ */
+@Component
+public class CPTFailureReplayServiceImpl implements CPTFailureReplayService {
+    private static final Log LOG = LogFactory.getLog(CPTFailureReplayServiceImpl.class);
+    private static final long CHECKPOINT_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    // date, reason, destination, entity id, record
+    private static final int COLUMNS = 5;
+
+    // 0 posts as fast as the threads allow
+    @Value("${cpt.replay_rate:10}")
+    private double CPT_REPLAY_RATE;
+
+    @Value("${cpt.replay_concurrency:4}")
+    private int CPT_REPLAY_CONCURRENCY;
+
+    @Autowired
+    private CPTService cptService;
+
+    @Autowired
+    private CPTFileService cptFileService;
+
+    @Override
+    public void replay(String failureFilePath) throws Exception {
+        Path failureFile = Paths.get(failureFilePath);
+        Path checkpointFile = Paths.get(failureFilePath + ".checkpoint");
+        Map<String, Long> newestRows = new HashMap<>();
+        long rowCount = indexNewestRows(failureFile, newestRows);
+        long firstRowChecksum = getFirstRowChecksum(failureFile);
+        long checkpoint = readCheckpoint(checkpointFile, firstRowChecksum, rowCount);
+        LOG.info("Replaying " + failureFile + ": " + rowCount + " rows, " + newestRows.size()
+                 + " entities, resuming after row " + checkpoint);
+
+        ExecutorService posters = Executors.newFixedThreadPool(Math.max(1, CPT_REPLAY_CONCURRENCY));
+        Semaphore permits = new Semaphore(Math.max(1, CPT_REPLAY_CONCURRENCY));
+        NavigableSet<Long> inFlightRows = new ConcurrentSkipListSet<>();
+        AtomicLong posted = new AtomicLong();
+        AtomicLong failed = new AtomicLong();
+        long skipped = 0;
+        long superseded = 0;
+        long intervalNanos = (CPT_REPLAY_RATE > 0)
+            ? (long) (TimeUnit.SECONDS.toNanos(1) / CPT_REPLAY_RATE) : 0;
+        long nextPost = System.nanoTime();
+        long lastCheckpoint = System.nanoTime();
+        long row = 0;
+        try (BufferedReader reader = openRows(failureFile)) {
+            String line;
+            // rows appended while replaying are left for the next replay
+            while (row < rowCount && (line = reader.readLine()) != null) {
+                row++;
+                if (row <= checkpoint) {
+                    continue;
+                }
+                CPTRecord record = toRecord(line);
+                if (record == null) {
+                    skipped++;
+                    continue;
+                }
+                if (!record.getEntityId().isEmpty()
+                    && newestRows.get(getEntityKey(record)) != row) {
+                    superseded++;
+                    continue;
+                }
+                if (intervalNanos > 0) {
+                    long wait = nextPost - System.nanoTime();
+                    if (wait > 0) {
+                        TimeUnit.NANOSECONDS.sleep(wait);
+                    }
+                    nextPost = Math.max(nextPost, System.nanoTime() - intervalNanos) + intervalNanos;
+                }
+                permits.acquire();
+                long postedRow = row;
+                inFlightRows.add(postedRow);
+                posters.execute(() -> {
+                    try {
+                        cptService.pushRecord(record);
+                        posted.incrementAndGet();
+                    } catch (Exception e) {
+                        failed.incrementAndGet();
+                        saveFailure(e, record);
+                    } finally {
+                        inFlightRows.remove(postedRow);
+                        permits.release();
+                    }
+                });
+                if (System.nanoTime() - lastCheckpoint >= CHECKPOINT_INTERVAL_NANOS) {
+                    writeCheckpoint(checkpointFile, getCompletedRow(inFlightRows, row), firstRowChecksum);
+                    lastCheckpoint = System.nanoTime();
+                    LOG.info("Replayed up to row " + row + " of " + rowCount + ", " + posted.get()
+                             + " posted, " + failed.get() + " failed");
+                }
+            }
+        } finally {
+            posters.shutdown();
+            posters.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            writeCheckpoint(checkpointFile, getCompletedRow(inFlightRows, row), firstRowChecksum);
+        }
+        LOG.info("Replay of " + failureFile + " done: " + posted.get() + " posted, " + failed.get()
+                 + " failed, " + superseded + " superseded by newer rows, " + skipped
+                 + " skipped without destination or entity id");
+    }
+
+    /**
+     * Maps each destination and entity id to the number of its last row, and
+     * returns the number of rows.
+     */
+    private long indexNewestRows(Path failureFile, Map<String, Long> newestRows) throws IOException {
+        long row = 0;
+        try (BufferedReader reader = openRows(failureFile)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                row++;
+                CPTRecord record = toRecord(line);
+                if (record != null && !record.getEntityId().isEmpty()) {
+                    newestRows.put(getEntityKey(record), row);
+                }
+            }
+        }
+        return row;
+    }
+
+    /**
+     * CRC32 of the first row, which tells a failure file apart from the one
+     * rotated away from the same path. 0 for an empty file.
+     */
+    private static long getFirstRowChecksum(Path failureFile) throws IOException {
+        try (BufferedReader reader = openRows(failureFile)) {
+            String line = reader.readLine();
+            if (line == null) {
+                return 0;
+            }
+            CRC32 crc = new CRC32();
+            crc.update(line.getBytes(StandardCharsets.UTF_8));
+            return crc.getValue();
+        }
+    }
+
+    /**
+     * Rows are handed out in order, so every row before the first one still
+     * in flight is done.
+     */
+    private static long getCompletedRow(NavigableSet<Long> inFlightRows, long lastRow) {
+        Long firstInFlight = inFlightRows.isEmpty() ? null : inFlightRows.first();
+        return (firstInFlight == null) ? lastRow : firstInFlight - 1;
+    }
+
+    private void saveFailure(Exception e, CPTRecord record) {
+        try {
+            cptFileService.saveCPTPostFailure(String.valueOf(e.getMessage()), record);
+        } catch (IOException ex) {
+            LOG.error("Unable to save failed replay of " + getEntityKey(record)
+                      + " to the failure file: ", ex);
+        }
+    }
+
+    /**
+     * Rotated failure files are read through gzip.
+     */
+    private static BufferedReader openRows(Path failureFile) throws IOException {
+        InputStream in = Files.newInputStream(failureFile);
+        if (failureFile.getFileName().toString().endsWith(".gz")) {
+            in = new GZIPInputStream(in, 64 * 1024);
+        }
+        return new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+    }
+
+    private static CPTRecord toRecord(String line) {
+        String[] columns = line.split("\t", COLUMNS);
+        if (columns.length < COLUMNS) {
+            return null;
+        }
+        CPTRecordDest recordDest;
+        try {
+            recordDest = CPTRecordDest.valueOf(columns[2]);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+        CPTRecord record = new CPTRecord(recordDest, columns[4].getBytes(StandardCharsets.UTF_8));
+        record.setEntityId(columns[3]);
+        return record;
+    }
+
+    private static String getEntityKey(CPTRecord record) {
+        return record.getRecordDest() + "/" + record.getEntityId();
+    }
+
+    /**
+     * The row to resume after, or 0 if the checkpoint was written for another
+     * file than the one now at the path.
+     */
+    private static long readCheckpoint(Path checkpointFile, long firstRowChecksum,
+                                       long rowCount) throws IOException {
+        if (!Files.exists(checkpointFile)) {
+            return 0;
+        }
+        String checkpoint = new String(Files.readAllBytes(checkpointFile), StandardCharsets.UTF_8).trim();
+        if (checkpoint.isEmpty()) {
+            return 0;
+        }
+        // row and first row checksum, checkpoints without a checksum can not be trusted
+        String[] fields = checkpoint.split("\\s+");
+        long row = Long.parseLong(fields[0]);
+        if (fields.length < 2 || Long.parseLong(fields[1]) != firstRowChecksum || row > rowCount) {
+            LOG.warn("Ignoring checkpoint " + checkpointFile + " at row " + row
+                     + ", it was written for another failure file");
+            return 0;
+        }
+        return row;
+    }
+
+    private static void writeCheckpoint(Path checkpointFile, long row,
+                                        long firstRowChecksum) throws IOException {
+        Path tempFile = checkpointFile.resolveSibling(checkpointFile.getFileName() + ".tmp");
+        Files.write(tempFile, (row + " " + firstRowChecksum).getBytes(StandardCharsets.UTF_8));
+        Files.move(tempFile, checkpointFile, StandardCopyOption.REPLACE_EXISTING,
+                   StandardCopyOption.ATOMIC_MOVE);
+    }
+}
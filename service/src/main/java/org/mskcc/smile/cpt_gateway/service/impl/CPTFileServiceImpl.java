@@ -1,12 +1,19 @@
 package org.mskcc.smile.cpt_gateway.service.impl;
 
-import java.io.BufferedWriter;
-import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import javax.annotation.PreDestroy;
+import org.mskcc.smile.cpt_gateway.model.CPTRecord;
 import org.mskcc.smile.cpt_gateway.service.CPTFileService;
+import org.mskcc.smile.cpt_gateway.service.util.CPTFailureLogAppender;
+import org.mskcc.smile.cpt_gateway.service.util.CPTFailureLogAppender.FsyncPolicy;
+import org.mskcc.smile.cpt_gateway.service.util.CPTMetrics;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
@@ -16,26 +23,109 @@ public class CPTFileServiceImpl implements CPTFileService {
     @Value("${cpt.cmo_project_request_post_failures_filepath}")
     private String filePath;
 
+    @Value("${cpt.failure_log_fsync:NONE}")
+    private FsyncPolicy FAILURE_LOG_FSYNC;
+
+    @Value("${cpt.failure_log_fsync_interval_ms:1000}")
+    private long FAILURE_LOG_FSYNC_INTERVAL_MS;
+
+    // 0 disables size based rotation
+    @Value("${cpt.failure_log_max_size:268435456}")
+    private long FAILURE_LOG_MAX_SIZE;
+
+    // 0 disables time based rotation
+    @Value("${cpt.failure_log_rotate_interval_ms:86400000}")
+    private long FAILURE_LOG_ROTATE_INTERVAL_MS;
+
+    @Value("${cpt.failure_log_compress:true}")
+    private boolean FAILURE_LOG_COMPRESS;
+
+    private volatile CPTFailureLogAppender appender;
+
     @Override
     public void saveCPTPostFailure(String reason, String postContent) throws IOException {
-        File logFile = new File(filePath);
-        if (!logFile.exists()) {
-            logFile.createNewFile();
+        await(getAppender().append(generatePostFailureRecord(reason, postContent), null));
+        CPTMetrics.countFailureFileWrite();
+    }
+
+    /**
+     * Writes date, reason, destination, entity id and the record as received,
+     * tab separated. See CPTFailureReplayServiceImpl for reading them back.
+     */
+    @Override
+    public void saveCPTPostFailure(String reason, CPTRecord record) throws IOException {
+        String entityId = (record.getEntityId() == null) ? "" : record.getEntityId();
+        await(getAppender().append(generatePostFailureRecord(toSingleLine(String.valueOf(reason)),
+                record.getRecordDest().name(), entityId,
+                toSingleLine(new String(record.getData(), StandardCharsets.UTF_8))), entityId));
+        CPTMetrics.countFailureFileWrite();
+    }
+
+    @Override
+    public List<String> findCPTPostFailures(String entityId) throws IOException {
+        return getAppender().find(entityId);
+    }
+
+    @PreDestroy
+    public void closeFailureLog() throws IOException {
+        if (appender != null) {
+            appender.close();
+        }
+    }
+
+    /**
+     * The appender is opened on first use, so the service also works when
+     * created outside of a Spring context.
+     */
+    private CPTFailureLogAppender getAppender() {
+        CPTFailureLogAppender current = appender;
+        if (current == null) {
+            synchronized (this) {
+                current = appender;
+                if (current == null) {
+                    current = new CPTFailureLogAppender(Paths.get(filePath), FAILURE_LOG_FSYNC,
+                            FAILURE_LOG_FSYNC_INTERVAL_MS, FAILURE_LOG_MAX_SIZE,
+                            FAILURE_LOG_ROTATE_INTERVAL_MS, FAILURE_LOG_COMPRESS);
+                    appender = current;
+                }
+            }
         }
-        BufferedWriter postFailureFile = new BufferedWriter(new FileWriter(logFile, true));
-        postFailureFile.write(generatePostFailureRecord(reason, postContent));
-        postFailureFile.close();
+        return current;
     }
 
-    private String generatePostFailureRecord(String reason, String postContent) {
+    /**
+     * Waits for the row to be group committed, the record may only be
+     * committed to the journal after that.
+     */
+    private static void await(CompletableFuture<Void> written) throws IOException {
+        try {
+            written.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while saving post failure", e);
+        } catch (ExecutionException e) {
+            throw (e.getCause() instanceof IOException)
+                ? (IOException) e.getCause() : new IOException(e.getCause());
+        }
+    }
+
+    private String generatePostFailureRecord(String... columns) {
         String now = LocalDateTime.now().format(DateTimeFormatter.ISO_LOCAL_DATE);
         StringBuilder builder = new StringBuilder();
-        builder.append(now)
-            .append("\t")
-            .append(reason)
-            .append("\t")
-            .append(postContent)
-            .append("\n");
+        builder.append(now);
+        for (String column : columns) {
+            builder.append("\t").append(column);
+        }
+        builder.append("\n");
         return builder.toString();
     }
+
+    /**
+     * Tabs and line breaks can only be whitespace between json tokens (inside
+     * strings they are escaped), so replacing them keeps the record intact and
+     * on one row.
+     */
+    private static String toSingleLine(String value) {
+        return value.replace('\t', ' ').replace('\r', ' ').replace('\n', ' ');
+    }
 }
@@ -0,0 +1,165 @@
+package org.mskcc.smile.cpt_gateway.service.impl;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.mskcc.smile.cpt_gateway.service.util.CPTMetrics;
+import org.mskcc.smile.cpt_gateway.service.util.CPTRecordScheduler;
+import org.mskcc.smile.cpt_gateway.service.util.CPTRecordTracer;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Serves {@link CPTMetrics} at /metrics for Prometheus to scrape, and the
+ * traces {@link CPTRecordTracer} kept of slow records at /slow-records, from
+ * the http server built into the jdk on a single thread.
+ *
+ * <p>/scheduler shows the bounds and state of the shared worker pool, and a
+ * POST to /scheduler?min=&lt;n&gt;&amp;max=&lt;n&gt; changes the bounds.
+ */
+@Component
+public class CPTMetricsEndpoint {
+    private static final Log LOG = LogFactory.getLog(CPTMetricsEndpoint.class);
+
+    // 0 disables the endpoint
+    @Value("${metrics.port:0}")
+    private int METRICS_PORT;
+
+    @Value("${metrics.bind_address:127.0.0.1}")
+    private String METRICS_BIND_ADDRESS;
+
+    @Autowired
+    private MessageHandlingServiceImpl messageHandlingService;
+
+    private HttpServer server;
+    private ExecutorService executor;
+
+    @PostConstruct
+    public void start() throws IOException {
+        if (METRICS_PORT <= 0) {
+            return;
+        }
+        executor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "cpt-metrics");
+            thread.setDaemon(true);
+            return thread;
+        });
+        server = HttpServer.create(new InetSocketAddress(METRICS_BIND_ADDRESS, METRICS_PORT), 0);
+        server.createContext("/metrics", this::handleMetrics);
+        server.createContext("/slow-records", this::handleSlowRecords);
+        server.createContext("/scheduler", this::handleScheduler);
+        server.setExecutor(executor);
+        server.start();
+        LOG.info("Serving metrics at http://" + METRICS_BIND_ADDRESS + ":" + METRICS_PORT + "/metrics");
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (server != null) {
+            server.stop(0);
+            executor.shutdownNow();
+        }
+    }
+
+    private void handleMetrics(HttpExchange exchange) throws IOException {
+        handle(exchange, CPTMetrics::write, "text/plain; version=0.0.4; charset=utf-8");
+    }
+
+    private void handleSlowRecords(HttpExchange exchange) throws IOException {
+        handle(exchange, CPTRecordTracer::write, "text/plain; charset=utf-8");
+    }
+
+    private void handleScheduler(HttpExchange exchange) throws IOException {
+        try {
+            CPTRecordScheduler scheduler = messageHandlingService.getScheduler();
+            if (scheduler == null) {
+                send(exchange, 503, "Scheduler not started\n");
+                return;
+            }
+            if ("POST".equals(exchange.getRequestMethod())) {
+                try {
+                    Map<String, String> params = parseQuery(exchange.getRequestURI().getRawQuery());
+                    int minWorkers = Integer.parseInt(params.getOrDefault("min",
+                            String.valueOf(scheduler.getMinWorkers())));
+                    int maxWorkers = Integer.parseInt(params.getOrDefault("max",
+                            String.valueOf(scheduler.getMaxWorkers())));
+                    scheduler.setBounds(minWorkers, maxWorkers);
+                    LOG.info("Scheduler workers bounds set to " + minWorkers + " - " + maxWorkers);
+                } catch (IllegalArgumentException e) {
+                    send(exchange, 400, e.getMessage() + "\n");
+                    return;
+                }
+            } else if (!"GET".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            send(exchange, 200, scheduler.describePool());
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private static Map<String, String> parseQuery(String query) {
+        Map<String, String> params = new HashMap<>();
+        if (query == null || query.isEmpty()) {
+            return params;
+        }
+        for (String param : query.split("&")) {
+            int separator = param.indexOf('=');
+            String name = (separator < 0) ? param : param.substring(0, separator);
+            if (!"min".equals(name) && !"max".equals(name)) {
+                throw new IllegalArgumentException("Unknown parameter " + name + ", expected min or max");
+            }
+            params.put(name, (separator < 0) ? "" : param.substring(separator + 1));
+        }
+        return params;
+    }
+
+    private static void send(HttpExchange exchange, int status, String text) throws IOException {
+        byte[] body = text.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    private interface BodyWriter {
+        void write(Writer writer) throws IOException;
+    }
+
+    private void handle(HttpExchange exchange, BodyWriter bodyWriter, String contentType) throws IOException {
+        try {
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            ByteArrayOutputStream body = new ByteArrayOutputStream(16384);
+            try (Writer writer = new OutputStreamWriter(body, StandardCharsets.UTF_8)) {
+                bodyWriter.write(writer);
+            }
+            exchange.getResponseHeaders().set("Content-Type", contentType);
+            exchange.sendResponseHeaders(200, body.size());
+            try (OutputStream out = exchange.getResponseBody()) {
+                body.writeTo(out);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+}
@@ -1,23 +1,46 @@
 package org.mskcc.smile.cpt_gateway.service.impl;
 
+import java.nio.charset.StandardCharsets;
 import java.security.cert.X509Certificate;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.net.ssl.HostnameVerifier;
 import javax.net.ssl.SSLContext;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.apache.http.HttpResponse;
 import org.apache.http.client.config.RequestConfig;
+import org.apache.http.config.Registry;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
 import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
 import org.apache.http.conn.ssl.SSLContexts;
 import org.apache.http.conn.ssl.TrustStrategy;
 import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
 import org.apache.http.impl.client.HttpClients;
-import org.mskcc.smile.cpt_gateway.service.CPTFileService;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.protocol.HttpContext;
+import org.mskcc.smile.cpt_gateway.model.CPTRecord;
 import org.mskcc.smile.cpt_gateway.service.CPTService;
-import org.springframework.beans.factory.annotation.Autowired;
+import org.mskcc.smile.cpt_gateway.service.util.CPTConcurrencyLimiter;
+import org.mskcc.smile.cpt_gateway.service.util.CPTMetrics;
+import org.mskcc.smile.cpt_gateway.service.util.CPTMetrics.PostOutcome;
+import org.mskcc.smile.cpt_gateway.service.util.CPTPostBody;
+import org.mskcc.smile.cpt_gateway.service.util.CPTPostBodyHttpMessageConverter;
+import org.mskcc.smile.cpt_gateway.service.util.CPTPostException;
+import org.mskcc.smile.cpt_gateway.service.util.CPTRecordIdExtractor;
+import org.mskcc.smile.cpt_gateway.service.util.CPTRecordTracer.Stage;
+import org.mskcc.smile.cpt_gateway.service.util.CPTSessionPool;
+import org.mskcc.smile.cpt_gateway.service.util.CPTSessionPool.CPTSession;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.http.HttpEntity;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpMethod;
@@ -25,16 +48,16 @@ import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.http.client.HttpComponentsClientHttpRequestFactory;
 import org.springframework.stereotype.Component;
+import org.springframework.web.client.HttpClientErrorException;
+import org.springframework.web.client.HttpServerErrorException;
+import org.springframework.web.client.HttpStatusCodeException;
+import org.springframework.web.client.ResourceAccessException;
 import org.springframework.web.client.RestTemplate;
 
 @Component
+@ConditionalOnProperty(name = "cpt.client_engine", havingValue = "blocking", matchIfMissing = true)
 public class CPTServiceImpl implements CPTService {
 
-    private static final Pattern CPT_TOKEN_REGEX = Pattern.compile(".*token=(\\w+).*");
-    private static final Pattern IGO_REQUEST_TRACKER_ID_REGEX = Pattern.compile(".*requestId\":\"(\\w+).*");
-    private static final Pattern IGO_REQUEST_ID_REGEX = Pattern.compile(".*igoRequestId\":\"(\\w+).*");
-    private static final Pattern IGO_SAMPLE_ID_REGEX = Pattern.compile(".*sampleName\":\"(\\w+).*");
-
     @Value("${cpt.promoted_request_record_url}")
     private String CPT_PROMOTED_REQUEST_RECORD_URL;
 
@@ -51,7 +74,19 @@ public class CPTServiceImpl implements CPTService {
     private String CPT_SAMPLE_STATUS_RECORD_URL;
 
     @Value("${cpt.post_timeouts}")
-    private int CPT_POST_TIMEOUTS;
+    protected int CPT_POST_TIMEOUTS;
+
+    @Value("${cpt.max_connections_total:50}")
+    protected int CPT_MAX_CONNECTIONS_TOTAL;
+
+    @Value("${cpt.max_connections_per_route:10}")
+    protected int CPT_MAX_CONNECTIONS_PER_ROUTE;
+
+    @Value("${cpt.connection_keep_alive:60000}")
+    private long CPT_CONNECTION_KEEP_ALIVE;
+
+    @Value("${cpt.idle_connection_timeout:30000}")
+    protected long CPT_IDLE_CONNECTION_TIMEOUT;
 
     @Value("${cpt.session_token_url}")
     private String CPT_SESSION_TOKEN_URL;
@@ -59,109 +94,370 @@ public class CPTServiceImpl implements CPTService {
     @Value("${cpt.authorization_token}")
     private String CPT_AUTHORIZATION_TOKEN;
 
-    @Autowired
-    CPTFileService cptFileService;
+    @Value("${cpt.session_pool_size:1}")
+    private int CPT_SESSION_POOL_SIZE;
+
+    // filemaker closes a session after 15 minutes without use
+    @Value("${cpt.session_token_ttl:840000}")
+    private long CPT_SESSION_TOKEN_TTL;
+
+    @Value("${cpt.adaptive_limit_enabled:true}")
+    private boolean CPT_ADAPTIVE_LIMIT_ENABLED;
+
+    @Value("${cpt.adaptive_limit_initial:10}")
+    private int CPT_ADAPTIVE_LIMIT_INITIAL;
+
+    @Value("${cpt.adaptive_limit_min:1}")
+    private int CPT_ADAPTIVE_LIMIT_MIN;
+
+    @Value("${cpt.adaptive_limit_max:100}")
+    private int CPT_ADAPTIVE_LIMIT_MAX;
+
+    @Value("${cpt.adaptive_limit_backoff:0.9}")
+    private double CPT_ADAPTIVE_LIMIT_BACKOFF;
+
+    // posts slower than this count as overload, like timeouts and 5xx responses
+    @Value("${cpt.adaptive_limit_latency_threshold:5000}")
+    private long CPT_ADAPTIVE_LIMIT_LATENCY_THRESHOLD;
+
+    // destinations whose posts are gzipped, comma separated CPTRecordDest names; only
+    // records of at least gzip_min_size bytes are compressed
+    @Value("${cpt.gzip_destinations:}")
+    private String[] CPT_GZIP_DESTINATIONS;
+
+    @Value("${cpt.gzip_min_size:65536}")
+    private int CPT_GZIP_MIN_SIZE;
+
+    // 1 (fastest) to 9 (smallest)
+    @Value("${cpt.gzip_level:1}")
+    private int CPT_GZIP_LEVEL;
 
     private static final Log LOG = LogFactory.getLog(CPTServiceImpl.class);
 
+    private CloseableHttpClient httpClient;
+    private RestTemplate restTemplate;
+    protected SSLContext sslContext;
+    protected CPTSessionPool sessionPool;
+    protected final Map<CPTRecordDest, CPTConcurrencyLimiter> limiters = new EnumMap<>(CPTRecordDest.class);
+    private final Set<CPTRecordDest> gzipDestinations = EnumSet.noneOf(CPTRecordDest.class);
+
     public static enum CPTRecordDest {
-        PROMOTED_REQUEST_RECORD_DEST,
-        NEW_REQUEST_RECORD_DEST,
-        UPDATE_REQUEST_RECORD_DEST,
-        UPDATE_SAMPLE_RECORD_DEST,
-        SAMPLE_STATUS_RECORD_DEST;
+        PROMOTED_REQUEST_RECORD_DEST(CPTRecordIdExtractor.IGO_REQUEST_ID),
+        NEW_REQUEST_RECORD_DEST(CPTRecordIdExtractor.IGO_REQUEST_ID),
+        UPDATE_REQUEST_RECORD_DEST(CPTRecordIdExtractor.IGO_REQUEST_ID),
+        UPDATE_SAMPLE_RECORD_DEST(CPTRecordIdExtractor.IGO_SAMPLE_ID),
+        SAMPLE_STATUS_RECORD_DEST(CPTRecordIdExtractor.IGO_REQUEST_TRACKER_ID);
+
+        private final String entityIdField;
+
+        CPTRecordDest(String entityIdField) {
+            this.entityIdField = entityIdField;
+        }
+
+        /**
+         * Field holding the id of the request or sample a record is about.
+         */
+        public String getEntityIdField() {
+            return entityIdField;
+        }
+    }
+
+    @PostConstruct
+    public void initializeHttpClient() throws Exception {
+        TrustStrategy acceptingTrustStrategy = (X509Certificate[] chain, String authType) -> true;
+        HostnameVerifier hostnameVerifier = (s, sslSession) -> true;
+        // one ssl context for the life of the gateway so its session cache lets new
+        // connections resume tls sessions instead of doing a full handshake
+        sslContext = SSLContexts.custom().loadTrustMaterial(null, acceptingTrustStrategy).build();
+        SSLConnectionSocketFactory csf = new SSLConnectionSocketFactory(sslContext, hostnameVerifier);
+        Registry<ConnectionSocketFactory> socketFactoryRegistry =
+            RegistryBuilder.<ConnectionSocketFactory>create()
+            .register("http", PlainConnectionSocketFactory.getSocketFactory())
+            .register("https", csf).build();
+        PoolingHttpClientConnectionManager connectionManager =
+            new PoolingHttpClientConnectionManager(socketFactoryRegistry);
+        connectionManager.setMaxTotal(CPT_MAX_CONNECTIONS_TOTAL);
+        connectionManager.setDefaultMaxPerRoute(CPT_MAX_CONNECTIONS_PER_ROUTE);
+        // revalidate connections that have been sitting in the pool before reusing them
+        connectionManager.setValidateAfterInactivity(2000);
+        httpClient = HttpClients.custom()
+            .setConnectionManager(connectionManager)
+            .setDefaultRequestConfig(getRequestConfig())
+            .setKeepAliveStrategy(this::getKeepAliveDuration)
+            .evictExpiredConnections()
+            .evictIdleConnections(CPT_IDLE_CONNECTION_TIMEOUT, TimeUnit.MILLISECONDS)
+            // we do not use client certificates, so pooled connections need no user token
+            .disableConnectionState()
+            .build();
+        HttpComponentsClientHttpRequestFactory requestFactory =
+            new HttpComponentsClientHttpRequestFactory(httpClient);
+        // post bodies are written straight to the connection instead of into a buffer first
+        requestFactory.setBufferRequestBody(false);
+        restTemplate = new RestTemplate(requestFactory);
+        restTemplate.getMessageConverters().add(0, new CPTPostBodyHttpMessageConverter());
+        sessionPool = new CPTSessionPool(CPT_SESSION_POOL_SIZE, CPT_SESSION_TOKEN_TTL,
+                                         this::getSessionToken);
+        for (CPTRecordDest recordDest : CPTRecordDest.values()) {
+            CPTConcurrencyLimiter limiter = new CPTConcurrencyLimiter(recordDest.name(),
+                    CPT_ADAPTIVE_LIMIT_ENABLED, CPT_ADAPTIVE_LIMIT_INITIAL, CPT_ADAPTIVE_LIMIT_MIN,
+                    getMaxInFlight(), CPT_ADAPTIVE_LIMIT_BACKOFF, CPT_ADAPTIVE_LIMIT_LATENCY_THRESHOLD);
+            limiters.put(recordDest, limiter);
+            CPTMetrics.registerGauge("cpt_concurrency_limit", "Adaptive limit on posts in flight.",
+                                     CPTMetrics.destLabel(recordDest), limiter::getLimit);
+            CPTMetrics.registerGauge("cpt_posts_in_flight", "Posts sent and not yet answered.",
+                                     CPTMetrics.destLabel(recordDest), limiter::getInFlight);
+            CPTMetrics.registerCounter("cpt_concurrency_limit_increases_total",
+                                       "Fast responses that raised the concurrency limit.",
+                                       CPTMetrics.destLabel(recordDest), limiter::getIncreaseCount);
+            CPTMetrics.registerCounter("cpt_concurrency_limit_decreases_total",
+                                       "Overloads that lowered the concurrency limit.",
+                                       CPTMetrics.destLabel(recordDest), limiter::getDecreaseCount);
+        }
+        for (String recordDest : CPT_GZIP_DESTINATIONS) {
+            if (!recordDest.trim().isEmpty()) {
+                gzipDestinations.add(CPTRecordDest.valueOf(recordDest.trim()));
+            }
+        }
+    }
+
+    /**
+     * Ceiling of the adaptive limit on posts in flight per destination.
+     */
+    protected int getMaxInFlight() {
+        return CPT_ADAPTIVE_LIMIT_MAX;
+    }
+
+    @Override
+    public CPTConcurrencyLimiter getLimiter(CPTRecordDest recordDest) {
+        return limiters.get(recordDest);
+    }
+
+    /**
+     * The permit the record was handed, or one waited for.
+     */
+    protected CPTConcurrencyLimiter.Permit acquirePermit(CPTRecord record) {
+        CPTConcurrencyLimiter.Permit permit = record.takePostPermit();
+        if (permit == null) {
+            return limiters.get(record.getRecordDest()).acquire();
+        }
+        permit.restartClock();
+        return permit;
+    }
+
+    /**
+     * Whether a failed post means the destination is overloaded, as opposed
+     * to a problem with the record itself, and so is worth retrying later.
+     */
+    protected static boolean isOverload(Exception e) {
+        return e instanceof ResourceAccessException || e instanceof HttpServerErrorException
+            || e instanceof HttpClientErrorException.TooManyRequests;
+    }
+
+    protected static boolean isOverload(int statusCode) {
+        return statusCode >= 500 || statusCode == 429;
+    }
+
+    protected RequestConfig getRequestConfig() {
+        return RequestConfig.custom()
+            // time to wait for a connection from pool
+            .setConnectionRequestTimeout(CPT_POST_TIMEOUTS)
+            // time to establish connection with remote
+            .setConnectTimeout(CPT_POST_TIMEOUTS)
+            // time waiting for data
+            .setSocketTimeout(CPT_POST_TIMEOUTS).build();
+    }
+
+    protected long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+        long serverKeepAlive = DefaultConnectionKeepAliveStrategy.INSTANCE
+            .getKeepAliveDuration(response, context);
+        return (serverKeepAlive > 0)
+            ? Math.min(serverKeepAlive, CPT_CONNECTION_KEEP_ALIVE) : CPT_CONNECTION_KEEP_ALIVE;
+    }
+
+    @PreDestroy
+    public void shutdownHttpClient() throws Exception {
+        if (sessionPool != null) {
+            for (String token : sessionPool.drainTokens()) {
+                closeSession(token);
+            }
+        }
+        if (httpClient != null) {
+            httpClient.close();
+        }
     }
 
     @Override
-    public void pushRecord(String record, CPTRecordDest recordDest) throws Exception {
+    public void pushRecord(CPTRecord record) throws Exception {
+        CPTPostBody postBody;
+        try {
+            postBody = getPostBody(record);
+        } catch (RuntimeException e) {
+            CPTMetrics.countPost(record.getRecordDest(), PostOutcome.PARSE_FAILURE);
+            throw e;
+        }
+        postToCPT(record, postBody);
+    }
+
+    protected String getRecordUrl(CPTRecordDest recordDest) {
         switch (recordDest) {
             case PROMOTED_REQUEST_RECORD_DEST:
-                postToCPT(getEntityId(record, IGO_REQUEST_ID_REGEX),
-                          getRequestPostBody(record), CPT_PROMOTED_REQUEST_RECORD_URL);
-                break;
+                return CPT_PROMOTED_REQUEST_RECORD_URL;
             case NEW_REQUEST_RECORD_DEST:
-                postToCPT(getEntityId(record, IGO_REQUEST_ID_REGEX),
-                          getRequestPostBody(record), CPT_NEW_REQUEST_RECORD_URL);
-                break;
+                return CPT_NEW_REQUEST_RECORD_URL;
             case UPDATE_REQUEST_RECORD_DEST:
-                postToCPT(getEntityId(record, IGO_REQUEST_ID_REGEX),
-                          getRequestPostBody(record), CPT_UPDATE_REQUEST_RECORD_URL);
-                break;
+                return CPT_UPDATE_REQUEST_RECORD_URL;
             case UPDATE_SAMPLE_RECORD_DEST:
-                postToCPT(getEntityId(record, IGO_SAMPLE_ID_REGEX),
-                          getSamplePostBody(record), CPT_UPDATE_SAMPLE_RECORD_URL);
-                break;
+                return CPT_UPDATE_SAMPLE_RECORD_URL;
             case SAMPLE_STATUS_RECORD_DEST:
-                postToCPT(getEntityId(record, IGO_REQUEST_TRACKER_ID_REGEX),
-                          getRequestPostBody(record), CPT_SAMPLE_STATUS_RECORD_URL);
-                break;
+                return CPT_SAMPLE_STATUS_RECORD_URL;
+            default:
+                return "";
+        }
+    }
+
+    protected CPTPostBody getPostBody(CPTRecord record) {
+        CPTPostBody postBody = buildPostBody(record);
+        if (gzipDestinations.contains(record.getRecordDest())
+            && postBody.getRecordLength() >= CPT_GZIP_MIN_SIZE) {
+            postBody.setGzipLevel(CPT_GZIP_LEVEL);
+        }
+        return postBody;
+    }
+
+    private CPTPostBody buildPostBody(CPTRecord record) {
+        byte[] data = record.getData();
+        switch (record.getRecordDest()) {
+            case UPDATE_SAMPLE_RECORD_DEST:
+                return getSamplePostBody(getEntityId(record), data);
+            case SAMPLE_STATUS_RECORD_DEST: {
+                // status records are keyed by the request tracker id but posted
+                // under the igo request id
+                String igoRequestID = CPTRecordIdExtractor.extract(data, CPTRecordIdExtractor.IGO_REQUEST_ID);
+                return getRequestPostBody(igoRequestID, data);
+            }
             default:
-                break;
+                return getRequestPostBody(getEntityId(record), data);
         }
     }
 
-    private String getSamplePostBody(String sampleRecord) {
-        String igoSampleID = getEntityId(sampleRecord, IGO_SAMPLE_ID_REGEX);
+    /**
+     * Id the record is logged and ordered under, see {@link CPTRecordDest#getEntityIdField()}.
+     */
+    protected String getEntityId(CPTRecord record) {
+        // the message handler extracts the id when it queues the record to pick its lane
+        if (record.getEntityId() != null) {
+            return record.getEntityId();
+        }
+        return CPTRecordIdExtractor.extract(record.getData(), record.getRecordDest().getEntityIdField());
+    }
+
+    private CPTPostBody getSamplePostBody(String igoSampleID, byte[] sampleRecord) {
         if (igoSampleID.length() > 0) {
-            // this is to avoid filemaker data api error 1708
-            String escapedSample = sampleRecord.replace("\"", "\\\"");
-            return "{\"fieldData\":{\"igoSampleId\": \""
-                + igoSampleID + "\",\"sampleJSON\": " + escapedSample + "}}";
+            return CPTPostBody.forSample(igoSampleID, sampleRecord);
         }
         throw new RuntimeException("Error parsing request, cannot find requestId.",
-                                   new Throwable(sampleRecord));
+                                   new Throwable(new String(sampleRecord, StandardCharsets.UTF_8)));
     }
 
-    private String getRequestPostBody(String requestRecord) {
-        String igoRequestID = getEntityId(requestRecord, IGO_REQUEST_ID_REGEX);
+    private CPTPostBody getRequestPostBody(String igoRequestID, byte[] requestRecord) {
         if (igoRequestID.length() > 0) {
-            // this is to avoid filemaker data api error 1708
-            String escapedRequest = requestRecord.replace("\"", "\\\"");
-            return "{\"fieldData\":{\"projectBatchNumber\": \""
-                + igoRequestID + "\",\"requestJSON\": " + escapedRequest + "}}";
+            return CPTPostBody.forRequest(igoRequestID, requestRecord);
         }
         throw new RuntimeException("Error parsing request, cannot find requestId.",
-                                   new Throwable(requestRecord));
+                                   new Throwable(new String(requestRecord, StandardCharsets.UTF_8)));
     }
 
-    private String getEntityId(String entityRecord, Pattern regex) {
-        Matcher matcher = regex.matcher(entityRecord);
-        if (matcher.find()) {
-            return matcher.group(1);
+    private void postToCPT(CPTRecord record, CPTPostBody postBody) throws Exception {
+        String entityId = getEntityId(record);
+        CPTRecordDest recordDest = record.getRecordDest();
+        String url = getRecordUrl(recordDest);
+        if (url.isEmpty()) {
+            return;
+        }
+        CPTConcurrencyLimiter.Permit permit = acquirePermit(record);
+        ResponseEntity responseEntity;
+        try {
+            responseEntity = postWithSession(sessionPool.acquire(), postBody, record, url);
+            if (responseEntity.getStatusCode().is2xxSuccessful()) {
+                permit.success();
+            }
+        } catch (Exception e) {
+            if (isOverload(e)) {
+                permit.overload(e.getClass().getSimpleName());
+            }
+            CPTMetrics.countPost(recordDest, (e instanceof HttpStatusCodeException)
+                                 ? PostOutcome.NON_2XX : PostOutcome.EXCEPTION);
+            if (LOG.isInfoEnabled()) {
+                LOG.info("Unsuccessful postToCPT (Entity ID, CPT URL): " + entityId + ", " + url);
+            }
+            throw new CPTPostException(String.valueOf(e.getMessage()), isOverload(e), e);
+        } finally {
+            permit.release();
+        }
+        if (!responseEntity.getStatusCode().is2xxSuccessful()) {
+            CPTMetrics.countPost(recordDest, PostOutcome.NON_2XX);
+            if (LOG.isInfoEnabled()) {
+                LOG.info("Unsuccessful postToCPT (Entity ID, CPT URL): " + entityId + ", " + url);
+            }
+            throw new CPTPostException(responseEntity.getStatusCode().toString(), false, null);
+        }
+        CPTMetrics.countPost(recordDest, PostOutcome.SUCCESS);
+        if (LOG.isInfoEnabled()) {
+            LOG.info("Successful postToCPT (Entity ID, CPT URL): " + entityId + ", " + url);
         }
-        return "";
     }
 
-    private void postToCPT(String entityId, String postBody, String recordDest) throws Exception {
-        if (recordDest.isEmpty()) {
-            return;
+    private ResponseEntity postWithSession(CPTSession session, CPTPostBody postBody, CPTRecord record,
+                                           String url) throws Exception {
+        String token = getToken(session, record);
+        try {
+            return exchange(postBody, token, record, url);
+        } catch (HttpClientErrorException.Unauthorized e) {
+            // session was closed on the server side, re-authenticate once and retry
+            if (LOG.isInfoEnabled()) {
+                LOG.info("CPT session token rejected, refreshing session for: " + url);
+            }
+            session.invalidate(token);
+            return exchange(postBody, getToken(session, record), record, url);
+        }
+    }
+
+    private String getToken(CPTSession session, CPTRecord record) throws Exception {
+        long start = System.nanoTime();
+        try {
+            return session.getToken();
+        } finally {
+            long end = System.nanoTime();
+            record.mark(Stage.TOKEN_ACQUIRED, end);
+            CPTMetrics.recordTokenNanos(record.getRecordDest(), end - start);
+        }
+    }
+
+    private ResponseEntity exchange(CPTPostBody postBody, String token, CPTRecord record, String url) {
+        long start = System.nanoTime();
+        record.mark(Stage.POST_SENT, start);
+        try {
+            return restTemplate.exchange(url, HttpMethod.POST, getPostEntity(postBody, token), Object.class);
+        } finally {
+            long end = System.nanoTime();
+            record.mark(Stage.RESPONSE_RECEIVED, end);
+            CPTMetrics.recordPostNanos(record.getRecordDest(), end - start);
         }
+    }
+
+    private HttpEntity getPostEntity(CPTPostBody postBody, String token) {
         HttpHeaders headers = new HttpHeaders();
         headers.setContentType(MediaType.APPLICATION_JSON);
-        headers.setBearerAuth(getSessionToken());
+        headers.setBearerAuth(token);
+        return new HttpEntity<Object>(postBody, headers);
+    }
+
+    private void closeSession(String token) {
         try {
-            HttpEntity requestEntity = new HttpEntity<Object>(postBody, headers);
-            RestTemplate restTemplate = getRestTemplate();
-            ResponseEntity responseEntity =
-                restTemplate.exchange(recordDest,
-                                      HttpMethod.POST, requestEntity, Object.class);
-            if (!responseEntity.getStatusCode().is2xxSuccessful()) {
-                cptFileService.saveCPTPostFailure(responseEntity.getStatusCode().toString(),
-                                                  postBody);
-                if (LOG.isInfoEnabled()) {
-                    LOG.info("Unsuccessful postToCPT (Entity ID, CPT URL): "
-                             + entityId + ", " + recordDest);
-                }
-            } else if (LOG.isInfoEnabled()) {
-                LOG.info("Successful postToCPT (Entity ID, CPT URL): "
-                         + entityId + ", " + recordDest);
-            }
+            restTemplate.exchange(CPT_SESSION_TOKEN_URL + "/" + token, HttpMethod.DELETE,
+                                  HttpEntity.EMPTY, Object.class);
         } catch (Exception e) {
-            if (postBody.equals("")) {
-                cptFileService.saveCPTPostFailure(e.getMessage(), e.getCause().getMessage());
-            } else {
-                cptFileService.saveCPTPostFailure(e.getMessage(), postBody);
-            }
+            LOG.warn("Unable to close CPT session on shutdown: " + e.getMessage());
         }
     }
 
@@ -170,37 +466,17 @@ public class CPTServiceImpl implements CPTService {
         headers.setContentType(MediaType.APPLICATION_JSON);
         headers.setBasicAuth(CPT_AUTHORIZATION_TOKEN);
         HttpEntity requestEntity = new HttpEntity<Object>(headers);
-        RestTemplate restTemplate = getRestTemplate();
-        ResponseEntity responseEntity = restTemplate.exchange(CPT_SESSION_TOKEN_URL,
-                                                              HttpMethod.POST, requestEntity, Object.class);
-        if (responseEntity.getStatusCode().is2xxSuccessful()) {
-            Matcher matcher = CPT_TOKEN_REGEX.matcher(responseEntity.getBody().toString());
-            if (matcher.find()) {
-                return matcher.group(1);
+        ResponseEntity<Map> responseEntity = restTemplate.exchange(CPT_SESSION_TOKEN_URL,
+                                                                   HttpMethod.POST, requestEntity, Map.class);
+        if (responseEntity.getStatusCode().is2xxSuccessful() && responseEntity.getBody() != null) {
+            // filemaker data api replies with {"response": {"token": "..."}, "messages": [...]}
+            Object response = responseEntity.getBody().get("response");
+            if (response instanceof Map && ((Map) response).get("token") instanceof String) {
+                return (String) ((Map) response).get("token");
             }
         }
         throw new RuntimeException("CPT session token call failed, http status code: "
                                    + responseEntity.getStatusCode()
                                    + ", content: " + responseEntity.getBody());
     }
-
-    private RestTemplate getRestTemplate() throws Exception {
-        TrustStrategy acceptingTrustStrategy = (X509Certificate[] chain, String authType) -> true;
-        HostnameVerifier hostnameVerifier = (s, sslSession) -> true;
-        SSLContext sslContext = SSLContexts.custom().loadTrustMaterial(null, acceptingTrustStrategy).build();
-        SSLConnectionSocketFactory csf = new SSLConnectionSocketFactory(sslContext, hostnameVerifier);
-        CloseableHttpClient httpClient = HttpClients.custom().setSSLSocketFactory(csf).build();
-        RequestConfig requestConfig = RequestConfig.custom()
-            // time to wait for a connection from pool
-            .setConnectionRequestTimeout(CPT_POST_TIMEOUTS)
-            // time to establish connection with remote
-            .setConnectTimeout(CPT_POST_TIMEOUTS)
-            // time waiting for data
-            .setSocketTimeout(CPT_POST_TIMEOUTS).build();
-        HttpClientBuilder builder = HttpClientBuilder.create().setDefaultRequestConfig(requestConfig);
-        HttpComponentsClientHttpRequestFactory requestFactory =
-            new HttpComponentsClientHttpRequestFactory(builder.build());
-        requestFactory.setHttpClient(httpClient);
-        return new RestTemplate(requestFactory);
-    }
 }
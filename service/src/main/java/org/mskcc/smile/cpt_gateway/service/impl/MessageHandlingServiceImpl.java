@@ -1,22 +1,56 @@
 package org.mskcc.smile.cpt_gateway.service.impl;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
+import io.nats.client.Connection;
+import io.nats.client.Dispatcher;
+import io.nats.client.JetStream;
 import io.nats.client.Message;
+import io.nats.client.api.DeliverPolicy;
+import java.io.IOException;
 import java.nio.charset.StandardCharsets;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.CountDownLatch;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.Phaser;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.net.ssl.SSLContext;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.mskcc.cmo.messaging.Gateway;
 import org.mskcc.cmo.messaging.MessageConsumer;
+import org.mskcc.smile.cpt_gateway.model.CPTRecord;
+import org.mskcc.smile.cpt_gateway.service.CPTFileService;
 import org.mskcc.smile.cpt_gateway.service.CPTService;
 import org.mskcc.smile.cpt_gateway.service.MessageHandlingService;
 import org.mskcc.smile.cpt_gateway.service.impl.CPTServiceImpl.CPTRecordDest;
+import org.mskcc.smile.cpt_gateway.service.util.CPTCircuitBreaker;
+import org.mskcc.smile.cpt_gateway.service.util.CPTConcurrencyLimiter;
+import org.mskcc.smile.cpt_gateway.service.util.CPTJetStreamPuller;
+import org.mskcc.smile.cpt_gateway.service.util.CPTMetrics;
+import org.mskcc.smile.cpt_gateway.service.util.CPTPostException;
+import org.mskcc.smile.cpt_gateway.service.util.CPTRecordCoalescer;
+import org.mskcc.smile.cpt_gateway.service.util.CPTRecordCoalescer.RecordSink;
+import org.mskcc.smile.cpt_gateway.service.util.CPTRecordHashCache;
+import org.mskcc.smile.cpt_gateway.service.util.CPTRecordIdExtractor;
+import org.mskcc.smile.cpt_gateway.service.util.CPTRecordJournal;
+import org.mskcc.smile.cpt_gateway.service.util.CPTRecordQueue;
+import org.mskcc.smile.cpt_gateway.service.util.CPTRecordQueue.OverflowPolicy;
+import org.mskcc.smile.cpt_gateway.service.util.CPTRecordScheduler;
+import org.mskcc.smile.cpt_gateway.service.util.CPTRecordTracer;
+import org.mskcc.smile.cpt_gateway.service.util.CPTRecordTracer.Stage;
+import org.mskcc.smile.cpt_gateway.service.util.CPTXXHash64;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
@@ -25,6 +59,13 @@ import org.springframework.stereotype.Component;
 public class MessageHandlingServiceImpl implements MessageHandlingService {
     private static final Log LOG = LogFactory.getLog(MessageHandlingServiceImpl.class);
 
+    public enum ExecutionMode {
+        // scheduler workers are platform threads, each blocking on its post
+        PLATFORM,
+        // a few scheduler workers start a virtual thread per record (java 21+)
+        VIRTUAL;
+    }
+
     @Value("${cmo.promoted_request_topic}")
     private String CMO_PROMOTED_REQUEST_TOPIC;
 
@@ -55,83 +96,325 @@ public class MessageHandlingServiceImpl implements MessageHandlingService {
     @Value("${num.request_status_handler_threads}")
     private int NUM_REQUEST_STATUS_HANDLERS;
 
+    @Value("${num.promoted_request_queue_capacity:1000}")
+    private int PROMOTED_REQUEST_QUEUE_CAPACITY;
+
+    @Value("${num.new_request_queue_capacity:1000}")
+    private int NEW_REQUEST_QUEUE_CAPACITY;
+
+    @Value("${num.update_request_queue_capacity:1000}")
+    private int UPDATE_REQUEST_QUEUE_CAPACITY;
+
+    @Value("${num.update_sample_queue_capacity:1000}")
+    private int UPDATE_SAMPLE_QUEUE_CAPACITY;
+
+    @Value("${num.request_status_queue_capacity:1000}")
+    private int REQUEST_STATUS_QUEUE_CAPACITY;
+
+    @Value("${messaging.queue_overflow_policy:BLOCK}")
+    private OverflowPolicy QUEUE_OVERFLOW_POLICY;
+
+    @Value("${messaging.queue_high_watermark:0.9}")
+    private double QUEUE_HIGH_WATERMARK;
+
+    @Value("${messaging.queue_low_watermark:0.5}")
+    private double QUEUE_LOW_WATERMARK;
+
+    // records at least this large are held compressed while queued, 0 holds them as they are
+    @Value("${messaging.queue_compress_min_bytes:0}")
+    private int QUEUE_COMPRESS_MIN_BYTES;
+
+    // 0 disables coalescing of update records
+    @Value("${messaging.update_coalesce_debounce_ms:0}")
+    private long UPDATE_COALESCE_DEBOUNCE_MS;
+
+    @Value("${messaging.update_coalesce_max_hold_ms:30000}")
+    private long UPDATE_COALESCE_MAX_HOLD_MS;
+
+    @Value("${messaging.execution_mode:PLATFORM}")
+    private ExecutionMode EXECUTION_MODE;
+
+    // posts in flight per destination in VIRTUAL execution mode
+    @Value("${messaging.virtual_thread_max_in_flight:100}")
+    private int VIRTUAL_THREAD_MAX_IN_FLIGHT;
+
+    @Value("${messaging.lanes_per_destination:32}")
+    private int LANES_PER_DESTINATION;
+
+    // 0 sizes the shared worker pool as the sum of num.*_handler_threads
+    @Value("${messaging.scheduler_threads:0}")
+    private int SCHEDULER_THREADS;
+
+    // with a maximum above 0 the shared worker pool grows and shrinks between these bounds
+    @Value("${messaging.scheduler_min_threads:1}")
+    private int SCHEDULER_MIN_THREADS;
+
+    @Value("${messaging.scheduler_max_threads:0}")
+    private int SCHEDULER_MAX_THREADS;
+
+    // workers above the minimum retire once idle this long
+    @Value("${messaging.scheduler_keep_alive_ms:60000}")
+    private long SCHEDULER_KEEP_ALIVE_MS;
+
+    // workers are added while lanes wait for one and records have waited this long in their queue
+    @Value("${messaging.scheduler_grow_wait_ms:100}")
+    private long SCHEDULER_GROW_WAIT_MS;
+
+    @Value("${messaging.scheduler_resize_interval_ms:1000}")
+    private long SCHEDULER_RESIZE_INTERVAL_MS;
+
+    // share of the workers each destination gets while others are busy too
+    @Value("${messaging.promoted_request_weight:8}")
+    private int PROMOTED_REQUEST_WEIGHT;
+
+    @Value("${messaging.new_request_weight:8}")
+    private int NEW_REQUEST_WEIGHT;
+
+    @Value("${messaging.update_request_weight:4}")
+    private int UPDATE_REQUEST_WEIGHT;
+
+    @Value("${messaging.update_sample_weight:4}")
+    private int UPDATE_SAMPLE_WEIGHT;
+
+    @Value("${messaging.request_status_weight:1}")
+    private int REQUEST_STATUS_WEIGHT;
+
+    // 0 disables moving entity buckets between lanes
+    @Value("${messaging.lane_rebalance_interval_ms:60000}")
+    private long LANE_REBALANCE_INTERVAL_MS;
+
+    // retries of a record after a timeout, i/o error, 5xx or 429, 0 saves it to the failure file at once
+    @Value("${cpt.retry_max_attempts:3}")
+    private int CPT_RETRY_MAX_ATTEMPTS;
+
+    @Value("${cpt.retry_initial_backoff_ms:1000}")
+    private long CPT_RETRY_INITIAL_BACKOFF_MS;
+
+    @Value("${cpt.retry_max_backoff_ms:60000}")
+    private long CPT_RETRY_MAX_BACKOFF_MS;
+
+    // per destination: opens at the failure or slow call rate over the last window_size posts
+    // (once minimum_calls have been seen), parks its records for open_ms, then lets
+    // half_open_probes through and closes if they all succeed
+    @Value("${cpt.circuit_breaker_enabled:true}")
+    private boolean CPT_CIRCUIT_BREAKER_ENABLED;
+
+    @Value("${cpt.circuit_breaker_window_size:20}")
+    private int CPT_CIRCUIT_BREAKER_WINDOW_SIZE;
+
+    @Value("${cpt.circuit_breaker_minimum_calls:10}")
+    private int CPT_CIRCUIT_BREAKER_MINIMUM_CALLS;
+
+    @Value("${cpt.circuit_breaker_failure_rate:0.5}")
+    private double CPT_CIRCUIT_BREAKER_FAILURE_RATE;
+
+    @Value("${cpt.circuit_breaker_slow_call_rate:0.8}")
+    private double CPT_CIRCUIT_BREAKER_SLOW_CALL_RATE;
+
+    @Value("${cpt.circuit_breaker_slow_call_ms:10000}")
+    private long CPT_CIRCUIT_BREAKER_SLOW_CALL_MS;
+
+    @Value("${cpt.circuit_breaker_open_ms:30000}")
+    private long CPT_CIRCUIT_BREAKER_OPEN_MS;
+
+    @Value("${cpt.circuit_breaker_half_open_probes:3}")
+    private int CPT_CIRCUIT_BREAKER_HALF_OPEN_PROBES;
+
+    // skip records whose data is the same as the last record posted for their entity
+    @Value("${cpt.dedupe_enabled:false}")
+    private boolean CPT_DEDUPE_ENABLED;
+
+    @Value("${cpt.dedupe_max_entries:1000000}")
+    private int CPT_DEDUPE_MAX_ENTRIES;
+
+    // entities are posted again once this long after their last post, 0 never
+    @Value("${cpt.dedupe_ttl_ms:86400000}")
+    private long CPT_DEDUPE_TTL_MS;
+
+    // empty keeps the hashes in memory only
+    @Value("${cpt.dedupe_snapshot_file:}")
+    private String CPT_DEDUPE_SNAPSHOT_FILE;
+
+    @Value("${cpt.dedupe_snapshot_interval_ms:300000}")
+    private long CPT_DEDUPE_SNAPSHOT_INTERVAL_MS;
+
+    @Value("${cpt.journal_enabled:false}")
+    private boolean CPT_JOURNAL_ENABLED;
+
+    @Value("${cpt.journal_dir:}")
+    private String CPT_JOURNAL_DIR;
+
+    @Value("${cpt.journal_segment_size:67108864}")
+    private int CPT_JOURNAL_SEGMENT_SIZE;
+
+    @Value("${cpt.journal_fsync:false}")
+    private boolean CPT_JOURNAL_FSYNC;
+
+    // keep the trace of records taking longer than this from receive to response, 0 traces nothing
+    @Value("${cpt.trace_slow_record_ms:0}")
+    private long CPT_TRACE_SLOW_RECORD_MS;
+
+    @Value("${cpt.trace_buffer_size:256}")
+    private int CPT_TRACE_BUFFER_SIZE;
+
+    // pull the topics from durable JetStream consumers and ack records once handled
+    @Value("${nats.pull_consumer_enabled:false}")
+    private boolean NATS_PULL_CONSUMER_ENABLED;
+
+    @Value("${nats.pull_durable_prefix:cpt_gateway}")
+    private String NATS_PULL_DURABLE_PREFIX;
+
+    @Value("${nats.pull_batch_size:100}")
+    private int NATS_PULL_BATCH_SIZE;
+
+    @Value("${nats.pull_max_wait_ms:1000}")
+    private long NATS_PULL_MAX_WAIT_MS;
+
+    @Value("${nats.pull_ack_wait_ms:60000}")
+    private long NATS_PULL_ACK_WAIT_MS;
+
+    // where a newly created durable consumer starts: new messages only rather than the stream's history
+    @Value("${nats.pull_deliver_policy:new}")
+    private String NATS_PULL_DELIVER_POLICY;
+
+    // pending messages are marked in progress at this interval, below the ack wait
+    @Value("${nats.pull_ack_progress_ms:20000}")
+    private long NATS_PULL_ACK_PROGRESS_MS;
+
+    @Value("${nats.url:}")
+    private String NATS_URL;
+
+    @Value("${nats.consumer_name:}")
+    private String NATS_CONSUMER_NAME;
+
+    @Value("${nats.consumer_password:}")
+    private String NATS_CONSUMER_PASSWORD;
+
+    @Value("${nats.tls_channel:}")
+    private String NATS_TLS_CHANNEL;
+
+    @Value("${nats.keystore_path:}")
+    private String NATS_KEYSTORE_PATH;
+
+    @Value("${nats.truststore_path:}")
+    private String NATS_TRUSTSTORE_PATH;
+
+    @Value("${nats.key_password:}")
+    private String NATS_KEY_PASSWORD;
+
+    @Value("${nats.store_password:}")
+    private String NATS_STORE_PASSWORD;
+
+    // instances in the same group share the topics, each record goes to one of them
+    @Value("${nats.queue_group:}")
+    private String NATS_QUEUE_GROUP;
+
+    // with more than one instance, records are pulled by the instance owning the hash partition
+    // of their entity id, so each entity is always posted by the same instance
+    @Value("${nats.affinity_instance_count:1}")
+    private int NATS_AFFINITY_INSTANCE_COUNT;
+
+    @Value("${nats.affinity_instance_index:0}")
+    private int NATS_AFFINITY_INSTANCE_INDEX;
+
+    // required with affinity and fixed for the life of the streams, instances can then come and go;
+    // every partition reads the whole topic
+    @Value("${nats.affinity_partitions:0}")
+    private int NATS_AFFINITY_PARTITIONS;
+
     @Autowired
     private CPTService cptService;
 
+    @Autowired
+    private CPTFileService cptFileService;
+
     private static boolean initialized = false;
     private static volatile boolean shutdownInitiated;
     private static final ExecutorService exec = Executors.newCachedThreadPool();
-    private static final BlockingQueue<String> promotedRequestQueue =
-        new LinkedBlockingQueue<String>();
-    private static CountDownLatch promotedRequestHandlerShutdownLatch;
-    private static final BlockingQueue<String> newRequestQueue =
-        new LinkedBlockingQueue<String>();
-    private static CountDownLatch newRequestHandlerShutdownLatch;
-    private static final BlockingQueue<String> updateRequestQueue =
-        new LinkedBlockingQueue<String>();
-    private static CountDownLatch updateRequestHandlerShutdownLatch;
-    private static final BlockingQueue<String> updateSampleQueue =
-        new LinkedBlockingQueue<String>();
-    private static CountDownLatch updateSampleHandlerShutdownLatch;
-    private static final BlockingQueue<String> requestStatusQueue =
-        new LinkedBlockingQueue<String>();
-    private static CountDownLatch requestStatusHandlerShutdownLatch;
+    private static CPTRecordQueue promotedRequestQueue;
+    private static CPTRecordQueue newRequestQueue;
+    private static CPTRecordQueue updateRequestQueue;
+    private static CPTRecordCoalescer updateRequestCoalescer;
+    private static CPTRecordQueue updateSampleQueue;
+    private static CPTRecordCoalescer updateSampleCoalescer;
+    private static CPTRecordQueue requestStatusQueue;
+    // read by the admin endpoint's thread
+    private volatile CPTRecordScheduler scheduler;
+    private static ScheduledExecutorService laneMonitor;
+    private static ScheduledExecutorService schedulerMonitor;
+    // one party per record handed to the CPT service and not yet completed
+    private static final Phaser inFlightRecords = new Phaser(1);
+    private static ExecutorService virtualThreadExecutor;
+    // records on virtual threads per destination, permits are taken by the scheduler
+    private static final Map<CPTRecordDest, CPTConcurrencyLimiter> virtualThreadLimiters =
+        new EnumMap<>(CPTRecordDest.class);
+    private static final Map<String, CompletableFuture<Void>> lastRecordByEntity = new ConcurrentHashMap<>();
+    // delay queue of records waiting for a retry, the newest per entity
+    private static ScheduledExecutorService retryExecutor;
+    private static final Map<String, CPTRecord> pendingRetries = new ConcurrentHashMap<>();
+    // destination and stream sequence of nakked records a newer record has superseded
+    private static final Set<String> supersededRedeliveries = ConcurrentHashMap.newKeySet();
+    // newest generation let through per entity, kept while any of its records is not done with
+    private static final Map<String, EntityGeneration> entityGenerations = new ConcurrentHashMap<>();
+    private static final AtomicLong lastGeneration = new AtomicLong();
+    private static volatile boolean retriesClosed;
+    private static final Map<CPTRecordDest, CPTCircuitBreaker> circuitBreakers =
+        new EnumMap<>(CPTRecordDest.class);
+    private static CPTRecordHashCache recordHashes;
+    private static ScheduledExecutorService snapshotExecutor;
     private static Gateway messagingGateway;
-    private final ObjectMapper mapper = new ObjectMapper();
-
-    private class CPTHandler implements Runnable {
-
-        final Phaser phaser;
-        boolean interrupted = false;
-        final CPTRecordDest cptRecordDest;
-        final BlockingQueue<String> requestQueue;
-        final CountDownLatch shutdownLatch;
+    private static final Map<CPTRecordDest, CPTRecordJournal> journals = new EnumMap<>(CPTRecordDest.class);
+    private static Connection natsConnection;
+    private static final List<Dispatcher> queueGroupDispatchers = new ArrayList<>();
+    private static final List<CPTJetStreamPuller> pullers = new ArrayList<>();
+    private static DeliverPolicy natsPullDeliverPolicy;
+    private static ScheduledExecutorService pullProgressExecutor;
 
-        CPTHandler(Phaser phaser, CPTRecordDest cptRecordDest,
-                   BlockingQueue<String> requestQueue, CountDownLatch shutdownLatch) {
-            this.phaser = phaser;
-            this.cptRecordDest = cptRecordDest;
-            this.requestQueue = requestQueue;
-            this.shutdownLatch = shutdownLatch;
-        }
+    private interface MessageDataHandler {
+        void handle(byte[] data) throws Exception;
+    }
 
-        @Override
-        public void run() {
-            phaser.arrive();
-            while (true) {
-                try {
-                    String request = requestQueue.poll(100, TimeUnit.MILLISECONDS);
-                    if (request != null) {
-                        cptService.pushRecord(request, cptRecordDest);
-                    }
-                    if (interrupted && requestQueue.isEmpty()) {
-                        break;
-                    }
-                } catch (InterruptedException e) {
-                    interrupted = true;
-                } catch (Exception e) {
-                    LOG.error("Error during request handling: ", e);
-                    e.printStackTrace();
-                }
-            }
-            shutdownLatch.countDown();
-        }
+    private static final class EntityGeneration {
+        volatile long newest;
+        // records let through and not posted, saved or dropped yet, changed in compute only
+        int active;
     }
 
     @Override
     public void initialize(Gateway gateway) throws Exception {
         if (!initialized) {
+            validateScaleOut();
+            CPTRecordTracer.configure(CPT_TRACE_SLOW_RECORD_MS, CPT_TRACE_BUFFER_SIZE);
             messagingGateway = gateway;
-            setupCMOPromotedRequestSubscriber(messagingGateway, this);
-            initializePromotedRequestHandlers();
-            setupCMONewRequestSubscriber(messagingGateway, this);
-            initializeNewRequestHandlers();
-            setupCMOUpdateRequestSubscriber(messagingGateway, this);
-            initializeUpdateRequestHandlers();
-            setupCMOUpdateSampleSubscriber(messagingGateway, this);
-            initializeUpdateSampleHandlers();
-            setupIGORequestStatusSubscriber(messagingGateway, this);
-            initializeRequestStatusHandlers();
+            if (EXECUTION_MODE == ExecutionMode.VIRTUAL) {
+                initializeVirtualThreads();
+            }
+            initializeQueues();
+            if (CPT_DEDUPE_ENABLED) {
+                initializeDedupe();
+            }
+            if (CPT_RETRY_MAX_ATTEMPTS > 0) {
+                initializeRetries();
+            }
+            initializeScheduler();
+            // workers are already running so a replay larger than the queues cannot stall
+            if (CPT_JOURNAL_ENABLED) {
+                openJournals();
+            }
+            if (LANE_REBALANCE_INTERVAL_MS > 0) {
+                startLaneMonitor();
+            }
+            if (NATS_PULL_CONSUMER_ENABLED) {
+                startPullConsumers();
+            } else if (!NATS_QUEUE_GROUP.isEmpty()) {
+                setupQueueGroupSubscribers();
+            } else {
+                setupCMOPromotedRequestSubscriber(messagingGateway, this);
+                setupCMONewRequestSubscriber(messagingGateway, this);
+                setupCMOUpdateRequestSubscriber(messagingGateway, this);
+                setupCMOUpdateSampleSubscriber(messagingGateway, this);
+                setupIGORequestStatusSubscriber(messagingGateway, this);
+            }
             initialized = true;
         } else {
             LOG.error("Messaging Handler Service has already been initialized, ignoring request");
@@ -139,64 +422,78 @@ public class MessageHandlingServiceImpl implements MessageHandlingService {
     }
 
     @Override
-    public void promotedRequestHandler(String promotedRequest) throws Exception {
+    public void promotedRequestHandler(byte[] promotedRequest) throws Exception {
         if (!initialized) {
             throw new IllegalStateException("Message Handling Service has not been initialized");
         }
         if (!shutdownInitiated) {
-            promotedRequestQueue.put(promotedRequest);
+            promotedRequestQueue.put(newRecord(CPTRecordDest.PROMOTED_REQUEST_RECORD_DEST, promotedRequest));
         } else {
-            LOG.error("Shutdown initiated, not accepting request: \n" + promotedRequest);
+            LOG.error("Shutdown initiated, not accepting request: \n"
+                      + new String(promotedRequest, StandardCharsets.UTF_8));
             throw new IllegalStateException("Shutdown initiated, not handling any more requests");
         }
     }
 
     @Override
-    public void newRequestHandler(String newRequest) throws Exception {
+    public void newRequestHandler(byte[] newRequest) throws Exception {
         if (!initialized) {
             throw new IllegalStateException("Message Handling Service has not been initialized");
         }
         if (!shutdownInitiated) {
-            newRequestQueue.put(newRequest);
+            newRequestQueue.put(newRecord(CPTRecordDest.NEW_REQUEST_RECORD_DEST, newRequest));
         } else {
-            LOG.error("Shutdown initiated, not accepting request: \n" + newRequest);
+            LOG.error("Shutdown initiated, not accepting request: \n"
+                      + new String(newRequest, StandardCharsets.UTF_8));
             throw new IllegalStateException("Shutdown initiated, not handling any more requests");
         }
     }
 
     @Override
-    public void updateRequestHandler(String updateRequest) throws Exception {
+    public void updateRequestHandler(byte[] updateRequest) throws Exception {
         if (!initialized) {
             throw new IllegalStateException("Message Handling Service has not been initialized");
         }
         if (!shutdownInitiated) {
-            updateRequestQueue.put(updateRequest);
+            CPTRecord record = newRecord(CPTRecordDest.UPDATE_REQUEST_RECORD_DEST, updateRequest);
+            if (updateRequestCoalescer != null) {
+                updateRequestCoalescer.offer(record.getEntityId(), record);
+            } else {
+                updateRequestQueue.put(record);
+            }
         } else {
-            LOG.error("Shutdown initiated, not accepting request: \n" + updateRequest);
+            LOG.error("Shutdown initiated, not accepting request: \n"
+                      + new String(updateRequest, StandardCharsets.UTF_8));
             throw new IllegalStateException("Shutdown initiated, not handling any more requests");
         }
     }
 
     @Override
-    public void updateSampleHandler(String updateSample) throws Exception {
+    public void updateSampleHandler(byte[] updateSample) throws Exception {
         if (!initialized) {
             throw new IllegalStateException("Message Handling Service has not been initialized");
         }
         if (!shutdownInitiated) {
-            updateSampleQueue.put(updateSample);
+            CPTRecord record = newRecord(CPTRecordDest.UPDATE_SAMPLE_RECORD_DEST, updateSample);
+            if (updateSampleCoalescer != null) {
+                updateSampleCoalescer.offer(record.getEntityId(), record);
+            } else {
+                updateSampleQueue.put(record);
+            }
         } else {
-            LOG.error("Shutdown initiated, not accepting request: \n" + updateSample);
+            LOG.error("Shutdown initiated, not accepting request: \n"
+                      + new String(updateSample, StandardCharsets.UTF_8));
             throw new IllegalStateException("Shutdown initiated, not handling any more requests");
         }
     }
 
     @Override
-    public void requestStatusHandler(String requestStatus) throws Exception {
+    public void requestStatusHandler(byte[] requestStatus) throws Exception {
         if (!initialized) {
             throw new IllegalStateException("Message Handling Service has not been initialized");
         }
         if (!shutdownInitiated) {
-            requestStatusQueue.put(requestStatus);
+            requestStatusQueue.put(newRecord(CPTRecordDest.SAMPLE_STATUS_RECORD_DEST, requestStatus));
         } else {
             LOG.error("Shutdown initiated, not accepting request");
             throw new IllegalStateException("Shutdown initiated, not handling any more requests");
@@ -209,73 +506,789 @@ public class MessageHandlingServiceImpl implements MessageHandlingService {
         if (!initialized) {
             throw new IllegalStateException("Message Handling Service has not been initialized");
         }
-        exec.shutdownNow();
-        promotedRequestHandlerShutdownLatch.await();
-        newRequestHandlerShutdownLatch.await();
-        updateRequestHandlerShutdownLatch.await();
-        updateSampleHandlerShutdownLatch.await();
-        requestStatusHandlerShutdownLatch.await();
+        for (CPTJetStreamPuller puller : pullers) {
+            puller.stop();
+        }
+        for (Dispatcher dispatcher : queueGroupDispatchers) {
+            // the group's other members get the topic's messages from here on
+            natsConnection.closeDispatcher(dispatcher);
+        }
+        // records failing from here on go straight to the failure file
+        retriesClosed = true;
+        if (retryExecutor != null) {
+            retryExecutor.shutdownNow();
+        }
+        // release held updates while the handlers are still running
+        if (updateRequestCoalescer != null) {
+            updateRequestCoalescer.close();
+        }
+        if (updateSampleCoalescer != null) {
+            updateSampleCoalescer.close();
+        }
+        if (laneMonitor != null) {
+            laneMonitor.shutdownNow();
+        }
+        if (schedulerMonitor != null) {
+            schedulerMonitor.shutdownNow();
+        }
+        scheduler.shutdown();
+        exec.shutdown();
+        inFlightRecords.arriveAndAwaitAdvance();
+        if (virtualThreadExecutor != null) {
+            virtualThreadExecutor.shutdown();
+        }
+        for (CPTRecord record : pendingRetries.values()) {
+            // pulled records were nakked and come back from JetStream
+            if (record.getSequence() == 0) {
+                saveFailure("Retry cancelled on shutdown", record);
+            }
+        }
+        pendingRetries.clear();
+        if (snapshotExecutor != null) {
+            snapshotExecutor.shutdownNow();
+            saveRecordHashes();
+        }
         shutdownInitiated = true;
+        for (CPTRecordJournal journal : journals.values()) {
+            journal.close();
+        }
+        if (pullProgressExecutor != null) {
+            pullProgressExecutor.shutdownNow();
+        }
+        if (natsConnection != null) {
+            // acks of the last records handled
+            natsConnection.flush(Duration.ofSeconds(5));
+            natsConnection.close();
+        }
     }
 
-    private void initializePromotedRequestHandlers() throws Exception {
-        promotedRequestHandlerShutdownLatch = new CountDownLatch(NUM_PROMOTED_REQUEST_HANDLERS);
-        final Phaser promotedRequestPhaser = new Phaser();
-        promotedRequestPhaser.register();
-        for (int lc = 0; lc < NUM_PROMOTED_REQUEST_HANDLERS; lc++) {
-            promotedRequestPhaser.register();
-            exec.execute(new CPTHandler(promotedRequestPhaser, CPTRecordDest.PROMOTED_REQUEST_RECORD_DEST,
-                                        promotedRequestQueue, promotedRequestHandlerShutdownLatch));
+    /**
+     * Hands the record to the CPT service, along with the concurrency permit
+     * the scheduler took for it. With the async client engine this returns as
+     * soon as the post is sent, and the record is completed from the engine's
+     * completion thread.
+     */
+    private void handleRecord(CPTRecord record, CPTRecordQueue requestQueue,
+                              CPTCircuitBreaker.Permit permit, CPTConcurrencyLimiter.Permit limitPermit) {
+        long dequeuedNanos = System.nanoTime();
+        record.mark(Stage.DEQUEUED, dequeuedNanos);
+        CPTMetrics.recordQueueWaitNanos(requestQueue.getName(), dequeuedNanos - record.getEnqueuedNanos());
+        String entityKey = record.getRecordDest() + "/" + record.getEntityId();
+        if (record.getAttempts() > 0) {
+            if (!removePendingRetry(entityKey, record)) {
+                if (permit != null) {
+                    permit.cancel();
+                }
+                if (limitPermit != null) {
+                    limitPermit.release();
+                }
+                dropSupersededRetry(record, entityKey);
+                requestQueue.complete(record);
+                return;
+            }
+        }
+        if (record.getGeneration() == 0) {
+            // a new record, or one redelivered after a restart, stamped before pending retries are
+            // dropped so that an older record failing meanwhile sees it
+            startGeneration(entityKey, record);
+        }
+        if (record.getAttempts() == 0 && !pendingRetries.isEmpty()) {
+            // records carry the whole request or sample, so a pending retry is out of date now
+            CPTRecord superseded = pendingRetries.remove(entityKey);
+            if (superseded != null && superseded.getSequence() != 0) {
+                supersededRedeliveries.add(superseded.getRecordDest() + "/" + superseded.getSequence());
+            }
+        }
+        long hashTicket = (recordHashes != null)
+            ? recordHashes.checkUnchanged(entityKey, record.getData()) : 0;
+        if (hashTicket == CPTRecordHashCache.UNCHANGED) {
+            if (permit != null) {
+                permit.cancel();
+            }
+            if (limitPermit != null) {
+                limitPermit.release();
+            }
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("Skipping " + entityKey + ", unchanged since it was last posted");
+            }
+            record.commit();
+            CPTRecordTracer.complete(record, "unchanged");
+            endGeneration(entityKey);
+            requestQueue.complete(record);
+            return;
         }
-        promotedRequestPhaser.arriveAndAwaitAdvance();
+        inFlightRecords.register();
+        CompletableFuture<Void> pushed;
+        if (virtualThreadExecutor != null) {
+            // the permit holds a virtual thread, the post waits for its own there
+            pushed = pushOnVirtualThread(record);
+        } else {
+            record.setPostPermit(limitPermit);
+            pushed = cptService.pushRecordAsync(record);
+        }
+        pushed.whenComplete((result, e) -> {
+            try {
+                if (e == null) {
+                    if (hashTicket > 0) {
+                        recordHashes.posted(entityKey, hashTicket);
+                    }
+                    record.commit();
+                    CPTRecordTracer.complete(record, "posted");
+                    endGeneration(entityKey);
+                } else {
+                    Throwable cause = (e instanceof CompletionException && e.getCause() != null)
+                        ? e.getCause() : e;
+                    if (permit != null && cause instanceof CPTPostException
+                        && ((CPTPostException) cause).isRetryable()) {
+                        permit.failure();
+                    }
+                    if (!scheduleRetry(record, entityKey, requestQueue, cause)) {
+                        LOG.error("Error during request handling: ", cause);
+                        saveFailure(String.valueOf(cause.getMessage()), record);
+                        endGeneration(entityKey);
+                    }
+                }
+            } finally {
+                if (permit != null) {
+                    // no-op after a failure, errors in the record itself say nothing about the destination
+                    permit.success();
+                }
+                if (limitPermit != null) {
+                    // a no-op if the CPT service posted the record with it
+                    limitPermit.release();
+                }
+                requestQueue.complete(record);
+                inFlightRecords.arriveAndDeregister();
+            }
+        });
+    }
+
+    /**
+     * Saves a record still parked behind an open circuit breaker at shutdown.
+     */
+    private void handleParkedRecord(CPTRecord record, CPTRecordQueue requestQueue,
+                                    CPTCircuitBreaker.Permit permit,
+                                    CPTConcurrencyLimiter.Permit limitPermit) {
+        try {
+            saveFailure("Circuit breaker open for " + record.getRecordDest() + " at shutdown", record);
+        } finally {
+            requestQueue.complete(record);
+        }
+    }
+
+    /**
+     * Saves the record to the failure file. It does not need replaying from
+     * the journal after that.
+     */
+    private void saveFailure(String reason, CPTRecord record) {
+        try {
+            cptFileService.saveCPTPostFailure(reason, record);
+            record.commit();
+            CPTRecordTracer.complete(record, "failed");
+        } catch (Exception e) {
+            LOG.error("Unable to save failed record to the failure file: ", e);
+        }
+    }
+
+    /**
+     * Whether a record coming back for a retry is still the one to post for
+     * its entity, taking it off the pending retries.
+     */
+    private boolean removePendingRetry(String entityKey, CPTRecord record) {
+        if (record.getSequence() == 0) {
+            return pendingRetries.remove(entityKey, record) && !isSuperseded(entityKey, record);
+        }
+        CPTRecord pending = pendingRetries.get(entityKey);
+        if (pending != null && pending.getSequence() == record.getSequence()) {
+            // the redelivered copy of the record we nakked
+            record.setGeneration(pending.getGeneration());
+            return pendingRetries.remove(entityKey, pending) && !isSuperseded(entityKey, record);
+        }
+        // otherwise redelivered after a restart or an expired ack wait rather than our nak
+        return !supersededRedeliveries.remove(record.getRecordDest() + "/" + record.getSequence());
+    }
+
+    /**
+     * Puts a record that failed with a retryable error on the delay queue, or
+     * hands a pulled record back to JetStream, unless it is out of attempts.
+     * A record for which a newer one of its entity has been let through
+     * since is committed instead, the newer one replaces it. Returns false if
+     * it was neither.
+     */
+    private boolean scheduleRetry(CPTRecord record, String entityKey, CPTRecordQueue requestQueue,
+                                  Throwable cause) {
+        if (isSuperseded(entityKey, record)) {
+            dropSupersededRetry(record, entityKey);
+            return true;
+        }
+        if (!(cause instanceof CPTPostException) || !((CPTPostException) cause).isRetryable()
+            || record.getAttempts() >= CPT_RETRY_MAX_ATTEMPTS
+            || (retriesClosed && !record.isRedeliverable())) {
+            return false;
+        }
+        int attempt = record.incrementAttempts();
+        long delay = getRetryDelay(attempt);
+        pendingRetries.put(entityKey, record);
+        if (record.isRedeliverable()) {
+            record.redeliver(delay);
+            CPTMetrics.countRetry(record.getRecordDest());
+            LOG.warn("Post failed (" + cause.getMessage() + "), redelivery " + attempt + " of "
+                     + CPT_RETRY_MAX_ATTEMPTS + " for " + entityKey + " in " + delay + "ms");
+            return true;
+        }
+        try {
+            retryExecutor.schedule(() -> retry(record, entityKey, requestQueue), delay,
+                                   TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // shutting down
+            pendingRetries.remove(entityKey, record);
+            return false;
+        }
+        CPTMetrics.countRetry(record.getRecordDest());
+        LOG.warn("Post failed (" + cause.getMessage() + "), retry " + attempt + " of "
+                 + CPT_RETRY_MAX_ATTEMPTS + " for " + entityKey + " in " + delay + "ms");
+        return true;
+    }
+
+    /**
+     * Exponential backoff with equal jitter: half the delay is fixed and half
+     * random, so records that failed together do not all come back together.
+     */
+    private long getRetryDelay(int attempt) {
+        long delay = CPT_RETRY_INITIAL_BACKOFF_MS;
+        for (int i = 1; i < attempt && delay < CPT_RETRY_MAX_BACKOFF_MS; i++) {
+            delay *= 2;
+        }
+        delay = Math.min(delay, CPT_RETRY_MAX_BACKOFF_MS);
+        return delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+    }
+
+    /**
+     * Puts the record back on its queue, behind whatever arrived for its lane
+     * meanwhile. If a newer record for the same entity has been handled since,
+     * the retry is dropped instead.
+     */
+    private void retry(CPTRecord record, String entityKey, CPTRecordQueue requestQueue) {
+        if (pendingRetries.get(entityKey) != record || isSuperseded(entityKey, record)) {
+            pendingRetries.remove(entityKey, record);
+            dropSupersededRetry(record, entityKey);
+            return;
+        }
+        try {
+            requestQueue.replay(record);
+        } catch (InterruptedException e) {
+            // shutting down, the record is still pending and gets saved to the failure file
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void dropSupersededRetry(CPTRecord record, String entityKey) {
+        if (LOG.isInfoEnabled()) {
+            LOG.info("Dropping retry of " + entityKey + ", superseded by a newer record");
+        }
+        record.commit();
+        CPTRecordTracer.complete(record, "superseded");
+        endGeneration(entityKey);
+    }
+
+    /**
+     * Stamps a record let through with a generation newer than every record
+     * of its entity before it.
+     */
+    private void startGeneration(String entityKey, CPTRecord record) {
+        long generation = lastGeneration.incrementAndGet();
+        record.setGeneration(generation);
+        entityGenerations.compute(entityKey, (key, entity) -> {
+            if (entity == null) {
+                entity = new EntityGeneration();
+            }
+            entity.newest = Math.max(entity.newest, generation);
+            entity.active++;
+            return entity;
+        });
+    }
+
+    /**
+     * Whether a newer record of the entity has been let through since this
+     * one. A retry must not post it over the newer one.
+     */
+    private boolean isSuperseded(String entityKey, CPTRecord record) {
+        EntityGeneration entity = entityGenerations.get(entityKey);
+        return entity != null && entity.newest > record.getGeneration();
+    }
+
+    /**
+     * Called once a record let through is posted, saved or dropped. The
+     * entity is forgotten once none of its records is left.
+     */
+    private void endGeneration(String entityKey) {
+        entityGenerations.computeIfPresent(entityKey, (key, entity) -> (--entity.active > 0) ? entity : null);
+    }
+
+    /**
+     * Pushes the record on its own virtual thread, after any earlier record
+     * for the same entity. The scheduler took a permit of the destination's
+     * virtual thread limiter for it, so this never waits.
+     */
+    private CompletableFuture<Void> pushOnVirtualThread(CPTRecord record) {
+        CompletableFuture<Void> pushed = new CompletableFuture<>();
+        String entityKey = record.getRecordDest() + "/" + record.getEntityId();
+        CompletableFuture<Void> previous = lastRecordByEntity.put(entityKey, pushed);
+        pushed.whenComplete((result, e) -> lastRecordByEntity.remove(entityKey, pushed));
+        Runnable push = () -> {
+            try {
+                cptService.pushRecord(record);
+                pushed.complete(null);
+            } catch (Exception e) {
+                pushed.completeExceptionally(e);
+            }
+        };
+        if (previous == null) {
+            virtualThreadExecutor.execute(push);
+        } else {
+            previous.whenComplete((result, e) -> virtualThreadExecutor.execute(push));
+        }
+        return pushed;
+    }
+
+    private void initializeVirtualThreads() {
+        try {
+            // looked up reflectively so the gateway still builds and runs on java 8
+            virtualThreadExecutor = (ExecutorService) Executors.class
+                .getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("messaging.execution_mode=VIRTUAL requires java 21 or newer", e);
+        }
+        for (CPTRecordDest recordDest : CPTRecordDest.values()) {
+            // not adaptive, a fixed cap
+            virtualThreadLimiters.put(recordDest, new CPTConcurrencyLimiter(recordDest.name() + "-virtual",
+                    false, VIRTUAL_THREAD_MAX_IN_FLIGHT, 1, VIRTUAL_THREAD_MAX_IN_FLIGHT, 1.0, 0));
+        }
+        LOG.info("Pushing records on virtual threads, up to " + VIRTUAL_THREAD_MAX_IN_FLIGHT
+                 + " in flight per destination");
+    }
+
+    /**
+     * Share of the scheduler's workers a destination brings. In VIRTUAL
+     * execution mode a worker only hands records to virtual threads and never
+     * waits for a permit, the scheduler skips a destination with none free,
+     * so one per destination keeps up.
+     */
+    private int getHandlerCount(int numHandlerThreads) {
+        return (virtualThreadExecutor != null) ? 1 : numHandlerThreads;
+    }
+
+    private void shedRecord(CPTRecord record) throws Exception {
+        cptFileService.saveCPTPostFailure("Queue full, record shed for " + record.getRecordDest(), record);
+        record.commit();
+        CPTRecordTracer.complete(record, "shed");
+    }
+
+    private void initializeDedupe() {
+        recordHashes = new CPTRecordHashCache(CPT_DEDUPE_MAX_ENTRIES, CPT_DEDUPE_TTL_MS);
+        CPTMetrics.registerGauge("cpt_dedupe_entries", "Entities in the record hash cache.", "",
+                                 recordHashes::size);
+        CPTMetrics.registerCounter("cpt_dedupe_hits_total", "Records skipped as unchanged.", "",
+                                   recordHashes::getHitCount);
+        CPTMetrics.registerCounter("cpt_dedupe_misses_total", "Records posted as new or changed.", "",
+                                   recordHashes::getMissCount);
+        CPTMetrics.registerCounter("cpt_dedupe_evictions_total",
+                                   "Entities evicted from the record hash cache.", "",
+                                   recordHashes::getEvictionCount);
+        CPTMetrics.registerGauge("cpt_dedupe_hit_rate", "Share of records skipped as unchanged.", "",
+                                 recordHashes::getHitRate);
+        if (CPT_DEDUPE_SNAPSHOT_FILE.isEmpty()) {
+            return;
+        }
+        try {
+            recordHashes.load(Paths.get(CPT_DEDUPE_SNAPSHOT_FILE));
+        } catch (IOException e) {
+            // the worst that happens is that unchanged records get posted once more
+            LOG.warn("Unable to load record hashes from " + CPT_DEDUPE_SNAPSHOT_FILE + ": " + e.getMessage());
+        }
+        snapshotExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "cpt-dedupe-snapshot");
+            thread.setDaemon(true);
+            return thread;
+        });
+        snapshotExecutor.scheduleWithFixedDelay(this::saveRecordHashes, CPT_DEDUPE_SNAPSHOT_INTERVAL_MS,
+                                                CPT_DEDUPE_SNAPSHOT_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    private void saveRecordHashes() {
+        try {
+            recordHashes.save(Paths.get(CPT_DEDUPE_SNAPSHOT_FILE));
+        } catch (IOException e) {
+            LOG.error("Unable to save record hashes to " + CPT_DEDUPE_SNAPSHOT_FILE + ": ", e);
+        }
+        if (LOG.isInfoEnabled()) {
+            LOG.info("Record hash cache: " + recordHashes.size() + " entities, hit rate "
+                     + Math.round(recordHashes.getHitRate() * 100) + "%");
+        }
+    }
+
+    private void initializeRetries() {
+        retryExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "cpt-retry");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    private void initializeQueues() {
+        promotedRequestQueue = newQueue("promoted_request", PROMOTED_REQUEST_QUEUE_CAPACITY);
+        newRequestQueue = newQueue("new_request", NEW_REQUEST_QUEUE_CAPACITY);
+        updateRequestQueue = newQueue("update_request", UPDATE_REQUEST_QUEUE_CAPACITY);
+        updateSampleQueue = newQueue("update_sample", UPDATE_SAMPLE_QUEUE_CAPACITY);
+        requestStatusQueue = newQueue("request_status", REQUEST_STATUS_QUEUE_CAPACITY);
+        if (UPDATE_COALESCE_DEBOUNCE_MS > 0) {
+            updateRequestCoalescer = new CPTRecordCoalescer("update_request", UPDATE_COALESCE_DEBOUNCE_MS,
+                    UPDATE_COALESCE_MAX_HOLD_MS, UPDATE_REQUEST_QUEUE_CAPACITY, updateRequestQueue::put);
+            updateSampleCoalescer = new CPTRecordCoalescer("update_sample", UPDATE_COALESCE_DEBOUNCE_MS,
+                    UPDATE_COALESCE_MAX_HOLD_MS, UPDATE_SAMPLE_QUEUE_CAPACITY, updateSampleQueue::put);
+            registerCoalescerMetrics(updateRequestCoalescer, CPTRecordDest.UPDATE_REQUEST_RECORD_DEST);
+            registerCoalescerMetrics(updateSampleCoalescer, CPTRecordDest.UPDATE_SAMPLE_RECORD_DEST);
+        }
+    }
+
+    private void registerCoalescerMetrics(CPTRecordCoalescer coalescer, CPTRecordDest recordDest) {
+        String labels = CPTMetrics.destLabel(recordDest);
+        CPTMetrics.registerCounter("cpt_coalesced_total",
+                "Update records replaced by a newer one for the same entity, i.e. posts saved.", labels,
+                coalescer::getCoalescedCount);
+        CPTMetrics.registerCounter("cpt_coalescer_received_total", "Update records offered to the coalescer.",
+                                   labels, coalescer::getReceivedCount);
+        CPTMetrics.registerGauge("cpt_coalescer_pending", "Entities held in the debounce window.", labels,
+                                 coalescer::getPendingCount);
+    }
+
+    private CPTRecordQueue newQueue(String name, int capacity) {
+        // records for one entity always go through the same lane, and a lane is
+        // served by one worker at a time
+        CPTRecordQueue queue = new CPTRecordQueue(name, capacity, LANES_PER_DESTINATION,
+                QUEUE_OVERFLOW_POLICY, QUEUE_HIGH_WATERMARK, QUEUE_LOW_WATERMARK, this::shedRecord);
+        queue.setCompressMinBytes(QUEUE_COMPRESS_MIN_BYTES);
+        CPTMetrics.registerQueue(queue);
+        return queue;
+    }
+
+    private void startLaneMonitor() {
+        laneMonitor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "cpt-lane-monitor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        laneMonitor.scheduleWithFixedDelay(() -> {
+            rebalanceLanes(promotedRequestQueue);
+            rebalanceLanes(newRequestQueue);
+            rebalanceLanes(updateRequestQueue);
+            rebalanceLanes(updateSampleQueue);
+            rebalanceLanes(requestStatusQueue);
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("Scheduler " + scheduler.describe());
+            }
+        }, LANE_REBALANCE_INTERVAL_MS, LANE_REBALANCE_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    private void rebalanceLanes(CPTRecordQueue requestQueue) {
+        int moved = requestQueue.rebalance();
+        if (moved > 0) {
+            LOG.info("Moved " + moved + " entity buckets to the least loaded lane, "
+                     + requestQueue.describeLanes());
+        } else if (LOG.isDebugEnabled()) {
+            LOG.debug(requestQueue.describeLanes());
+        }
+    }
+
+    private CPTRecord newRecord(CPTRecordDest recordDest, byte[] data) throws Exception {
+        CPTRecord record = toRecord(recordDest, data);
+        CPTRecordJournal journal = journals.get(recordDest);
+        // an empty message has nothing worth replaying, it ends up in the failure file as unparseable
+        if (journal != null && data.length > 0) {
+            record.setOnCommit(journal.append(data)::commit);
+        }
+        return record;
+    }
+
+    private CPTRecord toRecord(CPTRecordDest recordDest, byte[] data) {
+        long receivedNanos = CPTRecordTracer.isEnabled() ? System.nanoTime() : 0;
+        CPTRecord record = new CPTRecord(recordDest, data);
+        record.setEntityId(CPTRecordIdExtractor.extract(data, recordDest.getEntityIdField()));
+        record.mark(Stage.RECEIVED, receivedNanos);
+        record.mark(Stage.DECODED);
+        return record;
+    }
+
+    private void openJournals() throws Exception {
+        openJournal(CPTRecordDest.PROMOTED_REQUEST_RECORD_DEST, promotedRequestQueue);
+        openJournal(CPTRecordDest.NEW_REQUEST_RECORD_DEST, newRequestQueue);
+        openJournal(CPTRecordDest.UPDATE_REQUEST_RECORD_DEST, updateRequestQueue);
+        openJournal(CPTRecordDest.UPDATE_SAMPLE_RECORD_DEST, updateSampleQueue);
+        openJournal(CPTRecordDest.SAMPLE_STATUS_RECORD_DEST, requestStatusQueue);
     }
 
-    private void initializeNewRequestHandlers() throws Exception {
-        newRequestHandlerShutdownLatch = new CountDownLatch(NUM_NEW_REQUEST_HANDLERS);
-        final Phaser newRequestPhaser = new Phaser();
-        newRequestPhaser.register();
-        for (int lc = 0; lc < NUM_NEW_REQUEST_HANDLERS; lc++) {
-            newRequestPhaser.register();
-            exec.execute(new CPTHandler(newRequestPhaser, CPTRecordDest.NEW_REQUEST_RECORD_DEST,
-                                        newRequestQueue, newRequestHandlerShutdownLatch));
+    private void openJournal(CPTRecordDest recordDest, CPTRecordQueue requestQueue)
+        throws Exception {
+        CPTRecordJournal journal = CPTRecordJournal.open(
+                Paths.get(CPT_JOURNAL_DIR, recordDest.name().toLowerCase()),
+                CPT_JOURNAL_SEGMENT_SIZE, CPT_JOURNAL_FSYNC, (data, entry) -> {
+                    CPTRecord record = toRecord(recordDest, data);
+                    record.setOnCommit(entry::commit);
+                    requestQueue.replay(record);
+                });
+        journals.put(recordDest, journal);
+    }
+
+    private void initializeScheduler() {
+        if (CPT_CIRCUIT_BREAKER_ENABLED) {
+            for (CPTRecordDest recordDest : CPTRecordDest.values()) {
+                circuitBreakers.put(recordDest, new CPTCircuitBreaker(recordDest.name(),
+                        CPT_CIRCUIT_BREAKER_WINDOW_SIZE, CPT_CIRCUIT_BREAKER_MINIMUM_CALLS,
+                        CPT_CIRCUIT_BREAKER_FAILURE_RATE, CPT_CIRCUIT_BREAKER_SLOW_CALL_RATE,
+                        CPT_CIRCUIT_BREAKER_SLOW_CALL_MS, CPT_CIRCUIT_BREAKER_OPEN_MS,
+                        CPT_CIRCUIT_BREAKER_HALF_OPEN_PROBES));
+                CPTCircuitBreaker circuitBreaker = circuitBreakers.get(recordDest);
+                CPTMetrics.registerGauge("cpt_circuit_breaker_state",
+                        "Circuit breaker state, 0 closed, 1 open, 2 half open.",
+                        CPTMetrics.destLabel(recordDest), () -> circuitBreaker.getState().ordinal());
+            }
+        }
+        scheduler = new CPTRecordScheduler(this::handleRecord, this::handleParkedRecord);
+        registerWithScheduler(promotedRequestQueue, PROMOTED_REQUEST_WEIGHT,
+                              CPTRecordDest.PROMOTED_REQUEST_RECORD_DEST);
+        registerWithScheduler(newRequestQueue, NEW_REQUEST_WEIGHT,
+                              CPTRecordDest.NEW_REQUEST_RECORD_DEST);
+        registerWithScheduler(updateRequestQueue, UPDATE_REQUEST_WEIGHT,
+                              CPTRecordDest.UPDATE_REQUEST_RECORD_DEST);
+        registerWithScheduler(updateSampleQueue, UPDATE_SAMPLE_WEIGHT,
+                              CPTRecordDest.UPDATE_SAMPLE_RECORD_DEST);
+        registerWithScheduler(requestStatusQueue, REQUEST_STATUS_WEIGHT,
+                              CPTRecordDest.SAMPLE_STATUS_RECORD_DEST);
+        int numWorkers = SCHEDULER_THREADS;
+        if (numWorkers < 1) {
+            numWorkers = getHandlerCount(NUM_PROMOTED_REQUEST_HANDLERS)
+                + getHandlerCount(NUM_NEW_REQUEST_HANDLERS)
+                + getHandlerCount(NUM_UPDATE_REQUEST_HANDLERS)
+                + getHandlerCount(NUM_UPDATE_SAMPLE_HANDLERS)
+                + getHandlerCount(NUM_REQUEST_STATUS_HANDLERS);
+        }
+        if (SCHEDULER_MAX_THREADS > 0) {
+            numWorkers = Math.min(Math.max(numWorkers, SCHEDULER_MIN_THREADS), SCHEDULER_MAX_THREADS);
+        }
+        scheduler.start(Math.max(1, numWorkers), exec);
+        scheduler.setKeepAlive(SCHEDULER_KEEP_ALIVE_MS);
+        if (SCHEDULER_MAX_THREADS > 0) {
+            scheduler.setBounds(SCHEDULER_MIN_THREADS, SCHEDULER_MAX_THREADS);
+            LOG.info("Scheduler workers elastic between " + SCHEDULER_MIN_THREADS + " and "
+                     + SCHEDULER_MAX_THREADS + ", starting with " + scheduler.getWorkers());
         }
-        newRequestPhaser.arriveAndAwaitAdvance();
+        CPTMetrics.registerGauge("cpt_scheduler_workers", "Workers in the shared scheduler pool.", "",
+                                 scheduler::getWorkers);
+        CPTMetrics.registerGauge("cpt_scheduler_busy_workers", "Scheduler workers handling a record.", "",
+                                 scheduler::getBusyWorkers);
+        // bounds can be changed at runtime, so the pool is watched even if it starts out fixed
+        if (SCHEDULER_RESIZE_INTERVAL_MS > 0) {
+            startSchedulerMonitor();
+        }
+    }
+
+    /**
+     * The scheduler takes a permit of the destination's concurrency limiter,
+     * or in VIRTUAL execution mode of its virtual thread limiter, before
+     * handing a record on, so a worker never waits for one. Posts on virtual
+     * threads wait for their concurrency permit there instead.
+     */
+    private void registerWithScheduler(CPTRecordQueue requestQueue, int weight, CPTRecordDest recordDest) {
+        scheduler.register(requestQueue, weight, circuitBreakers.get(recordDest),
+                           (virtualThreadExecutor != null) ? virtualThreadLimiters.get(recordDest)
+                           : cptService.getLimiter(recordDest));
+    }
+
+    private void startSchedulerMonitor() {
+        long growWaitNanos = TimeUnit.MILLISECONDS.toNanos(SCHEDULER_GROW_WAIT_MS);
+        schedulerMonitor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "cpt-scheduler-monitor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        schedulerMonitor.scheduleWithFixedDelay(() -> {
+            try {
+                scheduler.resize(growWaitNanos);
+            } catch (RuntimeException e) {
+                LOG.error("Unable to resize the scheduler pool: ", e);
+            }
+        }, SCHEDULER_RESIZE_INTERVAL_MS, SCHEDULER_RESIZE_INTERVAL_MS, TimeUnit.MILLISECONDS);
     }
 
-    private void initializeUpdateRequestHandlers() throws Exception {
-        updateRequestHandlerShutdownLatch = new CountDownLatch(NUM_UPDATE_REQUEST_HANDLERS);
-        final Phaser updateRequestPhaser = new Phaser();
-        updateRequestPhaser.register();
-        for (int lc = 0; lc < NUM_UPDATE_REQUEST_HANDLERS; lc++) {
-            updateRequestPhaser.register();
-            exec.execute(new CPTHandler(updateRequestPhaser, CPTRecordDest.UPDATE_REQUEST_RECORD_DEST,
-                                        updateRequestQueue, updateRequestHandlerShutdownLatch));
+    /**
+     * The shared worker pool, for the admin endpoint. Null until initialized.
+     */
+    CPTRecordScheduler getScheduler() {
+        return scheduler;
+    }
+
+    /**
+     * Entity affinity needs the durable consumers of pull mode, a push
+     * subscription does not remember what was delivered across restarts.
+     * The partition count is not derived from the instance count: a new
+     * partition's durable would only see messages published after it was
+     * created, while the existing ones ack the records hashed to it.
+     */
+    private void validateScaleOut() {
+        if (NATS_AFFINITY_INSTANCE_COUNT > 1) {
+            if (NATS_AFFINITY_PARTITIONS <= 0) {
+                throw new IllegalStateException("nats.affinity_instance_count requires a fixed "
+                        + "nats.affinity_partitions, kept for the life of the streams");
+            }
+            if (!NATS_PULL_CONSUMER_ENABLED) {
+                throw new IllegalStateException("nats.affinity_instance_count requires "
+                                                + "nats.pull_consumer_enabled=true");
+            }
+            if (NATS_AFFINITY_INSTANCE_INDEX < 0
+                || NATS_AFFINITY_INSTANCE_INDEX >= NATS_AFFINITY_INSTANCE_COUNT
+                || NATS_AFFINITY_PARTITIONS < NATS_AFFINITY_INSTANCE_COUNT) {
+                throw new IllegalStateException("nats.affinity_instance_index must be below "
+                        + "nats.affinity_instance_count, which must not exceed nats.affinity_partitions");
+            }
         }
-        updateRequestPhaser.arriveAndAwaitAdvance();
     }
 
-    private void initializeUpdateSampleHandlers() throws Exception {
-        updateSampleHandlerShutdownLatch = new CountDownLatch(NUM_UPDATE_SAMPLE_HANDLERS);
-        final Phaser updateSamplePhaser = new Phaser();
-        updateSamplePhaser.register();
-        for (int lc = 0; lc < NUM_UPDATE_SAMPLE_HANDLERS; lc++) {
-            updateSamplePhaser.register();
-            exec.execute(new CPTHandler(updateSamplePhaser, CPTRecordDest.UPDATE_SAMPLE_RECORD_DEST,
-                                        updateSampleQueue, updateSampleHandlerShutdownLatch));
+    private void connectNats() throws Exception {
+        SSLContext sslContext = Boolean.parseBoolean(NATS_TLS_CHANNEL)
+            ? CPTJetStreamPuller.newSslContext(NATS_KEYSTORE_PATH, NATS_KEY_PASSWORD, NATS_TRUSTSTORE_PATH,
+                                               NATS_STORE_PASSWORD) : null;
+        natsConnection = CPTJetStreamPuller.connect(NATS_URL, NATS_CONSUMER_NAME, NATS_CONSUMER_PASSWORD,
+                                                    sslContext);
+    }
+
+    /**
+     * Subscribes the topics as members of a NATS queue group, on a
+     * connection of our own as the messaging gateway does not take a group.
+     */
+    private void setupQueueGroupSubscribers() throws Exception {
+        connectNats();
+        subscribeQueueGroup(CMO_PROMOTED_REQUEST_TOPIC, "CMO_PROMOTED_REQUEST", this::promotedRequestHandler);
+        subscribeQueueGroup(CMO_NEW_REQUEST_TOPIC, "CMO_NEW_REQUEST", this::newRequestHandler);
+        subscribeQueueGroup(CMO_UPDATE_REQUEST_TOPIC, "CMO_UPDATE_REQUEST", this::updateRequestHandler);
+        subscribeQueueGroup(CMO_UPDATE_SAMPLE_TOPIC, "CMO_UPDATE_SAMPLE", this::updateSampleHandler);
+        subscribeQueueGroup(IGO_REQUEST_STATUS_TOPIC, "IGO_REQUEST_STATUS_TOPIC", this::requestStatusHandler);
+        LOG.info("Subscribed to the topics in queue group " + NATS_QUEUE_GROUP);
+    }
+
+    private void subscribeQueueGroup(String topic, String name, MessageDataHandler handler) {
+        // a dispatcher per topic, so a full queue only holds back its own topic
+        Dispatcher dispatcher = natsConnection.createDispatcher(msg -> {
+            try {
+                handler.handle(msg.getData());
+            } catch (Exception e) {
+                LOG.error("Cannot process " + name + ": "
+                          + new String(msg.getData(), StandardCharsets.UTF_8), e);
+            }
+        });
+        dispatcher.subscribe(topic, NATS_QUEUE_GROUP);
+        queueGroupDispatchers.add(dispatcher);
+    }
+
+    private void startPullConsumers() throws Exception {
+        connectNats();
+        JetStream jetStream = natsConnection.jetStream();
+        natsPullDeliverPolicy = CPTJetStreamPuller.toDeliverPolicy(NATS_PULL_DELIVER_POLICY);
+        startPullers(jetStream, CMO_PROMOTED_REQUEST_TOPIC, CPTRecordDest.PROMOTED_REQUEST_RECORD_DEST,
+                     promotedRequestQueue, PROMOTED_REQUEST_QUEUE_CAPACITY, promotedRequestQueue::put);
+        startPullers(jetStream, CMO_NEW_REQUEST_TOPIC, CPTRecordDest.NEW_REQUEST_RECORD_DEST,
+                     newRequestQueue, NEW_REQUEST_QUEUE_CAPACITY, newRequestQueue::put);
+        startPullers(jetStream, CMO_UPDATE_REQUEST_TOPIC, CPTRecordDest.UPDATE_REQUEST_RECORD_DEST,
+                     updateRequestQueue, UPDATE_REQUEST_QUEUE_CAPACITY, (updateRequestCoalescer != null)
+                     ? record -> updateRequestCoalescer.offer(record.getEntityId(), record)
+                     : updateRequestQueue::put);
+        startPullers(jetStream, CMO_UPDATE_SAMPLE_TOPIC, CPTRecordDest.UPDATE_SAMPLE_RECORD_DEST,
+                     updateSampleQueue, UPDATE_SAMPLE_QUEUE_CAPACITY, (updateSampleCoalescer != null)
+                     ? record -> updateSampleCoalescer.offer(record.getEntityId(), record)
+                     : updateSampleQueue::put);
+        startPullers(jetStream, IGO_REQUEST_STATUS_TOPIC, CPTRecordDest.SAMPLE_STATUS_RECORD_DEST,
+                     requestStatusQueue, REQUEST_STATUS_QUEUE_CAPACITY, requestStatusQueue::put);
+        pullProgressExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "cpt-pull-progress");
+            thread.setDaemon(true);
+            return thread;
+        });
+        if (NATS_PULL_ACK_PROGRESS_MS > 0) {
+            pullProgressExecutor.scheduleWithFixedDelay(() -> {
+                for (CPTJetStreamPuller puller : pullers) {
+                    puller.markInProgress();
+                }
+            }, NATS_PULL_ACK_PROGRESS_MS, NATS_PULL_ACK_PROGRESS_MS, TimeUnit.MILLISECONDS);
+        }
+        LOG.info("Pulling from JetStream in batches of up to " + NATS_PULL_BATCH_SIZE
+                 + ", durable consumers prefixed " + getDurablePrefix());
+        if (NATS_AFFINITY_INSTANCE_COUNT > 1) {
+            LOG.info("Entity affinity: instance " + NATS_AFFINITY_INSTANCE_INDEX + " of "
+                     + NATS_AFFINITY_INSTANCE_COUNT + " over " + NATS_AFFINITY_PARTITIONS + " partitions");
         }
-        updateSamplePhaser.arriveAndAwaitAdvance();
     }
 
-    private void initializeRequestStatusHandlers() throws Exception {
-        requestStatusHandlerShutdownLatch = new CountDownLatch(NUM_REQUEST_STATUS_HANDLERS);
-        final Phaser requestStatusPhaser = new Phaser();
-        requestStatusPhaser.register();
-        for (int lc = 0; lc < NUM_REQUEST_STATUS_HANDLERS; lc++) {
-            requestStatusPhaser.register();
-            exec.execute(new CPTHandler(requestStatusPhaser, CPTRecordDest.SAMPLE_STATUS_RECORD_DEST,
-                                        requestStatusQueue, requestStatusHandlerShutdownLatch));
+    /**
+     * Instances sharing the prefix share the durable consumers, and so
+     * split the topics between them.
+     */
+    private String getDurablePrefix() {
+        return NATS_QUEUE_GROUP.isEmpty() ? NATS_PULL_DURABLE_PREFIX : NATS_QUEUE_GROUP;
+    }
+
+    /**
+     * Pulls a topic into its queue, holding no more messages unacked than
+     * the queue holds records. With entity affinity, every partition has a
+     * durable consumer that sees the whole topic and keeps the records of
+     * its partition, so the topic is read once per partition, and this
+     * instance pulls the partitions it owns. Which
+     * instance owns a partition can change between restarts, the consumer
+     * keeps its place and its unacked messages.
+     */
+    private void startPullers(JetStream jetStream, String topic, CPTRecordDest recordDest,
+                              CPTRecordQueue requestQueue, int capacity, RecordSink sink) throws Exception {
+        String durable = getDurablePrefix() + "_" + topic.replaceAll("[^A-Za-z0-9_-]", "_");
+        String labels = "queue=\"" + requestQueue.getName() + "\"";
+        if (NATS_AFFINITY_INSTANCE_COUNT <= 1) {
+            startPuller(jetStream, topic, durable, recordDest, requestQueue.getName(), capacity, sink,
+                        labels);
+            return;
         }
-        requestStatusPhaser.arriveAndAwaitAdvance();
+        int ownedPartitions = (NATS_AFFINITY_PARTITIONS - NATS_AFFINITY_INSTANCE_INDEX - 1)
+            / NATS_AFFINITY_INSTANCE_COUNT + 1;
+        for (int partition = NATS_AFFINITY_INSTANCE_INDEX; partition < NATS_AFFINITY_PARTITIONS;
+             partition += NATS_AFFINITY_INSTANCE_COUNT) {
+            int ownedPartition = partition;
+            startPuller(jetStream, topic, durable + "_p" + partition, recordDest,
+                        requestQueue.getName() + "-p" + partition, Math.max(1, capacity / ownedPartitions),
+                        record -> {
+                            if (getAffinityPartition(record) == ownedPartition) {
+                                sink.put(record);
+                            } else {
+                                // another partition's consumer delivers it to its owner
+                                record.commit();
+                            }
+                        }, labels + ",partition=\"" + partition + "\"");
+        }
+    }
+
+    private int getAffinityPartition(CPTRecord record) {
+        String entityId = (record.getEntityId() == null) ? "" : record.getEntityId();
+        return (int) Long.remainderUnsigned(CPTXXHash64.hash(entityId.getBytes(StandardCharsets.UTF_8)),
+                                            NATS_AFFINITY_PARTITIONS);
+    }
+
+    private void startPuller(JetStream jetStream, String topic, String durable, CPTRecordDest recordDest,
+                             String name, int maxPending, RecordSink sink, String labels) throws Exception {
+        CPTJetStreamPuller puller = new CPTJetStreamPuller(name,
+                CPTJetStreamPuller.subscribe(jetStream, topic, durable, NATS_PULL_ACK_WAIT_MS,
+                                             natsPullDeliverPolicy), maxPending,
+                NATS_PULL_BATCH_SIZE, NATS_PULL_MAX_WAIT_MS, data -> toRecord(recordDest, data), sink);
+        CPTMetrics.registerGauge("cpt_pull_pending", "Pulled messages not acked or nakked yet.", labels,
+                                 puller::getPendingCount);
+        CPTMetrics.registerCounter("cpt_pull_naks_total", "Pulled messages nakked for redelivery.", labels,
+                                   puller::getRedeliveryCount);
+        pullers.add(puller);
+        puller.start();
     }
 
     private void setupCMOPromotedRequestSubscriber(Gateway gateway,
@@ -284,11 +1297,7 @@ public class MessageHandlingServiceImpl implements MessageHandlingService {
         gateway.subscribe(CMO_PROMOTED_REQUEST_TOPIC, Object.class, new MessageConsumer() {
             public void onMessage(Message msg, Object message) {
                 try {
-                    messageHandlingService.promotedRequestHandler(
-                            mapper.readValue(
-                            new String(msg.getData(), StandardCharsets.UTF_8),
-                            String.class)
-                    );
+                    messageHandlingService.promotedRequestHandler(msg.getData());
                 } catch (Exception e) {
                     LOG.error("Cannot process CMO_PROMOTED_REQUEST: " + message.toString(), e);
                 }
@@ -302,11 +1311,7 @@ public class MessageHandlingServiceImpl implements MessageHandlingService {
         gateway.subscribe(CMO_NEW_REQUEST_TOPIC, Object.class, new MessageConsumer() {
             public void onMessage(Message msg, Object message) {
                 try {
-                    messageHandlingService.newRequestHandler(
-                            mapper.readValue(
-                            new String(msg.getData(), StandardCharsets.UTF_8),
-                            String.class)
-                    );
+                    messageHandlingService.newRequestHandler(msg.getData());
                 } catch (Exception e) {
                     LOG.error("Cannot process CMO_NEW_REQUEST: " + message.toString(), e);
                 }
@@ -320,11 +1325,7 @@ public class MessageHandlingServiceImpl implements MessageHandlingService {
         gateway.subscribe(CMO_UPDATE_REQUEST_TOPIC, Object.class, new MessageConsumer() {
             public void onMessage(Message msg, Object message) {
                 try {
-                    messageHandlingService.updateRequestHandler(
-                            mapper.readValue(
-                            new String(msg.getData(), StandardCharsets.UTF_8),
-                            String.class)
-                    );
+                    messageHandlingService.updateRequestHandler(msg.getData());
                 } catch (Exception e) {
                     LOG.error("Cannot process CMO_UPDATE_REQUEST: " + message.toString(), e);
                 }
@@ -338,11 +1339,7 @@ public class MessageHandlingServiceImpl implements MessageHandlingService {
         gateway.subscribe(CMO_UPDATE_SAMPLE_TOPIC, Object.class, new MessageConsumer() {
             public void onMessage(Message msg, Object message) {
                 try {
-                    messageHandlingService.updateSampleHandler(
-                            mapper.readValue(
-                            new String(msg.getData(), StandardCharsets.UTF_8),
-                            String.class)
-                    );
+                    messageHandlingService.updateSampleHandler(msg.getData());
                 } catch (Exception e) {
                     LOG.error("Cannot process CMO_UPDATE_SAMPLE: " + message.toString(), e);
                 }
@@ -356,11 +1353,7 @@ public class MessageHandlingServiceImpl implements MessageHandlingService {
         gateway.subscribe(IGO_REQUEST_STATUS_TOPIC, Object.class, new MessageConsumer() {
             public void onMessage(Message msg, Object message) {
                 try {
-                    messageHandlingService.requestStatusHandler(
-                            mapper.readValue(
-                            new String(msg.getData(), StandardCharsets.UTF_8),
-                            String.class)
-                    );
+                    messageHandlingService.requestStatusHandler(msg.getData());
                 } catch (Exception e) {
                     LOG.error("Cannot process IGO_REQUEST_STATUS_TOPIC: " + message.toString(), e);
                 }
@@ -0,0 +1,237 @@
+package org.mskcc.smile.cpt_gateway.service.util;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Circuit breaker for one CPT destination.
+ *
+ * <p>While CLOSED every record passes and the outcomes of the last windowSize
+ * posts are kept. Once at least minimumCalls have been seen and the share of
+ * failed posts reaches failureRateThreshold, or the share of posts slower
+ * than slowCallMillis reaches slowCallRateThreshold, the breaker OPENs and
+ * nothing passes for openMillis. It then goes HALF_OPEN and lets
+ * halfOpenProbes records through: if all of them succeed in time it CLOSEs
+ * again, otherwise it goes back to OPEN. Outcomes of posts let through before
+ * the last state change are ignored.
+ */
+public class CPTCircuitBreaker {
+    private static final Log LOG = LogFactory.getLog(CPTCircuitBreaker.class);
+
+    public enum State {
+        CLOSED,
+        OPEN,
+        HALF_OPEN;
+    }
+
+    /**
+     * A record let through the breaker. Exactly one of success, failure or
+     * cancel counts, later calls are ignored.
+     */
+    public final class Permit {
+        private final long generation;
+        private final long startNanos = System.nanoTime();
+        private final AtomicBoolean settled = new AtomicBoolean();
+
+        private Permit(long generation) {
+            this.generation = generation;
+        }
+
+        public void success() {
+            if (settled.compareAndSet(false, true)) {
+                onOutcome(generation, false, System.nanoTime() - startNanos);
+            }
+        }
+
+        public void failure() {
+            if (settled.compareAndSet(false, true)) {
+                onOutcome(generation, true, System.nanoTime() - startNanos);
+            }
+        }
+
+        /**
+         * The record was not posted after all.
+         */
+        public void cancel() {
+            if (settled.compareAndSet(false, true)) {
+                onCancel(generation);
+            }
+        }
+    }
+
+    private final String name;
+    private final int minimumCalls;
+    private final double failureRateThreshold;
+    private final double slowCallRateThreshold;
+    private final long slowCallNanos;
+    private final long openNanos;
+    private final int halfOpenProbes;
+    private final boolean[] failedCalls;
+    private final boolean[] slowCalls;
+    private Runnable stateListener;
+    private State state = State.CLOSED;
+    private long generation;
+    private int calls;
+    private int nextCall;
+    private int failures;
+    private int slows;
+    private long openedAt;
+    private int probesIssued;
+    private int probeSuccesses;
+    private long openCount;
+
+    public CPTCircuitBreaker(String name, int windowSize, int minimumCalls, double failureRateThreshold,
+                             double slowCallRateThreshold, long slowCallMillis, long openMillis,
+                             int halfOpenProbes) {
+        this.name = name;
+        this.failedCalls = new boolean[Math.max(1, windowSize)];
+        this.slowCalls = new boolean[failedCalls.length];
+        this.minimumCalls = Math.max(1, Math.min(minimumCalls, failedCalls.length));
+        this.failureRateThreshold = failureRateThreshold;
+        this.slowCallRateThreshold = slowCallRateThreshold;
+        this.slowCallNanos = TimeUnit.MILLISECONDS.toNanos(slowCallMillis);
+        this.openNanos = TimeUnit.MILLISECONDS.toNanos(openMillis);
+        this.halfOpenProbes = Math.max(1, halfOpenProbes);
+    }
+
+    /**
+     * Run, without the breaker's lock held, on every state change and
+     * whenever a half open probe is handed back, so anyone waiting on
+     * {@link #getWaitNanos} can look again.
+     */
+    public synchronized void setStateListener(Runnable stateListener) {
+        this.stateListener = stateListener;
+    }
+
+    /**
+     * Lets a record through, or returns null while the breaker is open or
+     * all half open probes are out.
+     */
+    public Permit tryAcquire() {
+        Runnable listener = null;
+        Permit permit = null;
+        synchronized (this) {
+            if (state == State.OPEN && System.nanoTime() - openedAt >= openNanos) {
+                transition(State.HALF_OPEN, "open for " + TimeUnit.NANOSECONDS.toMillis(openNanos) + "ms");
+                listener = stateListener;
+            }
+            if (state == State.CLOSED || (state == State.HALF_OPEN && probesIssued < halfOpenProbes)) {
+                probesIssued += (state == State.HALF_OPEN) ? 1 : 0;
+                permit = new Permit(generation);
+            }
+        }
+        if (listener != null) {
+            listener.run();
+        }
+        return permit;
+    }
+
+    /**
+     * How long until a record may pass: 0 if one may now, Long.MAX_VALUE if
+     * that depends on the outcome of the half open probes.
+     */
+    public synchronized long getWaitNanos() {
+        switch (state) {
+            case OPEN:
+                return Math.max(0, openNanos - (System.nanoTime() - openedAt));
+            case HALF_OPEN:
+                return (probesIssued < halfOpenProbes) ? 0 : Long.MAX_VALUE;
+            case CLOSED:
+            default:
+                return 0;
+        }
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    public synchronized long getOpenCount() {
+        return openCount;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    private void onOutcome(long permitGeneration, boolean failed, long durationNanos) {
+        Runnable listener = null;
+        synchronized (this) {
+            if (permitGeneration != generation) {
+                return;
+            }
+            boolean slow = durationNanos >= slowCallNanos;
+            if (state == State.HALF_OPEN) {
+                if (failed || slow) {
+                    transition(State.OPEN, failed ? "probe failed" : "probe took "
+                               + TimeUnit.NANOSECONDS.toMillis(durationNanos) + "ms");
+                } else if (++probeSuccesses >= halfOpenProbes) {
+                    transition(State.CLOSED, probeSuccesses + " probes succeeded");
+                }
+            } else if (state == State.CLOSED) {
+                record(failed, slow);
+            }
+            if (generation != permitGeneration) {
+                listener = stateListener;
+            }
+        }
+        if (listener != null) {
+            listener.run();
+        }
+    }
+
+    private void onCancel(long permitGeneration) {
+        Runnable listener = null;
+        synchronized (this) {
+            if (permitGeneration == generation && state == State.HALF_OPEN) {
+                probesIssued--;
+                listener = stateListener;
+            }
+        }
+        if (listener != null) {
+            listener.run();
+        }
+    }
+
+    private void record(boolean failed, boolean slow) {
+        if (calls == failedCalls.length) {
+            failures -= failedCalls[nextCall] ? 1 : 0;
+            slows -= slowCalls[nextCall] ? 1 : 0;
+        } else {
+            calls++;
+        }
+        failedCalls[nextCall] = failed;
+        slowCalls[nextCall] = slow;
+        failures += failed ? 1 : 0;
+        slows += slow ? 1 : 0;
+        nextCall = (nextCall + 1) % failedCalls.length;
+        if (calls < minimumCalls) {
+            return;
+        }
+        double failureRate = (double) failures / calls;
+        double slowCallRate = (double) slows / calls;
+        if (failureRate >= failureRateThreshold) {
+            transition(State.OPEN, "failure rate " + Math.round(failureRate * 100) + "%");
+        } else if (slowCallRate >= slowCallRateThreshold) {
+            transition(State.OPEN, "slow call rate " + Math.round(slowCallRate * 100) + "%");
+        }
+    }
+
+    private void transition(State newState, String reason) {
+        LOG.warn("Circuit breaker for " + name + " " + state + " -> " + newState + " (" + reason + ")");
+        state = newState;
+        generation++;
+        calls = 0;
+        nextCall = 0;
+        failures = 0;
+        slows = 0;
+        probesIssued = 0;
+        probeSuccesses = 0;
+        if (newState == State.OPEN) {
+            openedAt = System.nanoTime();
+            openCount++;
+        }
+    }
+}
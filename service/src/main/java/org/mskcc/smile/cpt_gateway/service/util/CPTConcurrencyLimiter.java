@@ -0,0 +1,205 @@
+package org.mskcc.smile.cpt_gateway.service.util;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * AIMD limit on the posts in flight to one CPT destination.
+ *
+ * <p>Every post holds a {@link Permit} and reports how it went. While at least
+ * half the limit is in use, each fast success raises the limit by 1/limit,
+ * about one per round of posts. A timeout, a 5xx or 429 response, or a
+ * success slower than the latency threshold multiplies the limit by the
+ * backoff ratio, at most once per latency threshold so a burst of failures
+ * from the same overload only counts once. Client errors are ignored, they
+ * say nothing about the backend's load.
+ *
+ * <p>Permits are taken with {@link #acquire}, which waits for room, or
+ * {@link #tryAcquire}, which does not. Callers of the latter are told by the
+ * room listener when a full limiter has room again.
+ */
+public class CPTConcurrencyLimiter {
+    private static final Log LOG = LogFactory.getLog(CPTConcurrencyLimiter.class);
+
+    public final class Permit {
+        private volatile long startNanos = System.nanoTime();
+        private final AtomicBoolean settled = new AtomicBoolean();
+
+        /**
+         * Latency is measured from acquire, or from the last call to this.
+         */
+        public void restartClock() {
+            startNanos = System.nanoTime();
+        }
+
+        public void success() {
+            if (settled.compareAndSet(false, true)) {
+                notifyRoom(onSuccess(System.nanoTime() - startNanos));
+            }
+        }
+
+        public void overload(String reason) {
+            if (settled.compareAndSet(false, true)) {
+                notifyRoom(onOverload(reason));
+            }
+        }
+
+        /**
+         * Gives the permit back without a signal, a no-op once success or
+         * overload has been reported.
+         */
+        public void release() {
+            if (settled.compareAndSet(false, true)) {
+                notifyRoom(onRelease());
+            }
+        }
+    }
+
+    private final String name;
+    private final boolean adaptive;
+    private final int minLimit;
+    private final int maxLimit;
+    private final double backoffRatio;
+    private final long latencyThresholdNanos;
+    private double limit;
+    private int inFlight;
+    private long lastDecreaseNanos;
+    private long increases;
+    private long decreases;
+    private volatile Runnable roomListener;
+
+    /**
+     * A limiter that is not adaptive stays at maxLimit.
+     */
+    public CPTConcurrencyLimiter(String name, boolean adaptive, int initialLimit, int minLimit, int maxLimit,
+                                 double backoffRatio, long latencyThresholdMillis) {
+        if (minLimit < 1 || maxLimit < minLimit) {
+            throw new IllegalArgumentException("Invalid concurrency limits for " + name + ": "
+                                               + minLimit + " - " + maxLimit);
+        }
+        this.name = name;
+        this.adaptive = adaptive;
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.backoffRatio = backoffRatio;
+        this.latencyThresholdNanos = TimeUnit.MILLISECONDS.toNanos(latencyThresholdMillis);
+        this.limit = adaptive ? Math.max(minLimit, Math.min(maxLimit, initialLimit)) : maxLimit;
+        this.lastDecreaseNanos = System.nanoTime() - latencyThresholdNanos;
+    }
+
+    /**
+     * Run, without the limiter's lock held, when a permit comes back to a
+     * limiter that was full and leaves room for another.
+     */
+    public void setRoomListener(Runnable roomListener) {
+        this.roomListener = roomListener;
+    }
+
+    /**
+     * Waits until a post fits under the limit.
+     */
+    public synchronized Permit acquire() {
+        boolean interrupted = false;
+        while (inFlight >= (int) limit) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                // the caller already owns the record, it has to be posted or saved either way
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        inFlight++;
+        return new Permit();
+    }
+
+    /**
+     * A permit if a post fits under the limit now, otherwise null.
+     */
+    public synchronized Permit tryAcquire() {
+        if (inFlight >= (int) limit) {
+            return null;
+        }
+        inFlight++;
+        return new Permit();
+    }
+
+    public synchronized boolean hasRoom() {
+        return inFlight < (int) limit;
+    }
+
+    public synchronized int getLimit() {
+        return (int) limit;
+    }
+
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    public synchronized long getIncreaseCount() {
+        return increases;
+    }
+
+    public synchronized long getDecreaseCount() {
+        return decreases;
+    }
+
+    private synchronized boolean onSuccess(long latencyNanos) {
+        boolean full = !hasRoom();
+        boolean saturated = inFlight * 2 >= limit;
+        inFlight--;
+        if (latencyNanos > latencyThresholdNanos) {
+            decrease("slow response " + TimeUnit.NANOSECONDS.toMillis(latencyNanos) + "ms");
+        } else if (adaptive && saturated && limit < maxLimit) {
+            setLimit(Math.min(maxLimit, limit + 1.0 / limit), "increase");
+            increases++;
+        }
+        notifyAll();
+        return full && hasRoom();
+    }
+
+    private synchronized boolean onOverload(String reason) {
+        boolean full = !hasRoom();
+        inFlight--;
+        decrease(reason);
+        notify();
+        return full && hasRoom();
+    }
+
+    private synchronized boolean onRelease() {
+        boolean full = !hasRoom();
+        inFlight--;
+        notify();
+        return full && hasRoom();
+    }
+
+    private void notifyRoom(boolean room) {
+        Runnable listener = roomListener;
+        if (room && listener != null) {
+            listener.run();
+        }
+    }
+
+    private void decrease(String reason) {
+        long now = System.nanoTime();
+        if (!adaptive || now - lastDecreaseNanos < latencyThresholdNanos) {
+            return;
+        }
+        lastDecreaseNanos = now;
+        decreases++;
+        setLimit(Math.max(minLimit, limit * backoffRatio), "decrease (" + reason + ")");
+    }
+
+    private void setLimit(double newLimit, String decision) {
+        int oldLimit = (int) limit;
+        limit = newLimit;
+        if ((int) newLimit != oldLimit && LOG.isInfoEnabled()) {
+            LOG.info("Concurrency limit for " + name + " " + decision + ": " + oldLimit + " -> "
+                     + (int) newLimit);
+        }
+    }
+}
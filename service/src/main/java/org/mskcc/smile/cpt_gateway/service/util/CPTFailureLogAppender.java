@@ -0,0 +1,387 @@
+package org.mskcc.smile.cpt_gateway.service.util;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Single writer for the post failure file.
+ *
+ * <p>Handlers put rows on a lock-free queue and wait for their future. One
+ * writer thread takes whatever has queued up since its last write and writes
+ * it with one call, so during a CPT outage a burst of failures costs a handful
+ * of writes instead of an open, write and close per row. With fsync BATCH the
+ * futures complete once the batch is forced to disk, with INTERVAL the file is
+ * forced at most once per interval, with NONE it is left to the OS.
+ *
+ * <p>The file is rotated once it reaches maxSize bytes or has been written to
+ * for rotateIntervalMillis, whichever comes first: it is renamed with a time
+ * stamp suffix and, if compress is set, gzipped in the background. Next to
+ * every file an .idx file maps entity ids to the offset of their rows in the
+ * uncompressed file, which {@link #find} uses to fetch the rows of one entity.
+ */
+public class CPTFailureLogAppender implements Closeable {
+    private static final Log LOG = LogFactory.getLog(CPTFailureLogAppender.class);
+    private static final int MAX_BATCH_ROWS = 4096;
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final String INDEX_SUFFIX = ".idx";
+    private static final String COMPRESSED_SUFFIX = ".gz";
+    private static final DateTimeFormatter ROTATION_SUFFIX =
+        DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss-SSS");
+
+    public enum FsyncPolicy {
+        NONE,
+        BATCH,
+        INTERVAL;
+    }
+
+    private static final class Row {
+        final byte[] text;
+        final String entityId;
+        final CompletableFuture<Void> written = new CompletableFuture<>();
+
+        Row(String text, String entityId) {
+            this.text = text.getBytes(StandardCharsets.UTF_8);
+            this.entityId = entityId;
+        }
+    }
+
+    private final Path path;
+    private final Path indexPath;
+    private final FsyncPolicy fsyncPolicy;
+    private final long fsyncIntervalNanos;
+    private final long maxSize;
+    private final long rotateIntervalNanos;
+    private final boolean compress;
+    private final ConcurrentLinkedQueue<Row> rows = new ConcurrentLinkedQueue<>();
+    private final Thread writer;
+    private final ExecutorService compressor;
+    private final Object lock = new Object();
+    private volatile boolean closed;
+    private FileChannel channel;
+    private FileChannel indexChannel;
+    private long size;
+    private long openedAt;
+    private long lastFsync;
+    private boolean unsynced;
+
+    public CPTFailureLogAppender(Path path, FsyncPolicy fsyncPolicy, long fsyncIntervalMillis,
+                                 long maxSize, long rotateIntervalMillis, boolean compress) {
+        this.path = path;
+        this.indexPath = path.resolveSibling(path.getFileName() + INDEX_SUFFIX);
+        this.fsyncPolicy = fsyncPolicy;
+        this.fsyncIntervalNanos = TimeUnit.MILLISECONDS.toNanos(fsyncIntervalMillis);
+        this.maxSize = maxSize;
+        this.rotateIntervalNanos = TimeUnit.MILLISECONDS.toNanos(rotateIntervalMillis);
+        this.compress = compress;
+        this.compressor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "cpt-failure-log-compressor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.writer = new Thread(this::write, "cpt-failure-log-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Queues a row (ending with a line break) and returns a future completed
+     * once it is written. Rows with an entity id are indexed. After close the
+     * row is written on the calling thread.
+     */
+    public CompletableFuture<Void> append(String text, String entityId) {
+        Row row = new Row(text, entityId);
+        rows.offer(row);
+        LockSupport.unpark(writer);
+        // the writer may have stopped between the offer and now
+        if (closed && rows.remove(row)) {
+            writeAndClose(Collections.singletonList(row));
+        }
+        return row.written;
+    }
+
+    /**
+     * Rows of the live and rotated files indexed under entityId, oldest file
+     * first.
+     */
+    public List<String> find(String entityId) throws IOException {
+        List<Path> indexes = new ArrayList<>();
+        String prefix = path.getFileName().toString();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(path.toAbsolutePath().getParent(),
+                                                                    prefix + ".*" + INDEX_SUFFIX)) {
+            for (Path file : files) {
+                indexes.add(file);
+            }
+        }
+        // rotated files sort by their time stamp, the live file goes last
+        Collections.sort(indexes);
+        if (Files.exists(indexPath)) {
+            indexes.add(indexPath);
+        }
+        List<String> found = new ArrayList<>();
+        for (Path index : indexes) {
+            List<Long> offsets = new ArrayList<>();
+            for (String line : Files.readAllLines(index, StandardCharsets.UTF_8)) {
+                int tab = line.lastIndexOf('\t');
+                if (tab > 0 && line.substring(0, tab).equals(entityId)) {
+                    offsets.add(Long.parseLong(line.substring(tab + 1)));
+                }
+            }
+            if (!offsets.isEmpty()) {
+                String indexName = index.getFileName().toString();
+                String dataName = indexName.substring(0, indexName.length() - INDEX_SUFFIX.length());
+                found.addAll(readRows(index.resolveSibling(dataName), offsets));
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Writes the rows still queued, then stops the writer and waits for
+     * rotated files to be compressed.
+     */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        LockSupport.unpark(writer);
+        try {
+            writer.join();
+            compressor.shutdown();
+            compressor.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        List<Row> remaining = new ArrayList<>();
+        Row row;
+        while ((row = rows.poll()) != null) {
+            remaining.add(row);
+        }
+        writeAndClose(remaining);
+    }
+
+    private void writeAndClose(List<Row> batch) {
+        synchronized (lock) {
+            if (!batch.isEmpty()) {
+                writeBatch(batch);
+            }
+            closeFiles();
+        }
+    }
+
+    private void write() {
+        List<Row> batch = new ArrayList<>();
+        while (true) {
+            Row row = rows.poll();
+            if (row == null) {
+                if (closed) {
+                    return;
+                }
+                synchronized (lock) {
+                    syncIfDue();
+                }
+                LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+                continue;
+            }
+            batch.clear();
+            do {
+                batch.add(row);
+            } while (batch.size() < MAX_BATCH_ROWS && (row = rows.poll()) != null);
+            synchronized (lock) {
+                writeBatch(batch);
+            }
+        }
+    }
+
+    private void writeBatch(List<Row> batch) {
+        try {
+            openFiles();
+            if (isRotationDue()) {
+                rotate();
+                openFiles();
+            }
+            ByteArrayOutputStream data = new ByteArrayOutputStream();
+            StringBuilder index = new StringBuilder();
+            for (Row row : batch) {
+                if (row.entityId != null && !row.entityId.isEmpty()) {
+                    index.append(row.entityId).append('\t').append(size + data.size()).append('\n');
+                }
+                data.write(row.text, 0, row.text.length);
+            }
+            writeFully(channel, ByteBuffer.wrap(data.toByteArray()));
+            writeFully(indexChannel, ByteBuffer.wrap(index.toString().getBytes(StandardCharsets.UTF_8)));
+            size += data.size();
+            unsynced = true;
+            if (fsyncPolicy == FsyncPolicy.BATCH) {
+                sync();
+            } else {
+                syncIfDue();
+            }
+            for (Row row : batch) {
+                row.written.complete(null);
+            }
+        } catch (IOException e) {
+            for (Row row : batch) {
+                row.written.completeExceptionally(e);
+            }
+        }
+    }
+
+    private boolean isRotationDue() {
+        if (maxSize > 0 && size >= maxSize) {
+            return true;
+        }
+        return rotateIntervalNanos > 0 && size > 0 && System.nanoTime() - openedAt >= rotateIntervalNanos;
+    }
+
+    private void syncIfDue() {
+        if (fsyncPolicy == FsyncPolicy.INTERVAL && unsynced
+            && System.nanoTime() - lastFsync >= fsyncIntervalNanos) {
+            try {
+                sync();
+            } catch (IOException e) {
+                LOG.error("Unable to sync the post failure file: ", e);
+            }
+        }
+    }
+
+    private void sync() throws IOException {
+        channel.force(false);
+        indexChannel.force(false);
+        lastFsync = System.nanoTime();
+        unsynced = false;
+    }
+
+    private void openFiles() throws IOException {
+        if (channel != null) {
+            return;
+        }
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                                   StandardOpenOption.APPEND);
+        indexChannel = FileChannel.open(indexPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                                        StandardOpenOption.APPEND);
+        size = channel.size();
+        openedAt = System.nanoTime();
+        lastFsync = openedAt;
+    }
+
+    private void closeFiles() {
+        try {
+            if (channel != null) {
+                if (unsynced && fsyncPolicy != FsyncPolicy.NONE) {
+                    sync();
+                }
+                channel.close();
+                indexChannel.close();
+            }
+        } catch (IOException e) {
+            LOG.error("Unable to close the post failure file: ", e);
+        } finally {
+            channel = null;
+            indexChannel = null;
+        }
+    }
+
+    private void rotate() throws IOException {
+        closeFiles();
+        String suffix = "." + LocalDateTime.now().format(ROTATION_SUFFIX);
+        Path rotated = path.resolveSibling(path.getFileName() + suffix);
+        Files.move(path, rotated);
+        Files.move(indexPath, rotated.resolveSibling(rotated.getFileName() + INDEX_SUFFIX));
+        LOG.info("Rotated post failure file to " + rotated);
+        if (compress) {
+            try {
+                compressor.execute(() -> compress(rotated));
+            } catch (RejectedExecutionException e) {
+                // rows written after close
+                compress(rotated);
+            }
+        }
+    }
+
+    private static void compress(Path rotated) {
+        Path compressed = rotated.resolveSibling(rotated.getFileName() + COMPRESSED_SUFFIX);
+        try (InputStream in = Files.newInputStream(rotated);
+             OutputStream out = new GZIPOutputStream(Files.newOutputStream(compressed))) {
+            byte[] buffer = new byte[64 * 1024];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+        } catch (IOException e) {
+            LOG.error("Unable to compress rotated post failure file " + rotated + ": ", e);
+            return;
+        }
+        try {
+            Files.delete(rotated);
+        } catch (IOException e) {
+            LOG.warn("Unable to delete rotated post failure file " + rotated + " after compressing it");
+        }
+    }
+
+    /**
+     * Reads the rows at the given (ascending) offsets of a data file, or of
+     * its compressed copy once it has been gzipped.
+     */
+    private static List<String> readRows(Path data, List<Long> offsets) throws IOException {
+        Path compressed = data.resolveSibling(data.getFileName() + COMPRESSED_SUFFIX);
+        boolean isCompressed = !Files.exists(data) && Files.exists(compressed);
+        List<String> found = new ArrayList<>();
+        try (InputStream in = new BufferedInputStream(isCompressed
+                ? new GZIPInputStream(Files.newInputStream(compressed)) : Files.newInputStream(data))) {
+            long position = 0;
+            ByteArrayOutputStream line = new ByteArrayOutputStream();
+            for (long offset : offsets) {
+                while (position < offset) {
+                    long skipped = in.skip(offset - position);
+                    if (skipped <= 0) {
+                        return found;
+                    }
+                    position += skipped;
+                }
+                line.reset();
+                int b;
+                while ((b = in.read()) != -1) {
+                    position++;
+                    if (b == '\n') {
+                        break;
+                    }
+                    line.write(b);
+                }
+                found.add(new String(line.toByteArray(), StandardCharsets.UTF_8));
+            }
+        }
+        return found;
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+}
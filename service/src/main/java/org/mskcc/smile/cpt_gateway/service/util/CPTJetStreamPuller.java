@@ -0,0 +1,264 @@
+package org.mskcc.smile.cpt_gateway.service.util;
+
+import io.nats.client.Connection;
+import io.nats.client.JetStream;
+import io.nats.client.JetStreamSubscription;
+import io.nats.client.Message;
+import io.nats.client.Nats;
+import io.nats.client.Options;
+import io.nats.client.PullSubscribeOptions;
+import io.nats.client.api.AckPolicy;
+import io.nats.client.api.ConsumerConfiguration;
+import io.nats.client.api.DeliverPolicy;
+import io.nats.client.impl.NatsJetStreamMetaData;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.security.KeyStore;
+import java.security.SecureRandom;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManagerFactory;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.mskcc.smile.cpt_gateway.model.CPTRecord;
+import org.mskcc.smile.cpt_gateway.service.util.CPTRecordCoalescer.RecordSink;
+
+/**
+ * Pulls the messages of one topic from a durable JetStream consumer and
+ * hands them on as records, acknowledging each only once it has been handled.
+ *
+ * <p>At most maxPending messages are held unacknowledged and each fetch asks
+ * for no more than the room left (up to batchSize), so a destination that
+ * falls behind stops pulling instead of piling records up in memory. A
+ * record is acked when committed (posted, saved to the failure file or
+ * dropped as superseded) and nakked with a delay when redelivered for a
+ * retry; its delivery count comes back as its attempts. Pending messages are
+ * marked in progress by {@link #markInProgress}, so a long queue wait or post
+ * does not run into the consumer's ack wait.
+ */
+public class CPTJetStreamPuller {
+    private static final Log LOG = LogFactory.getLog(CPTJetStreamPuller.class);
+
+    private final String name;
+    private final JetStreamSubscription subscription;
+    private final int batchSize;
+    private final Duration maxWait;
+    private final Function<byte[], CPTRecord> recordFactory;
+    private final RecordSink sink;
+    private final Semaphore pendingPermits;
+    private final Set<Message> pending = ConcurrentHashMap.newKeySet();
+    private final LongAdder redeliveries = new LongAdder();
+    private final Thread thread;
+    private volatile boolean running = true;
+
+    public CPTJetStreamPuller(String name, JetStreamSubscription subscription, int maxPending,
+                              int batchSize, long maxWaitMillis, Function<byte[], CPTRecord> recordFactory,
+                              RecordSink sink) {
+        this.name = name;
+        this.subscription = subscription;
+        this.batchSize = Math.max(1, batchSize);
+        this.maxWait = Duration.ofMillis(maxWaitMillis);
+        this.recordFactory = recordFactory;
+        this.sink = sink;
+        this.pendingPermits = new Semaphore(Math.max(1, maxPending));
+        this.thread = new Thread(this::pull, "cpt-pull-" + name);
+        this.thread.setDaemon(true);
+    }
+
+    /**
+     * Connects to NATS for pulling, separately from the messaging gateway.
+     * sslContext may be null.
+     */
+    public static Connection connect(String url, String user, String password, SSLContext sslContext)
+        throws Exception {
+        Options.Builder options = new Options.Builder().server(url).connectionName("cpt-gateway-pull")
+            .maxReconnects(-1);
+        if (user != null && !user.isEmpty()) {
+            options.userInfo(user.toCharArray(), password.toCharArray());
+        }
+        if (sslContext != null) {
+            options.sslContext(sslContext);
+        }
+        return Nats.connect(options.build());
+    }
+
+    public static SSLContext newSslContext(String keystorePath, String keyPassword, String truststorePath,
+                                           String storePassword) throws Exception {
+        KeyManagerFactory keyManagerFactory =
+            KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        keyManagerFactory.init(loadKeyStore(keystorePath, keyPassword), keyPassword.toCharArray());
+        TrustManagerFactory trustManagerFactory =
+            TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        trustManagerFactory.init(loadKeyStore(truststorePath, storePassword));
+        SSLContext sslContext = SSLContext.getInstance("TLSv1.2");
+        sslContext.init(keyManagerFactory.getKeyManagers(), trustManagerFactory.getTrustManagers(),
+                        new SecureRandom());
+        return sslContext;
+    }
+
+    private static KeyStore loadKeyStore(String path, String password) throws Exception {
+        KeyStore keyStore = KeyStore.getInstance(KeyStore.getDefaultType());
+        try (InputStream in = Files.newInputStream(Paths.get(path))) {
+            keyStore.load(in, password.toCharArray());
+        }
+        return keyStore;
+    }
+
+    /**
+     * Binds to the durable consumer of the topic, creating it with explicit
+     * acks if it does not exist yet. The deliver policy decides where a new
+     * consumer starts in the stream; an existing one keeps its place, and
+     * binding fails if it was created with another policy.
+     */
+    public static JetStreamSubscription subscribe(JetStream jetStream, String topic, String durable,
+                                                  long ackWaitMillis, DeliverPolicy deliverPolicy)
+        throws Exception {
+        ConsumerConfiguration configuration = ConsumerConfiguration.builder()
+            .ackPolicy(AckPolicy.Explicit)
+            .ackWait(Duration.ofMillis(ackWaitMillis))
+            .deliverPolicy(deliverPolicy)
+            .build();
+        return jetStream.subscribe(topic, PullSubscribeOptions.builder()
+                                   .durable(durable).configuration(configuration).build());
+    }
+
+    /**
+     * The deliver policies a consumer can be created with from configuration:
+     * all, new, last or last_per_subject. Starting at a sequence or time is
+     * not supported.
+     */
+    public static DeliverPolicy toDeliverPolicy(String name) {
+        switch (name.trim().toLowerCase()) {
+            case "all":
+                return DeliverPolicy.All;
+            case "new":
+                return DeliverPolicy.New;
+            case "last":
+                return DeliverPolicy.Last;
+            case "last_per_subject":
+                return DeliverPolicy.LastPerSubject;
+            default:
+                throw new IllegalArgumentException("Unsupported JetStream deliver policy: " + name);
+        }
+    }
+
+    public void start() {
+        thread.start();
+    }
+
+    /**
+     * Stops fetching. Messages already fetched are still acked or nakked as
+     * their records are handled.
+     */
+    public void stop() throws InterruptedException {
+        running = false;
+        thread.interrupt();
+        thread.join(maxWait.toMillis() + 1000);
+    }
+
+    /**
+     * Resets the ack wait of every message not acked or nakked yet.
+     */
+    public void markInProgress() {
+        for (Message msg : pending) {
+            try {
+                msg.inProgress();
+            } catch (Exception e) {
+                LOG.warn("Unable to mark message in progress on " + name + ": " + e.getMessage());
+            }
+        }
+    }
+
+    public int getPendingCount() {
+        return pending.size();
+    }
+
+    public long getRedeliveryCount() {
+        return redeliveries.sum();
+    }
+
+    private void pull() {
+        while (running) {
+            try {
+                pendingPermits.acquire();
+                int batch = 1;
+                while (batch < batchSize && pendingPermits.tryAcquire()) {
+                    batch++;
+                }
+                List<Message> messages = Collections.emptyList();
+                try {
+                    messages = subscription.fetch(batch, maxWait);
+                } finally {
+                    pendingPermits.release(batch - messages.size());
+                }
+                for (Message msg : messages) {
+                    accept(msg);
+                }
+            } catch (InterruptedException e) {
+                return;
+            } catch (Exception e) {
+                if (running) {
+                    LOG.error("Unable to pull from " + name + ", trying again in " + maxWait.toMillis()
+                              + "ms: ", e);
+                    try {
+                        TimeUnit.MILLISECONDS.sleep(maxWait.toMillis());
+                    } catch (InterruptedException ie) {
+                        return;
+                    }
+                }
+            }
+        }
+    }
+
+    private void accept(Message msg) {
+        pending.add(msg);
+        try {
+            NatsJetStreamMetaData metaData = msg.metaData();
+            CPTRecord record = recordFactory.apply(msg.getData());
+            record.setSequence(metaData.streamSequence());
+            record.setAttempts((int) Math.min(Integer.MAX_VALUE, metaData.deliveredCount() - 1));
+            record.setOnCommit(() -> ack(msg));
+            record.setOnRedeliver(delayMillis -> nak(msg, delayMillis));
+            sink.put(record);
+        } catch (Exception e) {
+            LOG.error("Unable to queue message from " + name + ", leaving it for redelivery: ", e);
+            nak(msg, 0);
+        }
+    }
+
+    private void ack(Message msg) {
+        if (pending.remove(msg)) {
+            try {
+                msg.ack();
+            } catch (Exception e) {
+                // redelivered once the ack wait runs out
+                LOG.warn("Unable to ack message on " + name + ": " + e.getMessage());
+            } finally {
+                pendingPermits.release();
+            }
+        }
+    }
+
+    private void nak(Message msg, long delayMillis) {
+        if (pending.remove(msg)) {
+            redeliveries.increment();
+            try {
+                msg.nakWithDelay(Duration.ofMillis(delayMillis));
+            } catch (Exception e) {
+                LOG.warn("Unable to nak message on " + name + ": " + e.getMessage());
+            } finally {
+                pendingPermits.release();
+            }
+        }
+    }
+}
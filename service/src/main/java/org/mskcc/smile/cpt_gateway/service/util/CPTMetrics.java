@@ -0,0 +1,222 @@
+package org.mskcc.smile.cpt_gateway.service.util;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+import org.mskcc.smile.cpt_gateway.service.impl.CPTServiceImpl.CPTRecordDest;
+
+/**
+ * Metrics of the gateway, kept for the life of the process and written out
+ * in the Prometheus text format. Counters and histograms are preallocated
+ * per destination, so recording allocates nothing. Gauges, and counters
+ * kept by other classes, are read when the metrics are written.
+ */
+public final class CPTMetrics {
+
+    public enum PostOutcome {
+        SUCCESS,
+        NON_2XX,
+        EXCEPTION,
+        PARSE_FAILURE;
+    }
+
+    // bucket bounds of the exported histograms, the full resolution is kept in the quantiles
+    private static final long[] BUCKET_BOUNDS_MICROS = {1000, 2500, 5000, 10000, 25000, 50000, 100000,
+        250000, 500000, 1000000, 2500000, 5000000, 10000000, 30000000, 60000000};
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    private static final CPTRecordDest[] DESTS = CPTRecordDest.values();
+    private static final PostOutcome[] OUTCOMES = PostOutcome.values();
+    private static final CPTLatencyHistogram[] tokenLatency = newHistograms(DESTS.length);
+    private static final CPTLatencyHistogram[] postLatency = newHistograms(DESTS.length);
+    private static final LongAdder[] postOutcomes = newCounters(DESTS.length * OUTCOMES.length);
+    private static final LongAdder[] retries = newCounters(DESTS.length);
+    private static final LongAdder failureFileWrites = new LongAdder();
+    private static final Map<String, CPTLatencyHistogram> queueWait = new ConcurrentHashMap<>();
+    // metric name -> type and help, and labels -> value
+    private static final Map<String, String[]> readMetricTypes = new TreeMap<>();
+    private static final Map<String, Map<String, DoubleSupplier>> readMetrics = new TreeMap<>();
+
+    private CPTMetrics() {
+    }
+
+    /**
+     * Time spent getting a session token for a post, near zero unless the
+     * token had to be fetched.
+     */
+    public static void recordTokenNanos(CPTRecordDest recordDest, long nanos) {
+        tokenLatency[recordDest.ordinal()].recordNanos(nanos);
+    }
+
+    public static void recordPostNanos(CPTRecordDest recordDest, long nanos) {
+        postLatency[recordDest.ordinal()].recordNanos(nanos);
+    }
+
+    public static void countPost(CPTRecordDest recordDest, PostOutcome outcome) {
+        postOutcomes[recordDest.ordinal() * OUTCOMES.length + outcome.ordinal()].increment();
+    }
+
+    public static void countRetry(CPTRecordDest recordDest) {
+        retries[recordDest.ordinal()].increment();
+    }
+
+    public static void countFailureFileWrite() {
+        failureFileWrites.increment();
+    }
+
+    /**
+     * Time a record spent in the named queue, see {@link #registerQueue}.
+     */
+    public static void recordQueueWaitNanos(String queueName, long nanos) {
+        CPTLatencyHistogram histogram = queueWait.get(queueName);
+        if (histogram != null) {
+            histogram.recordNanos(nanos);
+        }
+    }
+
+    /**
+     * Exports the depth, held bytes and wait time of a queue. A queue
+     * registered under the name of an earlier one takes over its gauges and
+     * histogram.
+     */
+    public static void registerQueue(CPTRecordQueue queue) {
+        queueWait.putIfAbsent(queue.getName(), new CPTLatencyHistogram());
+        String labels = "queue=\"" + queue.getName() + "\"";
+        registerGauge("cpt_queue_depth", "Records waiting in a queue.", labels, queue::size);
+        registerGauge("cpt_queue_bytes", "Bytes of data held by the records waiting in a queue.", labels,
+                      queue::getHeldBytes);
+        registerGauge("cpt_queue_bytes_per_record", "Average bytes of data held per record waiting.", labels,
+                      queue::getHeldBytesPerRecord);
+        registerCounter("cpt_queue_compressed_total", "Records held compressed while queued.", labels,
+                        queue::getCompressedCount);
+    }
+
+    /**
+     * Exports a value read when the metrics are written. labels is the part
+     * between the braces, e.g. destination="NEW_REQUEST_RECORD_DEST", or
+     * empty.
+     */
+    public static void registerGauge(String name, String help, String labels, DoubleSupplier value) {
+        register(name, "gauge", help, labels, value);
+    }
+
+    /**
+     * Exports a count kept elsewhere, see {@link #registerGauge}.
+     */
+    public static void registerCounter(String name, String help, String labels, DoubleSupplier value) {
+        register(name, "counter", help, labels, value);
+    }
+
+    private static synchronized void register(String name, String type, String help, String labels,
+                                              DoubleSupplier value) {
+        readMetricTypes.put(name, new String[] {type, help});
+        readMetrics.computeIfAbsent(name, key -> new TreeMap<>()).put(labels, value);
+    }
+
+    public static synchronized void write(Writer out) throws IOException {
+        writeHeader(out, "cpt_posts_total", "counter", "Posts to CPT by destination and outcome.");
+        for (CPTRecordDest recordDest : DESTS) {
+            for (PostOutcome outcome : OUTCOMES) {
+                writeSample(out, "cpt_posts_total", destLabel(recordDest) + ",outcome=\""
+                            + outcome.name().toLowerCase() + "\"",
+                            postOutcomes[recordDest.ordinal() * OUTCOMES.length + outcome.ordinal()].sum());
+            }
+        }
+        writeHeader(out, "cpt_retries_total", "counter", "Retries scheduled after a retryable failure.");
+        for (CPTRecordDest recordDest : DESTS) {
+            writeSample(out, "cpt_retries_total", destLabel(recordDest), retries[recordDest.ordinal()].sum());
+        }
+        writeHeader(out, "cpt_failure_file_writes_total", "counter", "Records saved to the failure file.");
+        writeSample(out, "cpt_failure_file_writes_total", "", failureFileWrites.sum());
+
+        writeHeader(out, "cpt_token_seconds", "histogram", "Time to get a session token for a post.");
+        for (CPTRecordDest recordDest : DESTS) {
+            writeHistogram(out, "cpt_token_seconds", destLabel(recordDest),
+                           tokenLatency[recordDest.ordinal()]);
+        }
+        writeHeader(out, "cpt_post_seconds", "histogram", "Time from sending a post to its response.");
+        for (CPTRecordDest recordDest : DESTS) {
+            writeHistogram(out, "cpt_post_seconds", destLabel(recordDest), postLatency[recordDest.ordinal()]);
+        }
+        writeHeader(out, "cpt_post_quantile_seconds", "gauge", "Post latency quantiles since start.");
+        for (CPTRecordDest recordDest : DESTS) {
+            long[] snapshot = postLatency[recordDest.ordinal()].snapshot();
+            for (double quantile : QUANTILES) {
+                long micros = CPTLatencyHistogram.getQuantileMicros(snapshot, quantile);
+                writeSample(out, "cpt_post_quantile_seconds",
+                            destLabel(recordDest) + ",quantile=\"" + quantile + "\"", toSeconds(micros));
+            }
+        }
+        writeHeader(out, "cpt_queue_wait_seconds", "histogram", "Time from enqueue to dequeue of a record.");
+        for (Map.Entry<String, CPTLatencyHistogram> entry : new TreeMap<>(queueWait).entrySet()) {
+            writeHistogram(out, "cpt_queue_wait_seconds", "queue=\"" + entry.getKey() + "\"",
+                           entry.getValue());
+        }
+        for (Map.Entry<String, Map<String, DoubleSupplier>> metric : readMetrics.entrySet()) {
+            String[] typeAndHelp = readMetricTypes.get(metric.getKey());
+            writeHeader(out, metric.getKey(), typeAndHelp[0], typeAndHelp[1]);
+            for (Map.Entry<String, DoubleSupplier> sample : metric.getValue().entrySet()) {
+                writeSample(out, metric.getKey(), sample.getKey(), sample.getValue().getAsDouble());
+            }
+        }
+    }
+
+    public static String destLabel(CPTRecordDest recordDest) {
+        return "destination=\"" + recordDest.name() + "\"";
+    }
+
+    private static void writeHistogram(Writer out, String name, String labels, CPTLatencyHistogram histogram)
+        throws IOException {
+        long[] snapshot = histogram.snapshot();
+        long count = 0;
+        int bucket = 0;
+        for (long bound : BUCKET_BOUNDS_MICROS) {
+            while (bucket < snapshot.length && CPTLatencyHistogram.getUpperBoundMicros(bucket) <= bound) {
+                count += snapshot[bucket++];
+            }
+            writeSample(out, name + "_bucket", labels + ",le=\"" + toSeconds(bound) + "\"", count);
+        }
+        while (bucket < snapshot.length) {
+            count += snapshot[bucket++];
+        }
+        writeSample(out, name + "_bucket", labels + ",le=\"+Inf\"", count);
+        writeSample(out, name + "_sum", labels, toSeconds(histogram.getSumMicros()));
+        writeSample(out, name + "_count", labels, count);
+    }
+
+    private static void writeHeader(Writer out, String name, String type, String help) throws IOException {
+        out.write("# HELP " + name + " " + help + "\n");
+        out.write("# TYPE " + name + " " + type + "\n");
+    }
+
+    private static void writeSample(Writer out, String name, String labels, double value) throws IOException {
+        String formatted = (value == Math.rint(value) && !Double.isInfinite(value))
+            ? Long.toString((long) value) : Double.toString(value);
+        out.write(name + ((labels == null || labels.isEmpty()) ? "" : "{" + labels + "}") + " " + formatted
+                  + "\n");
+    }
+
+    private static double toSeconds(long micros) {
+        return micros / 1e6;
+    }
+
+    private static CPTLatencyHistogram[] newHistograms(int count) {
+        CPTLatencyHistogram[] histograms = new CPTLatencyHistogram[count];
+        for (int i = 0; i < count; i++) {
+            histograms[i] = new CPTLatencyHistogram();
+        }
+        return histograms;
+    }
+
+    private static LongAdder[] newCounters(int count) {
+        LongAdder[] counters = new LongAdder[count];
+        for (int i = 0; i < count; i++) {
+            counters[i] = new LongAdder();
+        }
+        return counters;
+    }
+}
@@ -0,0 +1,83 @@
+package org.mskcc.smile.cpt_gateway.service.util;
+
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses record payloads while they wait in a queue, with raw deflate at
+ * its fastest level. Request and sample JSON shrink several times over even
+ * so, and deflating takes a few milliseconds per megabyte.
+ *
+ * <p>Deflaters and inflaters hold native memory, so each thread keeps one of
+ * each and resets it between payloads rather than creating new ones.
+ */
+public final class CPTPayloadCompressor {
+    // not worth holding compressed unless it saves at least an eighth
+    private static final int MIN_SAVING_SHIFT = 3;
+
+    private static final ThreadLocal<Deflater> deflaters =
+        ThreadLocal.withInitial(() -> new Deflater(Deflater.BEST_SPEED, true));
+    private static final ThreadLocal<Inflater> inflaters = ThreadLocal.withInitial(() -> new Inflater(true));
+
+    private CPTPayloadCompressor() {
+    }
+
+    /**
+     * The compressed payload, or null if it would not be much smaller.
+     */
+    public static byte[] compress(byte[] data) {
+        int limit = data.length - (data.length >> MIN_SAVING_SHIFT);
+        Deflater deflater = deflaters.get();
+        try {
+            deflater.setInput(data);
+            deflater.finish();
+            // sized for json compressing 4 to 1, grown up to just past the limit
+            byte[] buffer = new byte[Math.min(limit + 1, Math.max(64, data.length >> 2))];
+            int length = 0;
+            while (!deflater.finished() && length <= limit) {
+                if (length == buffer.length) {
+                    buffer = Arrays.copyOf(buffer, Math.min(limit + 1, buffer.length * 2));
+                }
+                length += deflater.deflate(buffer, length, buffer.length - length);
+            }
+            if (!deflater.finished() || length > limit) {
+                return null;
+            }
+            return Arrays.copyOf(buffer, length);
+        } finally {
+            deflater.reset();
+        }
+    }
+
+    /**
+     * Inflates a payload compressed by {@link #compress} back to its length
+     * bytes.
+     */
+    public static byte[] decompress(byte[] compressed, int length) {
+        Inflater inflater = inflaters.get();
+        try {
+            inflater.setInput(compressed);
+            byte[] data = new byte[length];
+            int inflated = 0;
+            while (inflated < length) {
+                int read = inflater.inflate(data, inflated, length - inflated);
+                if (read == 0
+                    && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                inflated += read;
+            }
+            if (inflated != length) {
+                throw new IllegalStateException("Compressed payload inflated to " + inflated
+                                                + " bytes, expected " + length);
+            }
+            return data;
+        } catch (DataFormatException e) {
+            throw new IllegalStateException("Compressed payload is corrupt", e);
+        } finally {
+            inflater.reset();
+        }
+    }
+}
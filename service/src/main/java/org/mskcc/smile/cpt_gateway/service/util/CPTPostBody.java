@@ -0,0 +1,376 @@
+package org.mskcc.smile.cpt_gateway.service.util;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * CPT post body built around the raw NATS payload of a record.
+ *
+ * <p>The payload is the JSON string literal published by SMILE. Instead of
+ * decoding it into a String, escaping the quotes again and concatenating the
+ * envelope, the literal is transcoded straight into the output stream: every
+ * escape sequence is decoded, except quotes which stay escaped (this is to
+ * avoid filemaker data api error 1708).
+ *
+ * <p>A body marked for gzip is compressed as it is written, the uncompressed
+ * form is never held in memory.
+ */
+public class CPTPostBody {
+
+    private static final byte[] REQUEST_PREFIX =
+        "{\"fieldData\":{\"projectBatchNumber\": \"".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] REQUEST_FIELD = "\",\"requestJSON\": ".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] SAMPLE_PREFIX =
+        "{\"fieldData\":{\"igoSampleId\": \"".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] SAMPLE_FIELD = "\",\"sampleJSON\": ".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] SUFFIX = "}}".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] ESCAPED_QUOTE = {'\\', '"'};
+    private static final byte[] REPLACEMENT = {'?'};
+    private static final int NO_GZIP = -1;
+
+    private final byte[] prefix;
+    private final byte[] entityId;
+    private final byte[] field;
+    private final byte[] record;
+    private final int contentStart;
+    private final int contentEnd;
+    private long contentLength = -1;
+    private int gzipLevel = NO_GZIP;
+
+    private CPTPostBody(byte[] prefix, String entityId, byte[] field, byte[] record) {
+        this.prefix = prefix;
+        this.entityId = entityId.getBytes(StandardCharsets.UTF_8);
+        this.field = field;
+        this.record = record;
+        int start = 0;
+        int end = record.length;
+        while (start < end && isWhitespace(record[start])) {
+            start++;
+        }
+        while (end > start && isWhitespace(record[end - 1])) {
+            end--;
+        }
+        if (end - start < 2 || record[start] != '"' || record[end - 1] != '"') {
+            throw new IllegalArgumentException("Record is not a JSON string literal");
+        }
+        this.contentStart = start + 1;
+        this.contentEnd = end - 1;
+    }
+
+    public static CPTPostBody forRequest(String igoRequestId, byte[] requestRecord) {
+        return new CPTPostBody(REQUEST_PREFIX, igoRequestId, REQUEST_FIELD, requestRecord);
+    }
+
+    public static CPTPostBody forSample(String igoSampleId, byte[] sampleRecord) {
+        return new CPTPostBody(SAMPLE_PREFIX, igoSampleId, SAMPLE_FIELD, sampleRecord);
+    }
+
+    /**
+     * Size of the record the body is built around, close to the size of
+     * the body itself.
+     */
+    public int getRecordLength() {
+        return record.length;
+    }
+
+    /**
+     * Marks the body to be sent gzipped, level being a java.util.zip.Deflater
+     * compression level.
+     */
+    public CPTPostBody setGzipLevel(int gzipLevel) {
+        this.gzipLevel = gzipLevel;
+        return this;
+    }
+
+    public boolean isGzip() {
+        return gzipLevel != NO_GZIP;
+    }
+
+    /**
+     * Length of the uncompressed body, worked out from the escape sequences
+     * of the record without transcoding it.
+     */
+    public long contentLength() {
+        if (contentLength < 0) {
+            try {
+                contentLength = prefix.length + entityId.length + field.length + getTranscodedLength()
+                    + SUFFIX.length;
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+        return contentLength;
+    }
+
+    public void writeTo(OutputStream out) throws IOException {
+        out.write(prefix);
+        out.write(entityId);
+        out.write(field);
+        writeContent(out);
+        out.write(SUFFIX);
+    }
+
+    /**
+     * Writes the body gzipped. out is not closed.
+     */
+    public void writeGzipTo(OutputStream out) throws IOException {
+        LevelGZIPOutputStream gzip = new LevelGZIPOutputStream(out, gzipLevel);
+        try {
+            // the transcoder writes in small pieces, the deflater is best fed whole buffers
+            BufferedOutputStream buffered = new BufferedOutputStream(gzip, 8192);
+            writeTo(buffered);
+            buffered.flush();
+            gzip.finish();
+        } finally {
+            gzip.end();
+        }
+    }
+
+    private void writeContent(OutputStream out) throws IOException {
+        int runStart = contentStart;
+        int i = contentStart;
+        while (i < contentEnd) {
+            if (record[i] != '\\') {
+                i++;
+                continue;
+            }
+            if (i > runStart) {
+                out.write(record, runStart, i - runStart);
+            }
+            if (i + 1 >= contentEnd) {
+                throw new IOException("Truncated escape sequence at offset " + i);
+            }
+            byte escaped = record[i + 1];
+            i += 2;
+            switch (escaped) {
+                case '"':
+                    out.write(ESCAPED_QUOTE);
+                    break;
+                case '\\':
+                case '/':
+                    out.write(escaped);
+                    break;
+                case 'b':
+                    out.write('\b');
+                    break;
+                case 'f':
+                    out.write('\f');
+                    break;
+                case 'n':
+                    out.write('\n');
+                    break;
+                case 'r':
+                    out.write('\r');
+                    break;
+                case 't':
+                    out.write('\t');
+                    break;
+                case 'u':
+                    i = writeUnicodeEscape(out, i);
+                    break;
+                default:
+                    throw new IOException("Invalid escape sequence at offset " + (i - 2));
+            }
+            runStart = i;
+        }
+        if (i > runStart) {
+            out.write(record, runStart, i - runStart);
+        }
+    }
+
+    /**
+     * Length writeContent writes: the content less what decoding each escape
+     * sequence saves.
+     */
+    private long getTranscodedLength() throws IOException {
+        long length = contentEnd - contentStart;
+        int i = contentStart;
+        while (i < contentEnd) {
+            if (record[i] != '\\') {
+                i++;
+                continue;
+            }
+            if (i + 1 >= contentEnd) {
+                throw new IOException("Truncated escape sequence at offset " + i);
+            }
+            byte escaped = record[i + 1];
+            i += 2;
+            switch (escaped) {
+                case '"':
+                    // stays escaped
+                    break;
+                case '\\':
+                case '/':
+                case 'b':
+                case 'f':
+                case 'n':
+                case 'r':
+                case 't':
+                    length--;
+                    break;
+                case 'u':
+                    int next = skipUnicodeEscape(i);
+                    // \\u and the digits, or two of them for a surrogate pair
+                    length += getUnicodeEscapeLength(i) - (next - i + 2);
+                    i = next;
+                    break;
+                default:
+                    throw new IOException("Invalid escape sequence at offset " + (i - 2));
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Offset following the \\uXXXX escape (or surrogate pair of escapes) whose
+     * hex digits start at offset, as writeUnicodeEscape consumes it.
+     */
+    private int skipUnicodeEscape(int offset) throws IOException {
+        int codePoint = readHex(offset);
+        offset += 4;
+        if (Character.isHighSurrogate((char) codePoint) && isLowSurrogateEscape(offset)) {
+            return offset + 6;
+        }
+        return offset;
+    }
+
+    /**
+     * Bytes writeUnicodeEscape writes for the escape whose hex digits start
+     * at offset.
+     */
+    private int getUnicodeEscapeLength(int offset) throws IOException {
+        int codePoint = readHex(offset);
+        if (Character.isHighSurrogate((char) codePoint)) {
+            return isLowSurrogateEscape(offset + 4) ? 4 : REPLACEMENT.length;
+        }
+        if (Character.isLowSurrogate((char) codePoint)) {
+            return REPLACEMENT.length;
+        }
+        if (codePoint == '"') {
+            return ESCAPED_QUOTE.length;
+        }
+        return (codePoint < 0x80) ? 1 : (codePoint < 0x800) ? 2 : 3;
+    }
+
+    private boolean isLowSurrogateEscape(int offset) throws IOException {
+        return offset + 6 <= contentEnd && record[offset] == '\\' && record[offset + 1] == 'u'
+            && Character.isLowSurrogate((char) readHex(offset + 2));
+    }
+
+    /**
+     * Writes the UTF-8 form of the \\uXXXX escape whose hex digits start at offset,
+     * joining surrogate pairs, and returns the offset following the escape.
+     */
+    private int writeUnicodeEscape(OutputStream out, int offset) throws IOException {
+        int codePoint = readHex(offset);
+        offset += 4;
+        if (Character.isHighSurrogate((char) codePoint)) {
+            if (offset + 6 <= contentEnd && record[offset] == '\\' && record[offset + 1] == 'u') {
+                int low = readHex(offset + 2);
+                if (Character.isLowSurrogate((char) low)) {
+                    writeUtf8(out, Character.toCodePoint((char) codePoint, (char) low));
+                    return offset + 6;
+                }
+            }
+            // unpaired surrogates are replaced the same way String.getBytes does
+            out.write(REPLACEMENT);
+            return offset;
+        }
+        if (Character.isLowSurrogate((char) codePoint)) {
+            out.write(REPLACEMENT);
+        } else if (codePoint == '"') {
+            out.write(ESCAPED_QUOTE);
+        } else {
+            writeUtf8(out, codePoint);
+        }
+        return offset;
+    }
+
+    private int readHex(int offset) throws IOException {
+        if (offset + 4 > contentEnd) {
+            throw new IOException("Truncated unicode escape at offset " + offset);
+        }
+        int value = 0;
+        for (int i = offset; i < offset + 4; i++) {
+            int digit = Character.digit((char) record[i], 16);
+            if (digit < 0) {
+                throw new IOException("Invalid unicode escape at offset " + offset);
+            }
+            value = (value << 4) | digit;
+        }
+        return value;
+    }
+
+    private static void writeUtf8(OutputStream out, int codePoint) throws IOException {
+        if (codePoint < 0x80) {
+            out.write(codePoint);
+        } else if (codePoint < 0x800) {
+            out.write(0xC0 | (codePoint >> 6));
+            out.write(0x80 | (codePoint & 0x3F));
+        } else if (codePoint < 0x10000) {
+            out.write(0xE0 | (codePoint >> 12));
+            out.write(0x80 | ((codePoint >> 6) & 0x3F));
+            out.write(0x80 | (codePoint & 0x3F));
+        } else {
+            out.write(0xF0 | (codePoint >> 18));
+            out.write(0x80 | ((codePoint >> 12) & 0x3F));
+            out.write(0x80 | ((codePoint >> 6) & 0x3F));
+            out.write(0x80 | (codePoint & 0x3F));
+        }
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\t' || b == '\n' || b == '\r';
+    }
+
+    /**
+     * Materializes the body, only used when a post fails and the body has to
+     * be written to the failure file.
+     */
+    @Override
+    public String toString() {
+        try {
+            return new String(toByteArray(), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            return new String(record, StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * Materializes the body, for clients that cannot stream it.
+     */
+    public byte[] toByteArray() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream((int) Math.min(Integer.MAX_VALUE,
+                                                                             record.length + 128L));
+        writeTo(out);
+        return out.toByteArray();
+    }
+
+    /**
+     * Materializes the gzipped body, for clients that cannot stream it.
+     */
+    public byte[] toGzipByteArray() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(512, record.length / 8));
+        writeGzipTo(out);
+        return out.toByteArray();
+    }
+
+    private static class LevelGZIPOutputStream extends GZIPOutputStream {
+        LevelGZIPOutputStream(OutputStream out, int level) throws IOException {
+            super(out, 8192);
+            def.setLevel(level);
+        }
+
+        /**
+         * Frees the native deflater, finish leaves it allocated until the
+         * stream is garbage collected.
+         */
+        void end() {
+            def.end();
+        }
+    }
+}
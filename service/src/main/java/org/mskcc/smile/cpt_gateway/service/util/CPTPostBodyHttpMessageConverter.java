@@ -0,0 +1,55 @@
+package org.mskcc.smile.cpt_gateway.service.util;
+
+import java.io.IOException;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpInputMessage;
+import org.springframework.http.HttpOutputMessage;
+import org.springframework.http.MediaType;
+import org.springframework.http.converter.AbstractHttpMessageConverter;
+import org.springframework.http.converter.HttpMessageNotReadableException;
+
+/**
+ * Streams a {@link CPTPostBody} into the outgoing request entity, gzipped
+ * and without a content length if the body is marked for gzip.
+ */
+public class CPTPostBodyHttpMessageConverter extends AbstractHttpMessageConverter<CPTPostBody> {
+
+    public CPTPostBodyHttpMessageConverter() {
+        super(MediaType.APPLICATION_JSON);
+    }
+
+    @Override
+    protected boolean supports(Class<?> clazz) {
+        return CPTPostBody.class.isAssignableFrom(clazz);
+    }
+
+    @Override
+    protected CPTPostBody readInternal(Class<? extends CPTPostBody> clazz, HttpInputMessage inputMessage)
+        throws IOException {
+        throw new HttpMessageNotReadableException("CPT post bodies are write only", inputMessage);
+    }
+
+    @Override
+    protected void addDefaultHeaders(HttpHeaders headers, CPTPostBody body, MediaType contentType)
+        throws IOException {
+        super.addDefaultHeaders(headers, body, contentType);
+        // set here, a streamed body is written after the headers have been sent
+        if (body.isGzip()) {
+            headers.set(HttpHeaders.CONTENT_ENCODING, "gzip");
+        }
+    }
+
+    @Override
+    protected Long getContentLength(CPTPostBody body, MediaType contentType) {
+        return body.isGzip() ? null : body.contentLength();
+    }
+
+    @Override
+    protected void writeInternal(CPTPostBody body, HttpOutputMessage outputMessage) throws IOException {
+        if (body.isGzip()) {
+            body.writeGzipTo(outputMessage.getBody());
+        } else {
+            body.writeTo(outputMessage.getBody());
+        }
+    }
+}
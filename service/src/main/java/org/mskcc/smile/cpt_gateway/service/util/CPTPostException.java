@@ -0,0 +1,19 @@
+package org.mskcc.smile.cpt_gateway.service.util;
+
+/**
+ * A record could not be posted to CPT. Retryable failures (timeouts, i/o
+ * errors, 5xx and 429 responses) may succeed later, the others (client errors,
+ * records that cannot be parsed) will not.
+ */
+public class CPTPostException extends Exception {
+    private final boolean retryable;
+
+    public CPTPostException(String message, boolean retryable, Throwable cause) {
+        super(message, cause);
+        this.retryable = retryable;
+    }
+
+    public boolean isRetryable() {
+        return retryable;
+    }
+}
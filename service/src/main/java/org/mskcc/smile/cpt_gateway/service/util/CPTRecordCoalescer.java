@@ -0,0 +1,182 @@
+package org.mskcc.smile.cpt_gateway.service.util;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.mskcc.smile.cpt_gateway.model.CPTRecord;
+
+/**
+ * Holds update records per entity for a debounce window and only passes the
+ * latest one on.
+ *
+ * <p>A record is released once no newer record for the same entity has
+ * arrived for debounceMillis, or once the first record for the entity has been
+ * held for maxHoldMillis, whichever comes first. Superseded records are
+ * committed as they are dropped. Records are released in the order their
+ * entity was first seen.
+ */
+public class CPTRecordCoalescer {
+    private static final Log LOG = LogFactory.getLog(CPTRecordCoalescer.class);
+    private static final long STATS_LOG_INTERVAL_MILLIS = 60000L;
+
+    public interface RecordSink {
+        void put(CPTRecord record) throws Exception;
+    }
+
+    private static final class Pending {
+        final long firstSeen;
+        long lastUpdate;
+        CPTRecord record;
+
+        Pending(CPTRecord record, long now) {
+            this.record = record;
+            this.firstSeen = now;
+            this.lastUpdate = now;
+        }
+    }
+
+    private final String name;
+    private final long debounceMillis;
+    private final long maxHoldMillis;
+    private final int maxPending;
+    private final RecordSink sink;
+    private final Map<String, Pending> pending = new LinkedHashMap<>();
+    private final ScheduledExecutorService flusher;
+    private final AtomicLong received = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+    private long lastLoggedCoalesced;
+    private boolean closed;
+
+    public CPTRecordCoalescer(String name, long debounceMillis, long maxHoldMillis, int maxPending,
+                              RecordSink sink) {
+        this.name = name;
+        this.debounceMillis = debounceMillis;
+        this.maxHoldMillis = Math.max(debounceMillis, maxHoldMillis);
+        this.maxPending = Math.max(1, maxPending);
+        this.sink = sink;
+        this.flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "cpt-coalescer-" + name);
+            thread.setDaemon(true);
+            return thread;
+        });
+        long tick = Math.max(10L, Math.min(debounceMillis / 4, 250L));
+        flusher.scheduleWithFixedDelay(() -> flush(false), tick, tick, TimeUnit.MILLISECONDS);
+        flusher.scheduleWithFixedDelay(this::logStats, STATS_LOG_INTERVAL_MILLIS,
+                                       STATS_LOG_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Holds the record until its entity has been quiet for the debounce window.
+     * Blocks while maxPending distinct entities are already held.
+     */
+    public void offer(String entityId, CPTRecord record) throws Exception {
+        received.incrementAndGet();
+        if (entityId.isEmpty()) {
+            sink.put(record);
+            return;
+        }
+        CPTRecord superseded = null;
+        boolean held = false;
+        synchronized (this) {
+            while (!closed && pending.size() >= maxPending && !pending.containsKey(entityId)) {
+                wait();
+            }
+            if (!closed) {
+                long now = System.currentTimeMillis();
+                Pending entry = pending.get(entityId);
+                if (entry == null) {
+                    pending.put(entityId, new Pending(record, now));
+                } else {
+                    superseded = entry.record;
+                    entry.record = record;
+                    entry.lastUpdate = now;
+                }
+                held = true;
+            }
+        }
+        if (!held) {
+            // closed while waiting, nothing will flush it anymore
+            sink.put(record);
+        } else if (superseded != null) {
+            coalesced.incrementAndGet();
+            superseded.commit();
+            CPTRecordTracer.complete(superseded, "superseded");
+        }
+    }
+
+    /**
+     * Number of records dropped because a newer record for the same entity
+     * replaced them, i.e. posts saved.
+     */
+    public long getCoalescedCount() {
+        return coalesced.get();
+    }
+
+    public long getReceivedCount() {
+        return received.get();
+    }
+
+    public synchronized int getPendingCount() {
+        return pending.size();
+    }
+
+    /**
+     * Stops the timer and releases every held record.
+     */
+    public void close() throws InterruptedException {
+        flusher.shutdown();
+        flusher.awaitTermination(1, TimeUnit.MINUTES);
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+        flush(true);
+        logStats();
+    }
+
+    private void flush(boolean all) {
+        List<CPTRecord> due = new ArrayList<>();
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+            Iterator<Pending> entries = pending.values().iterator();
+            while (entries.hasNext()) {
+                Pending entry = entries.next();
+                if (all || now - entry.lastUpdate >= debounceMillis
+                    || now - entry.firstSeen >= maxHoldMillis) {
+                    due.add(entry.record);
+                    entries.remove();
+                }
+            }
+            if (!due.isEmpty()) {
+                notifyAll();
+            }
+        }
+        for (CPTRecord record : due) {
+            try {
+                sink.put(record);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                LOG.error("Interrupted while releasing coalesced record for " + name);
+            } catch (Exception e) {
+                LOG.error("Error releasing coalesced record for " + name, e);
+            }
+        }
+    }
+
+    private void logStats() {
+        long coalescedCount = coalesced.get();
+        if (coalescedCount != lastLoggedCoalesced && LOG.isInfoEnabled()) {
+            LOG.info("Coalescer " + name + ": received " + received.get() + " records, saved "
+                     + coalescedCount + " posts, holding " + getPendingCount());
+        }
+        lastLoggedCoalesced = coalescedCount;
+    }
+}
@@ -0,0 +1,218 @@
+package org.mskcc.smile.cpt_gateway.service.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Hash of the record last posted for each entity, so a record SMILE publishes
+ * again unchanged does not have to be posted again.
+ *
+ * <p>Entities are keyed by the XXH64 of their entity key and records by the
+ * XXH64 of their data, so an entry takes the same few dozen bytes whatever
+ * the size of the record. The least recently used entries are evicted beyond
+ * maxEntries, and entries older than ttlMillis no longer match, so every
+ * entity is posted again now and then even if it never changes.
+ *
+ * <p>A record that does not match leaves a pending entry behind until its
+ * post succeeds, which no record matches. Only the post of the last record
+ * let through for an entity may fill in its hash, so an older post that
+ * completes late can not make a newer record look unchanged.
+ *
+ * <p>The cache can be saved to and loaded from a snapshot file of 24 bytes
+ * per entry, least recently used first.
+ */
+public class CPTRecordHashCache {
+    private static final Log LOG = LogFactory.getLog(CPTRecordHashCache.class);
+    private static final int SNAPSHOT_MAGIC = 0x43505448;
+    private static final int SNAPSHOT_VERSION = 1;
+    public static final long UNCHANGED = -1;
+
+    private static final class Entry {
+        private final long recordHash;
+        private final long postedAtMillis;
+        // 0 once posted, otherwise the ticket of the post in flight
+        private final long ticket;
+
+        private Entry(long recordHash, long postedAtMillis, long ticket) {
+            this.recordHash = recordHash;
+            this.postedAtMillis = postedAtMillis;
+            this.ticket = ticket;
+        }
+    }
+
+    private final int maxEntries;
+    private final long ttlMillis;
+    private final LinkedHashMap<Long, Entry> entries;
+    private long hits;
+    private long misses;
+    private long expirations;
+    private long evictions;
+    private long lastTicket;
+
+    /**
+     * A ttlMillis of 0 keeps entries until they are evicted.
+     */
+    public CPTRecordHashCache(int maxEntries, long ttlMillis) {
+        this.maxEntries = Math.max(1, maxEntries);
+        this.ttlMillis = ttlMillis;
+        this.entries = new LinkedHashMap<Long, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Entry> eldest) {
+                if (size() > CPTRecordHashCache.this.maxEntries) {
+                    evictions++;
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Returns UNCHANGED if data is the record last posted for the entity.
+     * Otherwise the record is to be posted, and the returned ticket goes to
+     * {@link #posted} once that succeeds.
+     */
+    public long checkUnchanged(String entityKey, byte[] data) {
+        // hashed outside the lock, records can be megabytes
+        return checkUnchanged(hashKey(entityKey), CPTXXHash64.hash(data));
+    }
+
+    /**
+     * Records a successful post, ignored if a newer record for the entity
+     * has been let through since.
+     */
+    public void posted(String entityKey, long ticket) {
+        long keyHash = hashKey(entityKey);
+        synchronized (this) {
+            Entry entry = entries.get(keyHash);
+            if (entry != null && entry.ticket == ticket) {
+                entries.put(keyHash, new Entry(entry.recordHash, System.currentTimeMillis(), 0));
+            }
+        }
+    }
+
+    private synchronized long checkUnchanged(long keyHash, long recordHash) {
+        Entry entry = entries.get(keyHash);
+        if (entry != null && entry.ticket == 0 && ttlMillis > 0
+            && System.currentTimeMillis() - entry.postedAtMillis > ttlMillis) {
+            expirations++;
+            entry = null;
+        }
+        if (entry != null && entry.ticket == 0 && entry.recordHash == recordHash) {
+            hits++;
+            return UNCHANGED;
+        }
+        misses++;
+        // until the post succeeds CPT may hold either version, so nothing matches meanwhile
+        entries.put(keyHash, new Entry(recordHash, 0, ++lastTicket));
+        return lastTicket;
+    }
+
+    private static long hashKey(String entityKey) {
+        return CPTXXHash64.hash(entityKey.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized long getHitCount() {
+        return hits;
+    }
+
+    public synchronized long getMissCount() {
+        return misses;
+    }
+
+    public synchronized long getExpirationCount() {
+        return expirations;
+    }
+
+    public synchronized long getEvictionCount() {
+        return evictions;
+    }
+
+    public synchronized double getHitRate() {
+        long lookups = hits + misses;
+        return (lookups == 0) ? 0 : (double) hits / lookups;
+    }
+
+    /**
+     * Loads a snapshot saved by {@link #save}, skipping expired entries. A
+     * missing file leaves the cache empty.
+     */
+    public void load(Path snapshotFile) throws IOException {
+        if (!Files.exists(snapshotFile)) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        int loaded = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                Files.newInputStream(snapshotFile), 65536))) {
+            if (in.readInt() != SNAPSHOT_MAGIC || in.readInt() != SNAPSHOT_VERSION) {
+                throw new IOException("Not a record hash snapshot: " + snapshotFile);
+            }
+            int count = in.readInt();
+            synchronized (this) {
+                for (int i = 0; i < count; i++) {
+                    long keyHash = in.readLong();
+                    long recordHash = in.readLong();
+                    long postedAtMillis = in.readLong();
+                    if (ttlMillis <= 0 || now - postedAtMillis <= ttlMillis) {
+                        entries.put(keyHash, new Entry(recordHash, postedAtMillis, 0));
+                        loaded++;
+                    }
+                }
+            }
+        }
+        LOG.info("Loaded " + loaded + " record hashes from " + snapshotFile);
+    }
+
+    /**
+     * Writes the cache to a temporary file and moves it over snapshotFile,
+     * so a crash never leaves a partial snapshot behind.
+     */
+    public void save(Path snapshotFile) throws IOException {
+        long[] snapshot;
+        synchronized (this) {
+            long[] values = new long[entries.size() * 3];
+            int i = 0;
+            // iterating an access ordered map does not change its order
+            for (Map.Entry<Long, Entry> entry : entries.entrySet()) {
+                if (entry.getValue().ticket == 0) {
+                    values[i++] = entry.getKey();
+                    values[i++] = entry.getValue().recordHash;
+                    values[i++] = entry.getValue().postedAtMillis;
+                }
+            }
+            snapshot = Arrays.copyOf(values, i);
+        }
+        Path tempFile = snapshotFile.resolveSibling(snapshotFile.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                Files.newOutputStream(tempFile), 65536))) {
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeInt(SNAPSHOT_VERSION);
+            out.writeInt(snapshot.length / 3);
+            for (long value : snapshot) {
+                out.writeLong(value);
+            }
+        }
+        Files.move(tempFile, snapshotFile, StandardCopyOption.REPLACE_EXISTING,
+                   StandardCopyOption.ATOMIC_MOVE);
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Saved " + (snapshot.length / 3) + " record hashes to " + snapshotFile);
+        }
+    }
+}
@@ -0,0 +1,291 @@
+package org.mskcc.smile.cpt_gateway.service.util;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Pulls top level string fields out of a raw record in a single forward pass.
+ *
+ * <p>Records arrive as the JSON string literal published by SMILE, so the
+ * outer escaping is decoded on the fly while the inner JSON is tokenized.
+ * Only keys of the top level object are considered (a requestId inside a
+ * nested sample is never picked up) and the scan stops as soon as every
+ * requested field has been found.
+ *
+ * <p>Values are decoded as UTF-8. Non-ASCII bytes are collected and decoded
+ * together, while characters from \\u escapes of the outer literal come back
+ * from {@link #next} marked with {@link #DECODED}, so they are never mistaken
+ * for raw bytes.
+ */
+public class CPTRecordIdExtractor {
+
+    public static final String IGO_REQUEST_ID = "igoRequestId";
+    public static final String IGO_SAMPLE_ID = "sampleName";
+    public static final String IGO_REQUEST_TRACKER_ID = "requestId";
+    // set on non-ASCII characters decoded from a \\u escape, as opposed to raw UTF-8 bytes
+    private static final int DECODED = 0x10000;
+
+    private final byte[] record;
+    private final boolean literal;
+    private final int end;
+    private int pos;
+    private int pushback = -1;
+    private byte[] utf8 = new byte[16];
+    private int utf8Length;
+
+    private CPTRecordIdExtractor(byte[] record) {
+        this.record = record;
+        int start = 0;
+        int stop = record.length;
+        while (start < stop && isWhitespace(record[start])) {
+            start++;
+        }
+        while (stop > start && isWhitespace(record[stop - 1])) {
+            stop--;
+        }
+        // fall back to reading the bytes as plain json if they are not a string literal
+        this.literal = (stop - start >= 2 && record[start] == '"' && record[stop - 1] == '"');
+        this.pos = literal ? start + 1 : start;
+        this.end = literal ? stop - 1 : stop;
+    }
+
+    /**
+     * Returns the value of the given top level field, or an empty string if the
+     * record does not have it as a string.
+     */
+    public static String extract(byte[] record, String fieldName) {
+        return extract(record, new String[] {fieldName})[0];
+    }
+
+    /**
+     * Returns the values of the given top level fields in the same order, with
+     * an empty string for every field the record does not have as a string.
+     */
+    public static String[] extract(byte[] record, String... fieldNames) {
+        String[] values = new String[fieldNames.length];
+        new CPTRecordIdExtractor(record).scan(fieldNames, values);
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] == null) {
+                values[i] = "";
+            }
+        }
+        return values;
+    }
+
+    private void scan(String[] fieldNames, String[] values) {
+        StringBuilder token = new StringBuilder(32);
+        int remaining = fieldNames.length;
+        int depth = 0;
+        boolean topLevelObject = false;
+        boolean expectKey = false;
+        int c;
+        while (remaining > 0 && (c = next()) >= 0) {
+            switch (c) {
+                case '{':
+                    depth++;
+                    if (depth == 1) {
+                        topLevelObject = true;
+                        expectKey = true;
+                    }
+                    break;
+                case '[':
+                    depth++;
+                    break;
+                case '}':
+                case ']':
+                    depth--;
+                    if (depth <= 0) {
+                        return;
+                    }
+                    break;
+                case ',':
+                    expectKey = (depth == 1 && topLevelObject);
+                    break;
+                case '"':
+                    if (depth == 1 && expectKey) {
+                        expectKey = false;
+                        readString(token);
+                        int field = indexOf(fieldNames, token);
+                        if (field >= 0 && values[field] == null && readStringValue(token)) {
+                            values[field] = token.toString();
+                            remaining--;
+                        }
+                    } else {
+                        skipString();
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Reads the value following a key into token if it is a string. Anything
+     * else is pushed back so the scan keeps track of nesting.
+     */
+    private boolean readStringValue(StringBuilder token) {
+        int c = nextNonWhitespace();
+        if (c != ':') {
+            pushback = c;
+            return false;
+        }
+        c = nextNonWhitespace();
+        if (c != '"') {
+            pushback = c;
+            return false;
+        }
+        readString(token);
+        return true;
+    }
+
+    private void readString(StringBuilder token) {
+        token.setLength(0);
+        utf8Length = 0;
+        int c;
+        while ((c = next()) >= 0 && c != '"') {
+            if (c >= 0x80 && c < 0x100) {
+                appendUtf8Byte(c);
+                continue;
+            }
+            flushUtf8(token);
+            if (c == '\\') {
+                c = next();
+                switch (c) {
+                    case 'n':
+                        c = '\n';
+                        break;
+                    case 't':
+                        c = '\t';
+                        break;
+                    case 'r':
+                        c = '\r';
+                        break;
+                    case 'b':
+                        c = '\b';
+                        break;
+                    case 'f':
+                        c = '\f';
+                        break;
+                    case 'u':
+                        c = readHex();
+                        break;
+                    default:
+                        break;
+                }
+                if (c < 0) {
+                    return;
+                }
+            }
+            token.append((char) (c & ~DECODED));
+        }
+        flushUtf8(token);
+    }
+
+    private void appendUtf8Byte(int b) {
+        if (utf8Length == utf8.length) {
+            utf8 = Arrays.copyOf(utf8, utf8.length * 2);
+        }
+        utf8[utf8Length++] = (byte) b;
+    }
+
+    private void flushUtf8(StringBuilder token) {
+        if (utf8Length > 0) {
+            token.append(new String(utf8, 0, utf8Length, StandardCharsets.UTF_8));
+            utf8Length = 0;
+        }
+    }
+
+    private void skipString() {
+        int c;
+        while ((c = next()) >= 0 && c != '"') {
+            if (c == '\\' && next() == 'u') {
+                readHex();
+            }
+        }
+    }
+
+    private int readHex() {
+        int value = 0;
+        for (int i = 0; i < 4; i++) {
+            int digit = Character.digit(next(), 16);
+            if (digit < 0) {
+                return -1;
+            }
+            value = (value << 4) | digit;
+        }
+        return value;
+    }
+
+    private int nextNonWhitespace() {
+        int c;
+        do {
+            c = next();
+        } while (c == ' ' || c == '\t' || c == '\n' || c == '\r');
+        return c;
+    }
+
+    /**
+     * Returns the next byte of the inner json, decoding the escaping of the
+     * outer string literal, or -1 at the end of the record. A \\u escape
+     * decoding to a non-ASCII character is returned with {@link #DECODED} set.
+     */
+    private int next() {
+        if (pushback >= 0) {
+            int c = pushback;
+            pushback = -1;
+            return c;
+        }
+        if (pos >= end) {
+            return -1;
+        }
+        int c = record[pos++] & 0xFF;
+        if (c != '\\' || !literal) {
+            return c;
+        }
+        if (pos >= end) {
+            return -1;
+        }
+        c = record[pos++] & 0xFF;
+        switch (c) {
+            case 'n':
+                return '\n';
+            case 't':
+                return '\t';
+            case 'r':
+                return '\r';
+            case 'b':
+                return '\b';
+            case 'f':
+                return '\f';
+            case 'u':
+                if (pos + 4 > end) {
+                    return -1;
+                }
+                int value = 0;
+                for (int i = 0; i < 4; i++) {
+                    int digit = Character.digit(record[pos++], 16);
+                    if (digit < 0) {
+                        return -1;
+                    }
+                    value = (value << 4) | digit;
+                }
+                return (value < 0x80) ? value : (value | DECODED);
+            default:
+                return c;
+        }
+    }
+
+    private static int indexOf(String[] fieldNames, StringBuilder token) {
+        for (int i = 0; i < fieldNames.length; i++) {
+            if (fieldNames[i].contentEquals(token)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\t' || b == '\n' || b == '\r';
+    }
+}
@@ -0,0 +1,291 @@
+package org.mskcc.smile.cpt_gateway.service.util;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.zip.CRC32;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Append-only, memory-mapped journal of the records received for one CPT
+ * destination.
+ *
+ * <p>The journal is a sequence of segment files named after the logical
+ * offset they start at. Each entry is [length][crc32][payload]; the length is
+ * written last so an entry torn by a crash reads as the end of the journal.
+ * A length of 0 marks the end of the data, so empty payloads are rejected.
+ * A record's entry is committed once it has been handled, and the consumer
+ * offset (stored in its own mapped file) only moves past entries that are
+ * committed, so out of order completions from several handler threads never
+ * skip an unhandled record. Segments that lie entirely before the consumer
+ * offset are deleted.
+ */
+public class CPTRecordJournal implements Closeable {
+    private static final Log LOG = LogFactory.getLog(CPTRecordJournal.class);
+
+    private static final int HEADER_SIZE = 8;
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String CONSUMER_OFFSET_FILE = "consumer.offset";
+
+    public interface ReplayHandler {
+        void onRecord(byte[] data, Entry entry) throws Exception;
+    }
+
+    public static final class Entry {
+        private final CPTRecordJournal journal;
+        private final long offset;
+        private final long nextOffset;
+        private boolean committed;
+
+        private Entry(CPTRecordJournal journal, long offset, long nextOffset) {
+            this.journal = journal;
+            this.offset = offset;
+            this.nextOffset = nextOffset;
+        }
+
+        public long getOffset() {
+            return offset;
+        }
+
+        /**
+         * Marks the entry as handled so the consumer offset can move past it.
+         */
+        public void commit() {
+            journal.commit(this);
+        }
+    }
+
+    private static final class Segment {
+        final long baseOffset;
+        final Path path;
+        final MappedByteBuffer buffer;
+
+        Segment(long baseOffset, Path path, MappedByteBuffer buffer) {
+            this.baseOffset = baseOffset;
+            this.path = path;
+            this.buffer = buffer;
+        }
+    }
+
+    private final Path directory;
+    private final int segmentSize;
+    private final boolean fsync;
+    private final ConcurrentSkipListMap<Long, Segment> segments = new ConcurrentSkipListMap<>();
+    private final ArrayDeque<Entry> pending = new ArrayDeque<>();
+    private final CRC32 crc = new CRC32();
+    private final MappedByteBuffer consumerOffset;
+    private Segment active;
+    private int writePosition;
+    private volatile long committedOffset;
+
+    private CPTRecordJournal(Path directory, int segmentSize, boolean fsync) throws IOException {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.fsync = fsync;
+        Files.createDirectories(directory);
+        try (FileChannel channel = FileChannel.open(directory.resolve(CONSUMER_OFFSET_FILE),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            this.consumerOffset = channel.map(FileChannel.MapMode.READ_WRITE, 0, Long.BYTES);
+        }
+        this.committedOffset = consumerOffset.getLong(0);
+    }
+
+    /**
+     * Opens (or creates) the journal in the given directory and hands every
+     * entry that was not committed before the last shutdown to the handler, in
+     * the order they were appended. Replayed entries must be committed like
+     * appended ones.
+     */
+    public static CPTRecordJournal open(Path directory, int segmentSize, boolean fsync,
+                                        ReplayHandler handler) throws Exception {
+        CPTRecordJournal journal = new CPTRecordJournal(directory, segmentSize, fsync);
+        journal.recover(handler);
+        return journal;
+    }
+
+    private void recover(ReplayHandler handler) throws Exception {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + SEGMENT_SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                long baseOffset = Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+                segments.put(baseOffset, new Segment(baseOffset, file, map(file, Files.size(file))));
+            }
+        }
+        if (segments.isEmpty()) {
+            active = createSegment(committedOffset, segmentSize);
+            writePosition = 0;
+            return;
+        }
+        if (committedOffset < segments.firstKey()) {
+            committedOffset = segments.firstKey();
+        }
+        Map.Entry<Long, Segment> start = segments.floorEntry(committedOffset);
+        Segment segment = start.getValue();
+        int position = (int) (committedOffset - segment.baseOffset);
+        int replayed = 0;
+        while (true) {
+            ByteBuffer buffer = segment.buffer;
+            int length = (position + HEADER_SIZE <= buffer.capacity()) ? buffer.getInt(position) : 0;
+            if (length == 0) {
+                // end of the data in this segment, continue in the next one if there is one
+                Map.Entry<Long, Segment> next = segments.higherEntry(segment.baseOffset);
+                if (next == null) {
+                    break;
+                }
+                segment = next.getValue();
+                position = 0;
+                continue;
+            }
+            if (length < 0 || position + HEADER_SIZE + length > buffer.capacity()) {
+                LOG.warn("Truncating corrupt journal entry in " + segment.path + " at " + position);
+                break;
+            }
+            byte[] data = new byte[length];
+            ByteBuffer view = buffer.duplicate();
+            view.position(position + HEADER_SIZE);
+            view.get(data);
+            crc.reset();
+            crc.update(data, 0, data.length);
+            if ((int) crc.getValue() != buffer.getInt(position + 4)) {
+                LOG.warn("Truncating journal entry with bad checksum in " + segment.path + " at " + position);
+                break;
+            }
+            long offset = segment.baseOffset + position;
+            position += HEADER_SIZE + length;
+            Entry entry = new Entry(this, offset, segment.baseOffset + position);
+            pending.addLast(entry);
+            handler.onRecord(data, entry);
+            replayed++;
+        }
+        // anything after the last good entry is a torn write, drop it so appends start clean
+        for (Segment stale : segments.tailMap(segment.baseOffset, false).values()) {
+            deleteSegment(stale);
+        }
+        for (int i = position; i < segment.buffer.capacity() && i < position + HEADER_SIZE; i++) {
+            segment.buffer.put(i, (byte) 0);
+        }
+        active = segment;
+        writePosition = position;
+        if (replayed > 0) {
+            LOG.info("Replayed " + replayed + " uncommitted records from journal: " + directory);
+        }
+    }
+
+    /**
+     * Appends a record and returns its entry, which must be committed once the
+     * record has been handled. data must not be empty.
+     */
+    public synchronized Entry append(byte[] data) throws IOException {
+        if (data.length == 0) {
+            throw new IllegalArgumentException("Empty records can not be journaled");
+        }
+        int entrySize = HEADER_SIZE + data.length;
+        if (writePosition + entrySize > active.buffer.capacity()) {
+            active = createSegment(active.baseOffset + writePosition, Math.max(segmentSize, entrySize));
+            writePosition = 0;
+        }
+        MappedByteBuffer buffer = active.buffer;
+        crc.reset();
+        crc.update(data, 0, data.length);
+        buffer.putInt(writePosition + 4, (int) crc.getValue());
+        ByteBuffer view = buffer.duplicate();
+        view.position(writePosition + HEADER_SIZE);
+        view.put(data);
+        // the length goes in last, it is what marks the entry as complete
+        buffer.putInt(writePosition, data.length);
+        if (fsync) {
+            buffer.force();
+        }
+        long offset = active.baseOffset + writePosition;
+        writePosition += entrySize;
+        Entry entry = new Entry(this, offset, active.baseOffset + writePosition);
+        synchronized (pending) {
+            pending.addLast(entry);
+        }
+        return entry;
+    }
+
+    /**
+     * Marks the entry as handled and moves the consumer offset past every
+     * leading entry that is now committed.
+     */
+    private void commit(Entry entry) {
+        long newCommittedOffset = -1;
+        synchronized (pending) {
+            entry.committed = true;
+            while (!pending.isEmpty() && pending.peekFirst().committed) {
+                newCommittedOffset = pending.pollFirst().nextOffset;
+            }
+            if (newCommittedOffset < 0) {
+                return;
+            }
+            committedOffset = newCommittedOffset;
+            consumerOffset.putLong(0, newCommittedOffset);
+            if (fsync) {
+                consumerOffset.force();
+            }
+        }
+        compact(newCommittedOffset);
+    }
+
+    private void compact(long committed) {
+        while (true) {
+            Map.Entry<Long, Segment> first = segments.firstEntry();
+            Long nextBase = (first == null) ? null : segments.higherKey(first.getKey());
+            if (nextBase == null || nextBase > committed) {
+                return;
+            }
+            deleteSegment(first.getValue());
+        }
+    }
+
+    public long getCommittedOffset() {
+        return committedOffset;
+    }
+
+    public int getPendingCount() {
+        synchronized (pending) {
+            return pending.size();
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        active.buffer.force();
+        consumerOffset.force();
+    }
+
+    private Segment createSegment(long baseOffset, int size) throws IOException {
+        Path file = directory.resolve(String.format("%020d", baseOffset) + SEGMENT_SUFFIX);
+        Segment segment = new Segment(baseOffset, file, map(file, size));
+        segments.put(baseOffset, segment);
+        return segment;
+    }
+
+    private void deleteSegment(Segment segment) {
+        segments.remove(segment.baseOffset, segment);
+        try {
+            // the mapping itself is released once the buffer is collected
+            Files.deleteIfExists(segment.path);
+        } catch (IOException e) {
+            LOG.warn("Unable to delete journal segment: " + segment.path, e);
+        }
+    }
+
+    private static MappedByteBuffer map(Path file, long size) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+    }
+}
@@ -0,0 +1,427 @@
+package org.mskcc.smile.cpt_gateway.service.util;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.mskcc.smile.cpt_gateway.model.CPTRecord;
+
+/**
+ * Bounded queue of records waiting for a CPT destination, split into lanes by
+ * entity id.
+ *
+ * <p>Every entity id hashes to one of a fixed number of buckets and every
+ * bucket is served by exactly one lane. A lane is handed to one worker at a
+ * time (the {@link LaneListener} is told when a lane has records and nobody
+ * serving it), so records for the same request or sample are always posted in
+ * the order they arrived while different entities are posted in parallel. A
+ * bucket only moves to another lane (see {@link #rebalance()}) while it has
+ * nothing queued or in flight, which keeps that ordering across moves.
+ *
+ * <p>What happens to a subscriber when the queue is full depends on the
+ * overflow policy: BLOCK waits for a free slot, SHED hands the record to the
+ * overflow handler (the failure file) and returns, and PAUSE stops accepting
+ * once the queue reaches its high watermark and holds the subscriber until
+ * the handlers have drained it to the low watermark. Holding the subscriber
+ * callback holds its NATS dispatcher, which is what throttles the subscription.
+ *
+ * <p>With a compression threshold set, records at least that large are held
+ * compressed while they wait and decompressed as they are polled, on the
+ * worker's thread. Compression happens before the queue is locked.
+ */
+public class CPTRecordQueue {
+    private static final Log LOG = LogFactory.getLog(CPTRecordQueue.class);
+    private static final int BUCKETS = 1024;
+
+    public enum OverflowPolicy {
+        BLOCK,
+        SHED,
+        PAUSE;
+    }
+
+    public interface OverflowHandler {
+        void onOverflow(CPTRecord record) throws Exception;
+    }
+
+    /**
+     * Told, while the queue is locked, whenever a lane has records waiting and
+     * is not being served. The lane is then reserved for whoever takes it until
+     * {@link #releaseLane} is called.
+     */
+    public interface LaneListener {
+        void onLaneReady(CPTRecordQueue queue, int lane);
+    }
+
+    private static final class Lane {
+        final ArrayDeque<CPTRecord> records = new ArrayDeque<>();
+        boolean reserved;
+        long processed;
+    }
+
+    private final String name;
+    private final int capacity;
+    private final OverflowPolicy overflowPolicy;
+    private final OverflowHandler overflowHandler;
+    private final int highWatermark;
+    private final int lowWatermark;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notFull = lock.newCondition();
+    private final Condition resumed = lock.newCondition();
+    private final Lane[] lanes;
+    private final int[] bucketLanes = new int[BUCKETS];
+    private final int[] bucketPending = new int[BUCKETS];
+    private final int[] bucketArrivals = new int[BUCKETS];
+    private final LongAdder compressedRecords = new LongAdder();
+    private LaneListener laneListener;
+    private int size;
+    private long heldBytes;
+    private volatile int compressMinBytes;
+    private volatile boolean paused;
+
+    public CPTRecordQueue(String name, int capacity, int numLanes, OverflowPolicy overflowPolicy,
+                          double highWatermark, double lowWatermark, OverflowHandler overflowHandler) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Queue capacity must be at least 1: " + name);
+        }
+        if (lowWatermark > highWatermark) {
+            throw new IllegalArgumentException("Queue low watermark is above its high watermark: " + name);
+        }
+        this.name = name;
+        this.capacity = capacity;
+        this.overflowPolicy = overflowPolicy;
+        this.overflowHandler = overflowHandler;
+        this.highWatermark = Math.max(1, (int) Math.ceil(capacity * highWatermark));
+        this.lowWatermark = (int) Math.floor(capacity * lowWatermark);
+        this.lanes = new Lane[Math.max(1, numLanes)];
+        for (int i = 0; i < lanes.length; i++) {
+            lanes[i] = new Lane();
+        }
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            bucketLanes[bucket] = bucket % lanes.length;
+        }
+    }
+
+    public void put(CPTRecord record) throws Exception {
+        compressIfLarge(record);
+        switch (overflowPolicy) {
+            case SHED:
+                lock.lock();
+                try {
+                    if (size < capacity) {
+                        enqueue(record);
+                        return;
+                    }
+                } finally {
+                    lock.unlock();
+                }
+                overflowHandler.onOverflow(record);
+                break;
+            case PAUSE:
+                lock.lockInterruptibly();
+                try {
+                    if (!paused && size >= highWatermark) {
+                        paused = true;
+                        LOG.warn("Queue " + name + " reached its high watermark (" + highWatermark
+                                 + "), pausing subscriber until it drains to " + lowWatermark);
+                    }
+                    while (paused) {
+                        resumed.await();
+                    }
+                    awaitSpaceAndEnqueue(record);
+                } finally {
+                    lock.unlock();
+                }
+                break;
+            case BLOCK:
+            default:
+                awaitSpaceAndEnqueueInterruptibly(record);
+                break;
+        }
+    }
+
+    /**
+     * Queues a record waiting for space regardless of the overflow policy, used
+     * for records recovered from the journal.
+     */
+    public void replay(CPTRecord record) throws InterruptedException {
+        compressIfLarge(record);
+        awaitSpaceAndEnqueueInterruptibly(record);
+    }
+
+    /**
+     * Holds records of at least minBytes compressed while they wait, 0 holds
+     * every record as it is.
+     */
+    public void setCompressMinBytes(int compressMinBytes) {
+        this.compressMinBytes = compressMinBytes;
+    }
+
+    /**
+     * Sets the listener told about lanes ready to be served, and tells it about
+     * the lanes that already are.
+     */
+    public void setLaneListener(LaneListener laneListener) {
+        lock.lock();
+        try {
+            this.laneListener = laneListener;
+            for (int i = 0; i < lanes.length; i++) {
+                if (!lanes[i].reserved && !lanes[i].records.isEmpty()) {
+                    lanes[i].reserved = true;
+                    laneListener.onLaneReady(this, i);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Takes the next record of a lane reserved through the lane listener, or
+     * null if it has none. The record's entity stays pinned to the lane until
+     * {@link #complete} is called.
+     */
+    public CPTRecord pollLane(int lane) {
+        CPTRecord record = pollRecord(lanes[lane]);
+        if (record != null) {
+            // decompressed here, outside the lock
+            record.getData();
+        }
+        return record;
+    }
+
+    private CPTRecord pollRecord(Lane source) {
+        lock.lock();
+        try {
+            CPTRecord record = source.records.pollFirst();
+            if (record == null) {
+                return null;
+            }
+            size--;
+            heldBytes -= record.getHeldSize();
+            notFull.signal();
+            if (paused && size <= lowWatermark) {
+                paused = false;
+                LOG.info("Queue " + name + " drained to its low watermark, resuming subscriber");
+                resumed.signalAll();
+            }
+            return record;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Gives up the reservation of a lane. If records arrived for it meanwhile
+     * it is handed straight back to the lane listener.
+     */
+    public void releaseLane(int lane) {
+        lock.lock();
+        try {
+            Lane released = lanes[lane];
+            released.reserved = !released.records.isEmpty() && laneListener != null;
+            if (released.reserved) {
+                laneListener.onLaneReady(this, lane);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Marks a record taken with {@link #pollLane} as handled.
+     */
+    public void complete(CPTRecord record) {
+        int bucket = bucketOf(record);
+        lock.lock();
+        try {
+            bucketPending[bucket]--;
+            lanes[bucketLanes[bucket]].processed++;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int size() {
+        lock.lock();
+        try {
+            return size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Bytes of data held by the records waiting, as compressed.
+     */
+    public long getHeldBytes() {
+        lock.lock();
+        try {
+            return heldBytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public double getHeldBytesPerRecord() {
+        lock.lock();
+        try {
+            return (size > 0) ? (double) heldBytes / size : 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getCompressedCount() {
+        return compressedRecords.sum();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getLaneCount() {
+        return lanes.length;
+    }
+
+    public boolean isPaused() {
+        return paused;
+    }
+
+    public int[] getLaneDepths() {
+        lock.lock();
+        try {
+            int[] depths = new int[lanes.length];
+            for (int i = 0; i < lanes.length; i++) {
+                depths[i] = lanes[i].records.size();
+            }
+            return depths;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long[] getLaneProcessedCounts() {
+        lock.lock();
+        try {
+            long[] processed = new long[lanes.length];
+            for (int i = 0; i < lanes.length; i++) {
+                processed[i] = lanes[i].processed;
+            }
+            return processed;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Moves idle buckets from the lane that received the most records since
+     * the last call to the lane that received the fewest, busiest buckets
+     * first, for as long as each move narrows the gap. Buckets with records
+     * queued or in flight stay where they are. Returns the number of buckets moved.
+     */
+    public int rebalance() {
+        lock.lock();
+        try {
+            if (lanes.length < 2) {
+                return 0;
+            }
+            long[] laneArrivals = new long[lanes.length];
+            for (int bucket = 0; bucket < BUCKETS; bucket++) {
+                laneArrivals[bucketLanes[bucket]] += bucketArrivals[bucket];
+            }
+            int hottest = 0;
+            int coldest = 0;
+            for (int i = 1; i < lanes.length; i++) {
+                if (laneArrivals[i] > laneArrivals[hottest]) {
+                    hottest = i;
+                }
+                if (laneArrivals[i] < laneArrivals[coldest]) {
+                    coldest = i;
+                }
+            }
+            List<Integer> candidates = new ArrayList<>();
+            for (int bucket = 0; bucket < BUCKETS; bucket++) {
+                if (bucketLanes[bucket] == hottest && bucketPending[bucket] == 0
+                    && bucketArrivals[bucket] > 0) {
+                    candidates.add(bucket);
+                }
+            }
+            candidates.sort((a, b) -> Integer.compare(bucketArrivals[b], bucketArrivals[a]));
+            int moved = 0;
+            for (int bucket : candidates) {
+                long gap = laneArrivals[hottest] - laneArrivals[coldest];
+                if (bucketArrivals[bucket] >= gap) {
+                    continue;
+                }
+                bucketLanes[bucket] = coldest;
+                laneArrivals[hottest] -= bucketArrivals[bucket];
+                laneArrivals[coldest] += bucketArrivals[bucket];
+                moved++;
+            }
+            // decay instead of reset so one quiet interval does not erase the history
+            for (int bucket = 0; bucket < BUCKETS; bucket++) {
+                bucketArrivals[bucket] /= 2;
+            }
+            return moved;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * One line summary of lane depths and processed counts for logging.
+     */
+    public String describeLanes() {
+        return "queue " + name + " lane depths " + Arrays.toString(getLaneDepths())
+            + ", processed " + Arrays.toString(getLaneProcessedCounts());
+    }
+
+    private void compressIfLarge(CPTRecord record) {
+        int minBytes = compressMinBytes;
+        if (minBytes > 0 && record.getHeldSize() >= minBytes && record.compress(minBytes)) {
+            compressedRecords.increment();
+        }
+    }
+
+    private void awaitSpaceAndEnqueueInterruptibly(CPTRecord record) throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            awaitSpaceAndEnqueue(record);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void awaitSpaceAndEnqueue(CPTRecord record) throws InterruptedException {
+        while (size >= capacity) {
+            notFull.await();
+        }
+        enqueue(record);
+    }
+
+    private void enqueue(CPTRecord record) {
+        int bucket = bucketOf(record);
+        Lane lane = lanes[bucketLanes[bucket]];
+        record.setEnqueuedNanos(System.nanoTime());
+        lane.records.addLast(record);
+        heldBytes += record.getHeldSize();
+        bucketPending[bucket]++;
+        bucketArrivals[bucket]++;
+        size++;
+        if (!lane.reserved && laneListener != null) {
+            lane.reserved = true;
+            laneListener.onLaneReady(this, bucketLanes[bucket]);
+        }
+    }
+
+    private static int bucketOf(CPTRecord record) {
+        String entityId = record.getEntityId();
+        int hash = (entityId == null) ? 0 : entityId.hashCode();
+        return (hash ^ (hash >>> 16)) & (BUCKETS - 1);
+    }
+}
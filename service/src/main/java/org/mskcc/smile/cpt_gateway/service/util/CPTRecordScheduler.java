@@ -0,0 +1,508 @@
+package org.mskcc.smile.cpt_gateway.service.util;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.mskcc.smile.cpt_gateway.model.CPTRecord;
+
+/**
+ * One pool of workers serving the lanes of every CPT destination queue.
+ *
+ * <p>Queues report lanes that have records waiting, and idle workers sleep
+ * until there is one, so nothing polls on a timer. When lanes of several
+ * destinations are waiting the next one is picked by smooth weighted round
+ * robin on the destination weights: a destination with weight 8 is served 8
+ * times as often as one with weight 1 while both are busy, and a destination
+ * with nothing waiting leaves its share to the others.
+ *
+ * <p>A destination registered with a circuit breaker is skipped while the
+ * breaker lets nothing through. Its records stay parked in their queue and
+ * are served again as soon as the breaker allows probes. At shutdown, records
+ * still parked are handed to the parked record handler instead. Likewise a
+ * destination registered with a concurrency limiter is skipped while the
+ * limiter is full: a worker takes a permit without waiting before it takes a
+ * record off the queue, so no worker blocks on one destination while others
+ * have records waiting.
+ *
+ * <p>The pool can be elastic between a minimum and maximum number of workers.
+ * {@link #resize} adds workers while lanes are waiting with no worker idle
+ * and records have waited longer than a threshold, and workers idle for the
+ * keep alive time retire down to the minimum. A worker only retires between
+ * records, so lowering the bounds never drops one.
+ */
+public class CPTRecordScheduler implements CPTRecordQueue.LaneListener {
+    private static final Log LOG = LogFactory.getLog(CPTRecordScheduler.class);
+
+    /**
+     * Handles a record taken from a queue. The permits are the circuit
+     * breaker's and the concurrency limiter's if the queue has them, otherwise
+     * null; the handler gives the limiter's back once done with the record.
+     */
+    public interface RecordHandler {
+        void handle(CPTRecord record, CPTRecordQueue queue, CPTCircuitBreaker.Permit permit,
+                    CPTConcurrencyLimiter.Permit limitPermit) throws Exception;
+    }
+
+    private static final class Source {
+        final CPTRecordQueue queue;
+        final int weight;
+        final CPTCircuitBreaker breaker;
+        final CPTConcurrencyLimiter limiter;
+        final ArrayDeque<Integer> readyLanes = new ArrayDeque<>();
+        int currentWeight;
+        long served;
+
+        Source(CPTRecordQueue queue, int weight, CPTCircuitBreaker breaker, CPTConcurrencyLimiter limiter) {
+            this.queue = queue;
+            this.weight = weight;
+            this.breaker = breaker;
+            this.limiter = limiter;
+        }
+
+        /**
+         * Long.MAX_VALUE while the limiter is full, it says when it has room.
+         */
+        long getWaitNanos() {
+            long waitNanos = (breaker == null) ? 0 : breaker.getWaitNanos();
+            if (waitNanos == 0 && limiter != null && !limiter.hasRoom()) {
+                return Long.MAX_VALUE;
+            }
+            return waitNanos;
+        }
+    }
+
+    private final RecordHandler recordHandler;
+    private final RecordHandler parkedRecordHandler;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition laneReady = lock.newCondition();
+    private final Map<CPTRecordQueue, Source> sourcesByQueue = new IdentityHashMap<>();
+    private final List<Source> sources = new ArrayList<>();
+    private final Condition workersStopped = lock.newCondition();
+    private final LongAccumulator maxWaitNanos = new LongAccumulator(Long::max, 0);
+    private Executor executor;
+    private int readyCount;
+    private boolean stopping;
+    private int workers;
+    private int idleWorkers;
+    private int minWorkers;
+    private int maxWorkers;
+    private long keepAliveNanos = Long.MAX_VALUE;
+    private long workersStarted;
+    private long workersRetired;
+
+    public CPTRecordScheduler(RecordHandler recordHandler, RecordHandler parkedRecordHandler) {
+        this.recordHandler = recordHandler;
+        this.parkedRecordHandler = parkedRecordHandler;
+    }
+
+    /**
+     * Adds a destination queue, served in proportion to its weight while its
+     * circuit breaker and concurrency limiter (either may be null) let
+     * records through.
+     */
+    public void register(CPTRecordQueue queue, int weight, CPTCircuitBreaker breaker,
+                         CPTConcurrencyLimiter limiter) {
+        if (weight < 1) {
+            throw new IllegalArgumentException("Scheduler weight must be at least 1: " + queue.getName());
+        }
+        Source source = new Source(queue, weight, breaker, limiter);
+        lock.lock();
+        try {
+            sourcesByQueue.put(queue, source);
+            sources.add(source);
+        } finally {
+            lock.unlock();
+        }
+        queue.setLaneListener(this);
+        if (breaker != null) {
+            breaker.setStateListener(this::wakeAll);
+        }
+        if (limiter != null) {
+            limiter.setRoomListener(this::wakeAll);
+        }
+    }
+
+    /**
+     * Starts a pool of numWorkers, fixed until {@link #setBounds} is called.
+     */
+    public void start(int numWorkers, Executor executor) {
+        lock.lock();
+        try {
+            this.executor = executor;
+            minWorkers = numWorkers;
+            maxWorkers = numWorkers;
+            addWorkers(numWorkers);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Lets the pool grow and shrink between minWorkers and maxWorkers. Workers
+     * are added at once to reach the new minimum, and those beyond the new
+     * maximum retire as soon as they are done with their current record.
+     */
+    public void setBounds(int minWorkers, int maxWorkers) {
+        if (minWorkers < 1 || maxWorkers < minWorkers) {
+            throw new IllegalArgumentException("Scheduler workers need 1 <= min <= max, got min "
+                                               + minWorkers + ", max " + maxWorkers);
+        }
+        lock.lock();
+        try {
+            this.minWorkers = minWorkers;
+            this.maxWorkers = maxWorkers;
+            if (!stopping && executor != null && workers < minWorkers) {
+                addWorkers(minWorkers - workers);
+            }
+            if (workers > maxWorkers) {
+                laneReady.signalAll();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * How long a worker above the minimum stays idle before it retires.
+     */
+    public void setKeepAlive(long keepAliveMillis) {
+        lock.lock();
+        try {
+            keepAliveNanos = (keepAliveMillis > 0) ? TimeUnit.MILLISECONDS.toNanos(keepAliveMillis)
+                : Long.MAX_VALUE;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Adds workers if lanes that may be served are waiting, no worker is idle
+     * to take them and records served since the last call waited at least
+     * growWaitNanos in their queue. Adds at most one worker per waiting lane,
+     * doubling the pool at most, and returns how many were added.
+     */
+    public int resize(long growWaitNanos) {
+        long waitNanos = maxWaitNanos.getThenReset();
+        lock.lock();
+        try {
+            if (stopping || executor == null || idleWorkers > 0 || workers >= maxWorkers
+                || waitNanos < growWaitNanos) {
+                return 0;
+            }
+            int waitingLanes = 0;
+            for (Source source : sources) {
+                if (source.getWaitNanos() == 0) {
+                    waitingLanes += source.readyLanes.size();
+                }
+            }
+            int added = Math.min(Math.min(waitingLanes, Math.max(1, workers)), maxWorkers - workers);
+            if (added > 0) {
+                addWorkers(added);
+                if (LOG.isDebugEnabled()) {
+                    LOG.debug("Added " + added + " scheduler workers for " + waitingLanes
+                              + " waiting lanes, now " + workers);
+                }
+            }
+            return added;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void onLaneReady(CPTRecordQueue queue, int lane) {
+        lock.lock();
+        try {
+            sourcesByQueue.get(queue).readyLanes.addLast(lane);
+            readyCount++;
+            laneReady.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Lets the workers finish every record already queued, then stops them.
+     */
+    public void shutdown() throws InterruptedException {
+        lock.lock();
+        try {
+            stopping = true;
+            laneReady.signalAll();
+            while (workers > 0) {
+                workersStopped.await();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getWorkers() {
+        lock.lock();
+        try {
+            return workers;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getBusyWorkers() {
+        lock.lock();
+        try {
+            return workers - idleWorkers;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getMinWorkers() {
+        lock.lock();
+        try {
+            return minWorkers;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getMaxWorkers() {
+        lock.lock();
+        try {
+            return maxWorkers;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Pool bounds and state, one name=value per line.
+     */
+    public String describePool() {
+        lock.lock();
+        try {
+            return "min_workers=" + minWorkers + "\nmax_workers=" + maxWorkers + "\nworkers=" + workers
+                + "\nbusy_workers=" + (workers - idleWorkers) + "\nready_lanes=" + readyCount
+                + "\nworkers_started=" + workersStarted + "\nworkers_retired=" + workersRetired + "\n";
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * One line summary of records served per destination for logging.
+     */
+    public String describe() {
+        lock.lock();
+        try {
+            StringBuilder builder = new StringBuilder("served");
+            for (Source source : sources) {
+                builder.append(' ').append(source.queue.getName()).append('=').append(source.served);
+            }
+            return builder.toString();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void addWorkers(int count) {
+        for (int i = 0; i < count; i++) {
+            workers++;
+            try {
+                executor.execute(this::work);
+            } catch (RuntimeException e) {
+                workers--;
+                throw e;
+            }
+        }
+        workersStarted += count;
+    }
+
+    private void wakeAll() {
+        lock.lock();
+        try {
+            laneReady.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void work() {
+        boolean retired = false;
+        try {
+            while (true) {
+                Source source;
+                int lane;
+                CPTCircuitBreaker.Permit permit = null;
+                CPTConcurrencyLimiter.Permit limitPermit = null;
+                RecordHandler handler = recordHandler;
+                lock.lock();
+                try {
+                    long idleSince = System.nanoTime();
+                    while (true) {
+                        if (workers > maxWorkers) {
+                            retired = retire();
+                            return;
+                        }
+                        source = (readyCount > 0) ? nextSource() : null;
+                        if (source != null) {
+                            permit = (source.breaker != null) ? source.breaker.tryAcquire() : null;
+                            if (source.breaker != null && permit == null) {
+                                // the breaker let nothing through after all
+                                continue;
+                            }
+                            limitPermit = (source.limiter != null) ? source.limiter.tryAcquire() : null;
+                            if (source.limiter == null || limitPermit != null) {
+                                break;
+                            }
+                            // a post from outside the scheduler took the room
+                            if (permit != null) {
+                                permit.cancel();
+                                permit = null;
+                            }
+                            continue;
+                        }
+                        if (stopping) {
+                            if (readyCount == 0) {
+                                return;
+                            }
+                            // records only waiting for a concurrency permit are still posted
+                            source = nextParkedSource();
+                            if (source != null) {
+                                handler = parkedRecordHandler;
+                                break;
+                            }
+                        }
+                        long idleNanos = System.nanoTime() - idleSince;
+                        if (workers > minWorkers && idleNanos >= keepAliveNanos) {
+                            retired = retire();
+                            return;
+                        }
+                        idleWorkers++;
+                        try {
+                            awaitLane((workers > minWorkers) ? keepAliveNanos - idleNanos : Long.MAX_VALUE);
+                        } finally {
+                            idleWorkers--;
+                        }
+                    }
+                    lane = source.readyLanes.pollFirst();
+                    readyCount--;
+                    source.served++;
+                } finally {
+                    lock.unlock();
+                }
+                serve(source.queue, lane, handler, permit, limitPermit);
+            }
+        } finally {
+            lock.lock();
+            try {
+                if (!retired) {
+                    workers--;
+                }
+                if (workers == 0) {
+                    workersStopped.signalAll();
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Takes the calling worker out of the pool, under the lock so the workers
+     * left are counted before any other decides whether to retire too.
+     */
+    private boolean retire() {
+        workers--;
+        workersRetired++;
+        return true;
+    }
+
+    /**
+     * Waits for a lane to be ready, until the first circuit breaker keeping
+     * lanes parked lets records through again, or at most maxNanos.
+     */
+    private void awaitLane(long maxNanos) {
+        long waitNanos = maxNanos;
+        for (Source source : sources) {
+            if (!source.readyLanes.isEmpty()) {
+                waitNanos = Math.min(waitNanos, source.getWaitNanos());
+            }
+        }
+        if (waitNanos == Long.MAX_VALUE) {
+            laneReady.awaitUninterruptibly();
+            return;
+        }
+        try {
+            laneReady.awaitNanos(waitNanos);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void serve(CPTRecordQueue queue, int lane, RecordHandler handler,
+                       CPTCircuitBreaker.Permit permit, CPTConcurrencyLimiter.Permit limitPermit) {
+        boolean handled = false;
+        try {
+            CPTRecord record = queue.pollLane(lane);
+            if (record != null) {
+                handled = true;
+                maxWaitNanos.accumulate(System.nanoTime() - record.getEnqueuedNanos());
+                handler.handle(record, queue, permit, limitPermit);
+            }
+        } catch (Exception e) {
+            LOG.error("Error during request handling: ", e);
+        } finally {
+            if (!handled && permit != null) {
+                permit.cancel();
+            }
+            if (!handled && limitPermit != null) {
+                limitPermit.release();
+            }
+            queue.releaseLane(lane);
+        }
+    }
+
+    /**
+     * A destination with lanes waiting behind its circuit breaker, or null if
+     * there is none.
+     */
+    private Source nextParkedSource() {
+        for (Source source : sources) {
+            if (!source.readyLanes.isEmpty() && source.breaker != null && source.breaker.getWaitNanos() > 0) {
+                return source;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Smooth weighted round robin over the destinations with lanes waiting
+     * and records allowed through, or null if there are none.
+     */
+    private Source nextSource() {
+        Source best = null;
+        int totalWeight = 0;
+        for (Source source : sources) {
+            if (source.readyLanes.isEmpty() || source.getWaitNanos() > 0) {
+                continue;
+            }
+            source.currentWeight += source.weight;
+            totalWeight += source.weight;
+            if (best == null || source.currentWeight > best.currentWeight) {
+                best = source;
+            }
+        }
+        if (best != null) {
+            best.currentWeight -= totalWeight;
+        }
+        return best;
+    }
+}
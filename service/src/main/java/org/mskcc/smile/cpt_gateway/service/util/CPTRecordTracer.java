@@ -0,0 +1,162 @@
+package org.mskcc.smile.cpt_gateway.service.util;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.mskcc.smile.cpt_gateway.model.CPTRecord;
+import org.mskcc.smile.cpt_gateway.service.impl.CPTServiceImpl.CPTRecordDest;
+
+/**
+ * Keeps the lifecycle traces of records that took longer than a threshold
+ * from receive to response, so a late CPT update can be told apart as a
+ * queue wait, a token wait or a slow post.
+ *
+ * <p>While tracing is enabled each record carries a System.nanoTime() stamp
+ * per {@link Stage}, filled in as it passes through. Only the records found
+ * slow on completion are copied out, into a ring buffer of the last
+ * bufferSize of them. With tracing disabled records carry no stamps at all.
+ */
+public final class CPTRecordTracer {
+    private static final Log LOG = LogFactory.getLog(CPTRecordTracer.class);
+
+    public enum Stage {
+        RECEIVED,
+        DECODED,
+        ENQUEUED,
+        DEQUEUED,
+        TOKEN_ACQUIRED,
+        POST_SENT,
+        RESPONSE_RECEIVED
+    }
+
+    private static final Stage[] STAGES = Stage.values();
+
+    private static final class SlowRecord {
+        private final Instant completedAt;
+        private final CPTRecordDest recordDest;
+        private final String entityId;
+        private final int attempts;
+        private final String outcome;
+        private final long totalNanos;
+        private final long[] stamps;
+
+        private SlowRecord(Instant completedAt, CPTRecordDest recordDest, String entityId, int attempts,
+                           String outcome, long totalNanos, long[] stamps) {
+            this.completedAt = completedAt;
+            this.recordDest = recordDest;
+            this.entityId = entityId;
+            this.attempts = attempts;
+            this.outcome = outcome;
+            this.totalNanos = totalNanos;
+            this.stamps = stamps;
+        }
+    }
+
+    private static volatile long thresholdNanos;
+    private static SlowRecord[] buffer = new SlowRecord[0];
+    private static long captured;
+    private static final LongAdder slowRecords = new LongAdder();
+
+    static {
+        CPTMetrics.registerCounter("cpt_slow_records_total",
+                                   "Records that took longer than the slow record threshold.", "",
+                                   slowRecords::sum);
+    }
+
+    private CPTRecordTracer() {
+    }
+
+    /**
+     * A thresholdMillis of 0 or less disables tracing. Records created before
+     * a call keep the tracing they were created with.
+     */
+    public static synchronized void configure(long thresholdMillis, int bufferSize) {
+        thresholdNanos = (thresholdMillis > 0) ? thresholdMillis * 1_000_000L : 0;
+        buffer = new SlowRecord[Math.max(1, bufferSize)];
+        captured = 0;
+    }
+
+    public static boolean isEnabled() {
+        return thresholdNanos > 0;
+    }
+
+    /**
+     * Stamps for a new record, or null while tracing is disabled.
+     */
+    public static long[] newTrace() {
+        return (thresholdNanos > 0) ? new long[STAGES.length] : null;
+    }
+
+    /**
+     * Captures the trace of a record that is done with, posted, given up on
+     * or dropped, if it took longer than the threshold.
+     */
+    public static void complete(CPTRecord record, String outcome) {
+        long[] trace = record.getTrace();
+        long threshold = thresholdNanos;
+        if (trace == null || threshold <= 0 || trace[Stage.RECEIVED.ordinal()] == 0) {
+            return;
+        }
+        long end = trace[Stage.RESPONSE_RECEIVED.ordinal()];
+        long totalNanos = ((end != 0) ? end : System.nanoTime()) - trace[Stage.RECEIVED.ordinal()];
+        if (totalNanos < threshold) {
+            return;
+        }
+        slowRecords.increment();
+        SlowRecord slowRecord = new SlowRecord(Instant.now(), record.getRecordDest(), record.getEntityId(),
+                                               record.getAttempts(), outcome, totalNanos,
+                                               Arrays.copyOf(trace, trace.length));
+        synchronized (CPTRecordTracer.class) {
+            buffer[(int) (captured++ % buffer.length)] = slowRecord;
+        }
+        if (LOG.isDebugEnabled()) {
+            LOG.debug(format(slowRecord));
+        }
+    }
+
+    /**
+     * Writes the slow records kept, oldest first, one per line with the
+     * milliseconds each stage took since the one before it.
+     */
+    public static void write(Writer out) throws IOException {
+        SlowRecord[] records;
+        long count;
+        synchronized (CPTRecordTracer.class) {
+            records = buffer.clone();
+            count = captured;
+        }
+        int kept = (int) Math.min(count, records.length);
+        for (int i = 0; i < kept; i++) {
+            out.write(format(records[(int) ((count - kept + i) % records.length)]));
+            out.write('\n');
+        }
+    }
+
+    private static String format(SlowRecord record) {
+        StringBuilder line = new StringBuilder(256);
+        line.append(record.completedAt).append(" dest=").append(record.recordDest)
+            .append(" entity=").append(record.entityId).append(" attempts=").append(record.attempts)
+            .append(" outcome=").append(record.outcome)
+            .append(" total_ms=").append(toMillis(record.totalNanos));
+        long previous = record.stamps[Stage.RECEIVED.ordinal()];
+        for (Stage stage : STAGES) {
+            long stamp = record.stamps[stage.ordinal()];
+            // stages a record did not get to, e.g. the post of a record failing to parse
+            if (stamp == 0) {
+                continue;
+            }
+            line.append(' ').append(stage.name().toLowerCase()).append("_ms=+")
+                .append(toMillis(stamp - previous));
+            previous = stamp;
+        }
+        return line.toString();
+    }
+
+    private static String toMillis(long nanos) {
+        return String.format("%.3f", nanos / 1e6);
+    }
+}
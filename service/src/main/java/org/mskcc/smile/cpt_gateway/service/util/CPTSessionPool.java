@@ -0,0 +1,88 @@
+package org.mskcc.smile.cpt_gateway.service.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Fixed set of CPT (FileMaker Data API) sessions shared by all handler threads.
+ * Sessions are handed out round robin so the gateway never holds more than
+ * poolSize sessions on the server, and each session refreshes its token at most
+ * once at a time no matter how many threads find it expired.
+ */
+public class CPTSessionPool {
+
+    public interface SessionTokenSupplier {
+        String fetchSessionToken() throws Exception;
+    }
+
+    private final CPTSession[] sessions;
+    private final AtomicInteger nextSession = new AtomicInteger();
+    private final long tokenTimeToLive;
+    private final SessionTokenSupplier tokenSupplier;
+
+    public CPTSessionPool(int poolSize, long tokenTimeToLive, SessionTokenSupplier tokenSupplier) {
+        if (poolSize < 1) {
+            throw new IllegalArgumentException("CPT session pool size must be at least 1: " + poolSize);
+        }
+        this.tokenTimeToLive = tokenTimeToLive;
+        this.tokenSupplier = tokenSupplier;
+        this.sessions = new CPTSession[poolSize];
+        for (int i = 0; i < poolSize; i++) {
+            sessions[i] = new CPTSession();
+        }
+    }
+
+    public CPTSession acquire() {
+        return sessions[Math.floorMod(nextSession.getAndIncrement(), sessions.length)];
+    }
+
+    /**
+     * Returns the tokens of all sessions that are still open and forgets them,
+     * used to log the sessions out on shutdown.
+     */
+    public List<String> drainTokens() {
+        List<String> tokens = new ArrayList<>();
+        for (CPTSession session : sessions) {
+            synchronized (session) {
+                if (session.token != null) {
+                    tokens.add(session.token);
+                    session.token = null;
+                }
+            }
+        }
+        return tokens;
+    }
+
+    public class CPTSession {
+        private volatile String token;
+        private volatile long expiresAt;
+
+        public String getToken() throws Exception {
+            String currentToken = token;
+            if (currentToken != null && System.currentTimeMillis() < expiresAt) {
+                // filemaker expires sessions on inactivity, so every use extends it
+                expiresAt = System.currentTimeMillis() + tokenTimeToLive;
+                return currentToken;
+            }
+            synchronized (this) {
+                if (token == null || System.currentTimeMillis() >= expiresAt) {
+                    token = null;
+                    token = tokenSupplier.fetchSessionToken();
+                }
+                expiresAt = System.currentTimeMillis() + tokenTimeToLive;
+                return token;
+            }
+        }
+
+        /**
+         * Drops the given token if it is still the current one, so concurrent
+         * callers that were rejected with the same token trigger a single refresh.
+         */
+        public synchronized void invalidate(String staleToken) {
+            if (staleToken != null && staleToken.equals(token)) {
+                token = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package org.mskcc.smile.cpt_gateway.service.util;
+
+/**
+ * XXH64, a fast non-cryptographic 64-bit hash (https://xxhash.com), used to
+ * tell whether a record has changed since it was last posted.
+ */
+public final class CPTXXHash64 {
+    private static final long PRIME1 = 0x9E3779B185EBCA87L;
+    private static final long PRIME2 = 0xC2B2AE3D27D4EB4FL;
+    private static final long PRIME3 = 0x165667B19E3779F9L;
+    private static final long PRIME4 = 0x85EBCA77C2B2AE63L;
+    private static final long PRIME5 = 0x27D4EB2F165667C5L;
+
+    private CPTXXHash64() {
+    }
+
+    public static long hash(byte[] data) {
+        return hash(data, 0, data.length, 0);
+    }
+
+    public static long hash(byte[] data, int offset, int length, long seed) {
+        int end = offset + length;
+        int i = offset;
+        long h;
+        if (length >= 32) {
+            long v1 = seed + PRIME1 + PRIME2;
+            long v2 = seed + PRIME2;
+            long v3 = seed;
+            long v4 = seed - PRIME1;
+            do {
+                v1 = round(v1, readLong(data, i));
+                v2 = round(v2, readLong(data, i + 8));
+                v3 = round(v3, readLong(data, i + 16));
+                v4 = round(v4, readLong(data, i + 24));
+                i += 32;
+            } while (i <= end - 32);
+            h = Long.rotateLeft(v1, 1) + Long.rotateLeft(v2, 7) + Long.rotateLeft(v3, 12)
+                + Long.rotateLeft(v4, 18);
+            h = mergeRound(h, v1);
+            h = mergeRound(h, v2);
+            h = mergeRound(h, v3);
+            h = mergeRound(h, v4);
+        } else {
+            h = seed + PRIME5;
+        }
+        h += length;
+        while (i <= end - 8) {
+            h ^= round(0, readLong(data, i));
+            h = Long.rotateLeft(h, 27) * PRIME1 + PRIME4;
+            i += 8;
+        }
+        if (i <= end - 4) {
+            h ^= (readInt(data, i) & 0xFFFFFFFFL) * PRIME1;
+            h = Long.rotateLeft(h, 23) * PRIME2 + PRIME3;
+            i += 4;
+        }
+        while (i < end) {
+            h ^= (data[i] & 0xFF) * PRIME5;
+            h = Long.rotateLeft(h, 11) * PRIME1;
+            i++;
+        }
+        h ^= h >>> 33;
+        h *= PRIME2;
+        h ^= h >>> 29;
+        h *= PRIME3;
+        h ^= h >>> 32;
+        return h;
+    }
+
+    private static long round(long acc, long input) {
+        acc += input * PRIME2;
+        acc = Long.rotateLeft(acc, 31);
+        return acc * PRIME1;
+    }
+
+    private static long mergeRound(long acc, long value) {
+        acc ^= round(0, value);
+        return acc * PRIME1 + PRIME4;
+    }
+
+    private static long readLong(byte[] data, int i) {
+        return (data[i] & 0xFFL) | (data[i + 1] & 0xFFL) << 8 | (data[i + 2] & 0xFFL) << 16
+            | (data[i + 3] & 0xFFL) << 24 | (data[i + 4] & 0xFFL) << 32 | (data[i + 5] & 0xFFL) << 40
+            | (data[i + 6] & 0xFFL) << 48 | (data[i + 7] & 0xFFL) << 56;
+    }
+
+    private static int readInt(byte[] data, int i) {
+        return (data[i] & 0xFF) | (data[i + 1] & 0xFF) << 8 | (data[i + 2] & 0xFF) << 16
+            | (data[i + 3] & 0xFF) << 24;
+    }
+}
@@ -0,0 +1,178 @@
+package org.mskcc.smile.cpt_gateway.service.util;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class CPTRecordJournalTest {
+    private static final int SEGMENT_SIZE = 4096;
+    private static final int HEADER_SIZE = 8;
+    private static final String FIRST_SEGMENT = String.format("%020d", 0) + ".log";
+
+    @TempDir
+    Path directory;
+
+    private final List<String> replayed = new ArrayList<>();
+    private final List<CPTRecordJournal.Entry> replayedEntries = new ArrayList<>();
+
+    @Test
+    public void replaysUncommittedEntriesInOrderAfterACrash() throws Exception {
+        CPTRecordJournal journal = open(SEGMENT_SIZE);
+        journal.append(bytes("a"));
+        journal.append(bytes("b"));
+        journal.append(bytes("c"));
+        // no close, the process died
+        open(SEGMENT_SIZE);
+        assertEquals(Arrays.asList("a", "b", "c"), replayed);
+    }
+
+    @Test
+    public void commitsOutOfOrderOnlyMovePastLeadingCommittedEntries() throws Exception {
+        CPTRecordJournal journal = open(SEGMENT_SIZE);
+        CPTRecordJournal.Entry a = journal.append(bytes("a"));
+        CPTRecordJournal.Entry b = journal.append(bytes("b"));
+        journal.append(bytes("c"));
+        b.commit();
+        assertEquals(0, journal.getCommittedOffset());
+        a.commit();
+        assertEquals(2 * (HEADER_SIZE + 1), journal.getCommittedOffset());
+        assertEquals(1, journal.getPendingCount());
+        journal.close();
+        open(SEGMENT_SIZE);
+        assertEquals(Arrays.asList("c"), replayed);
+    }
+
+    @Test
+    public void replayedEntriesAreCommittedLikeAppendedOnes() throws Exception {
+        CPTRecordJournal journal = open(SEGMENT_SIZE);
+        journal.append(bytes("a"));
+        journal.append(bytes("b"));
+        journal = open(SEGMENT_SIZE);
+        replayedEntries.get(0).commit();
+        journal.append(bytes("c"));
+        journal.close();
+        open(SEGMENT_SIZE);
+        assertEquals(Arrays.asList("b", "c"), replayed);
+    }
+
+    @Test
+    public void dropsATornEntryAndAppendsAfterTheLastGoodOne() throws Exception {
+        CPTRecordJournal journal = open(SEGMENT_SIZE);
+        journal.append(bytes("a"));
+        journal.append(bytes("b"));
+        // the length of a third entry made it to disk, its payload and checksum did not
+        writeEntryHeader(2 * (HEADER_SIZE + 1), 3, 12345);
+        journal = open(SEGMENT_SIZE);
+        assertEquals(Arrays.asList("a", "b"), replayed);
+
+        journal.append(bytes("c"));
+        journal.close();
+        open(SEGMENT_SIZE);
+        assertEquals(Arrays.asList("a", "b", "c"), replayed);
+    }
+
+    @Test
+    public void stopsAtAnEntryWithABadChecksum() throws Exception {
+        CPTRecordJournal journal = open(SEGMENT_SIZE);
+        journal.append(bytes("a"));
+        journal.append(bytes("b"));
+        journal.append(bytes("c"));
+        journal.close();
+        // flip the payload of b
+        try (FileChannel channel = openFirstSegment()) {
+            channel.write(ByteBuffer.wrap(bytes("x")), HEADER_SIZE + 1 + HEADER_SIZE);
+        }
+        open(SEGMENT_SIZE);
+        assertEquals(Arrays.asList("a"), replayed);
+    }
+
+    @Test
+    public void deletesSegmentsOnceEverythingInThemIsCommitted() throws Exception {
+        // room for one 40 byte record per segment
+        CPTRecordJournal journal = open(64);
+        List<CPTRecordJournal.Entry> entries = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            entries.add(journal.append(record(i)));
+        }
+        assertEquals(5, countSegments());
+        entries.get(0).commit();
+        entries.get(1).commit();
+        assertEquals(3, countSegments());
+        entries.get(3).commit();
+        assertEquals(3, countSegments());
+        entries.get(2).commit();
+        entries.get(4).commit();
+        assertEquals(1, countSegments());
+        long committedOffset = journal.getCommittedOffset();
+        journal.close();
+
+        journal = open(64);
+        assertEquals(0, replayed.size());
+        assertEquals(committedOffset, journal.append(record(5)).getOffset());
+        journal.close();
+        open(64);
+        assertEquals(Arrays.asList(new String(record(5), StandardCharsets.UTF_8)), replayed);
+    }
+
+    @Test
+    public void rejectsEmptyRecords() throws Exception {
+        CPTRecordJournal journal = open(SEGMENT_SIZE);
+        assertThrows(IllegalArgumentException.class, () -> journal.append(new byte[0]));
+        journal.append(bytes("a"));
+        journal.close();
+        open(SEGMENT_SIZE);
+        assertEquals(Arrays.asList("a"), replayed);
+    }
+
+    private CPTRecordJournal open(int segmentSize) throws Exception {
+        replayed.clear();
+        replayedEntries.clear();
+        return CPTRecordJournal.open(directory, segmentSize, false, (data, entry) -> {
+            replayed.add(new String(data, StandardCharsets.UTF_8));
+            replayedEntries.add(entry);
+        });
+    }
+
+    private void writeEntryHeader(long position, int length, int crc) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(8);
+        header.putInt(length).putInt(crc).flip();
+        try (FileChannel channel = openFirstSegment()) {
+            channel.write(header, position);
+        }
+    }
+
+    private FileChannel openFirstSegment() throws IOException {
+        return FileChannel.open(directory.resolve(FIRST_SEGMENT), StandardOpenOption.WRITE);
+    }
+
+    private long countSegments() throws IOException {
+        long count = 0;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*.log")) {
+            for (Path ignored : files) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static byte[] record(int i) {
+        return bytes(String.format("record-%033d", i));
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+}